@@ -0,0 +1,54 @@
+/*
+ * Name resolution of set targets for different numbers of lights
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+public class FindResourceBenchmark
+{
+	@Param({"10","100","1000"})
+	public int lights;
+
+	private HueBridge bridge;
+	private String first;
+	private String last;
+	private String byID;
+
+	@Setup
+	public void setup()
+	{
+		bridge=Stubs.attachBridge(Stubs.bridge(lights));
+		first="lights/Light 1";
+		last="lights/Light "+lights;
+		byID="lights/"+lights;
+	}
+
+	@Benchmark
+	public void firstByName(Blackhole bh)
+	{
+		bh.consume(bridge.findResourceByName(first));
+	}
+
+	@Benchmark
+	public void lastByName(Blackhole bh)
+	{
+		bh.consume(bridge.findResourceByName(last));
+	}
+
+	@Benchmark
+	public void byIdentifier(Blackhole bh)
+	{
+		bh.consume(bridge.findResourceByName(byID));
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * Inbound path: MQTT message -> topic match -> payload parse -> command queue
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.nio.charset.*;
+import java.util.concurrent.*;
+
+import org.eclipse.paho.client.mqttv3.*;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+public class InboundSetBenchmark
+{
+	private MQTTHandler handler;
+
+	private MqttMessage simple;
+	private MqttMessage composite;
+	private MqttMessage datapoint;
+
+	private static MqttMessage message(String payload)
+	{
+		return new MqttMessage(payload.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Setup
+	public void setup()
+	{
+		handler=MQTTHandler.initUnconnected(Stubs.mqttClient());
+		Stubs.attachBridge(Stubs.bridge(100));
+		simple=message("128");
+		composite=message("{\"on\":true,\"bri\":200,\"ct\":300,\"transitiontime\":4}");
+		datapoint=message("42");
+	}
+
+	@Benchmark
+	public void simpleValue()
+	{
+		handler.processMessage("hue/set/lights/Light 50",simple,System.nanoTime());
+	}
+
+	@Benchmark
+	public void compositeJson()
+	{
+		handler.processMessage("hue/set/lights/Light 50",composite,System.nanoTime());
+	}
+
+	@Benchmark
+	public void singleDatapoint()
+	{
+		handler.processMessage("hue/set/lights/Light 50/bri_inc",datapoint,System.nanoTime());
+	}
+}
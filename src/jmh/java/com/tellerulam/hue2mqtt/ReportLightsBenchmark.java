@@ -0,0 +1,57 @@
+/*
+ * Outbound path: heartbeat -> state diff -> JSON -> publish queue
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.philips.lighting.model.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+public class ReportLightsBenchmark
+{
+	@Param({"10","100","1000"})
+	public int lights;
+
+	private HueBridge bridge;
+	private PHBridge stub;
+	private int bri;
+
+	@Setup
+	public void setup()
+	{
+		MQTTHandler.initUnconnected(Stubs.mqttClient());
+		stub=Stubs.bridge(lights);
+		bridge=Stubs.attachBridge(stub);
+		bridge.reportLights(new HueBridge.CacheUpdate(stub.getResourceCache()));
+	}
+
+	/*
+	 * Nothing changed since the last heartbeat
+	 */
+	@Benchmark
+	public void unchangedHeartbeat()
+	{
+		bridge.reportLights(new HueBridge.CacheUpdate(stub.getResourceCache()));
+	}
+
+	/*
+	 * Every light changed since the last heartbeat
+	 */
+	@Benchmark
+	public void changedHeartbeat()
+	{
+		bri=(bri+1)%254;
+		for(PHLight l:stub.getResourceCache().getAllLights())
+			l.getLastKnownLightState().setBrightness(Integer.valueOf(bri+1));
+		bridge.reportLights(new HueBridge.CacheUpdate(stub.getResourceCache()));
+	}
+}
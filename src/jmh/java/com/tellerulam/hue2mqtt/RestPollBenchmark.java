@@ -0,0 +1,112 @@
+/*
+ * Direct mode light poll: HTTP keep-alive request -> stream parse -> state diff -> publish queue,
+ * against a local stand-in bridge
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.philips.lighting.hue.sdk.*;
+import com.sun.net.httpserver.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+public class RestPollBenchmark
+{
+	@Param({"10","100"})
+	public int lights;
+
+	private HttpServer server;
+	private RestBackend rest;
+	private volatile byte response[];
+	private byte unchanged[],changed[];
+
+	private static byte[] lightsResponse(int lightCount,int bri)
+	{
+		StringBuilder sb=new StringBuilder("{");
+		for(int ix=1;ix<=lightCount;ix++)
+		{
+			if(ix>1)
+				sb.append(',');
+			sb.append("\"").append(ix).append("\":{\"state\":{\"on\":true,\"bri\":").append(bri)
+				.append(",\"hue\":10000,\"sat\":200,\"effect\":\"none\",\"xy\":[0.4,0.35],\"ct\":300,\"alert\":\"none\",\"colormode\":\"xy\",\"reachable\":true}")
+				.append(",\"type\":\"Extended color light\",\"name\":\"").append(ix%2==0?"K\u00fcche ":"Light ").append(ix)
+				.append("\",\"modelid\":\"LCT001\",\"manufacturername\":\"Philips\",\"uniqueid\":\"00:17:88:01:00:00:00:").append(ix)
+				.append("-0b\",\"swversion\":\"5.105.0.21169\"}");
+		}
+		return sb.append('}').toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Setup
+	public void setup() throws IOException
+	{
+		MQTTHandler.initUnconnected(Stubs.mqttClient());
+		unchanged=lightsResponse(lights,100);
+		changed=lightsResponse(lights,101);
+		response=unchanged;
+		// Otherwise Nagle's algorithm delays each response by the client's delayed ACK
+		System.setProperty("sun.net.httpserver.nodelay","true");
+		server=HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(),0),0);
+		server.createContext("/api/bench/lights",new HttpHandler(){
+			@Override
+			public void handle(HttpExchange ex) throws IOException
+			{
+				byte r[]=response;
+				ex.sendResponseHeaders(200,r.length);
+				try(OutputStream out=ex.getResponseBody())
+				{
+					out.write(r);
+				}
+			}
+		});
+		server.start();
+		PHAccessPoint pap=new PHAccessPoint();
+		pap.setIpAddress("127.0.0.1:"+server.getAddress().getPort());
+		pap.setBridgeId("restbench");
+		pap.setUsername("bench");
+		HueBridge hb=new HueBridge(null,pap,false);
+		rest=new RestBackend(hb);
+		rest.pollLights();
+		// An unchanged poll must be recognized as such, also with non-ASCII names
+		JsonStreamParser p=new JsonStreamParser();
+		p.reset(new ByteArrayInputStream(unchanged));
+		if(rest.parseLights(p))
+			throw new IllegalStateException("Unchanged poll reported as changed");
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		server.stop(0);
+	}
+
+	/*
+	 * Nothing changed since the last poll
+	 */
+	@Benchmark
+	public void unchangedPoll() throws IOException
+	{
+		response=unchanged;
+		rest.pollLights();
+	}
+
+	/*
+	 * Every light changed since the last poll
+	 */
+	@Benchmark
+	public void changedPoll() throws IOException
+	{
+		response=response==unchanged?changed:unchanged;
+		rest.pollLights();
+	}
+}
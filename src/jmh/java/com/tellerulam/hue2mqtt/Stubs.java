@@ -0,0 +1,157 @@
+/*
+ * Stub SDK and MQTT objects for the benchmarks, so no bridge or broker is required
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.logging.*;
+
+import org.eclipse.paho.client.mqttv3.*;
+
+import com.philips.lighting.hue.sdk.*;
+import com.philips.lighting.model.*;
+import com.philips.lighting.model.PHLight.PHLightAlertMode;
+import com.philips.lighting.model.PHLight.PHLightColorMode;
+import com.philips.lighting.model.PHLight.PHLightEffectMode;
+
+public class Stubs
+{
+	static
+	{
+		// Keep the per-publish logging out of the measurements
+		Logger.getLogger("com.tellerulam.hue2mqtt").setLevel(Level.WARNING);
+	}
+
+	private static Object defaultValue(Class<?> type)
+	{
+		if(type==boolean.class)
+			return Boolean.FALSE;
+		if(type==int.class)
+			return Integer.valueOf(0);
+		if(type==long.class)
+			return Long.valueOf(0);
+		return null;
+	}
+
+	/*
+	 * An always connected MQTT client which completes every publish immediately
+	 */
+	static IMqttAsyncClient mqttClient()
+	{
+		return (IMqttAsyncClient)Proxy.newProxyInstance(Stubs.class.getClassLoader(),new Class<?>[]{IMqttAsyncClient.class},new InvocationHandler(){
+			@Override
+			public Object invoke(Object proxy, Method m, Object[] args)
+			{
+				switch(m.getName())
+				{
+					case "isConnected":
+						return Boolean.TRUE;
+					case "getServerURI":
+						return "tcp://stub:1883";
+					case "getClientId":
+						return "hue2mqtt-bench";
+					case "publish":
+						if(args.length==6)
+							((IMqttActionListener)args[5]).onSuccess(null);
+						return null;
+					default:
+						return defaultValue(m.getReturnType());
+				}
+			}
+		});
+	}
+
+	static PHLightState lightState(int bri)
+	{
+		PHLightState ls=new PHLightState();
+		ls.setOn(Boolean.TRUE);
+		ls.setBrightness(Integer.valueOf(bri));
+		ls.setHue(Integer.valueOf(10000));
+		ls.setSaturation(Integer.valueOf(200));
+		ls.setCt(Integer.valueOf(300));
+		ls.setX(Float.valueOf(0.4f));
+		ls.setY(Float.valueOf(0.35f));
+		ls.setAlertMode(PHLightAlertMode.ALERT_NONE);
+		ls.setEffectMode(PHLightEffectMode.EFFECT_NONE);
+		ls.setColorMode(PHLightColorMode.COLORMODE_XY);
+		ls.setReachable(Boolean.TRUE);
+		return ls;
+	}
+
+	/*
+	 * A bridge with the given number of lights named "Light <n>", and groups of 10 lights each
+	 */
+	static PHBridge bridge(int lightCount)
+	{
+		final List<PHLight> lights=new ArrayList<>();
+		final Map<String,PHLight> lightMap=new HashMap<>();
+		final List<PHGroup> groups=new ArrayList<>();
+		final Map<String,PHGroup> groupMap=new HashMap<>();
+		for(int ix=1;ix<=lightCount;ix++)
+		{
+			PHLight l=new PHLight("Light "+ix,String.valueOf(ix),"1.0","LCT001");
+			l.setLastKnownLightState(lightState(100));
+			lights.add(l);
+			lightMap.put(l.getIdentifier(),l);
+		}
+		for(int ix=1;ix<=(lightCount+9)/10;ix++)
+		{
+			PHGroup g=new PHGroup("Group "+ix,String.valueOf(ix));
+			List<String> members=new ArrayList<>();
+			for(int lx=(ix-1)*10+1;lx<=Math.min(lightCount,ix*10);lx++)
+				members.add(String.valueOf(lx));
+			g.setLightIdentifiers(members);
+			groups.add(g);
+			groupMap.put(g.getIdentifier(),g);
+		}
+		final PHBridgeResourcesCache cache=(PHBridgeResourcesCache)Proxy.newProxyInstance(Stubs.class.getClassLoader(),new Class<?>[]{PHBridgeResourcesCache.class},new InvocationHandler(){
+			@Override
+			public Object invoke(Object proxy, Method m, Object[] args)
+			{
+				switch(m.getName())
+				{
+					case "getAllLights":
+						return lights;
+					case "getLights":
+						return lightMap;
+					case "getAllGroups":
+						return groups;
+					case "getGroups":
+						return groupMap;
+					case "getScenes":
+						return Collections.emptyMap();
+					case "getAllScenes":
+						return Collections.emptyList();
+					default:
+						return defaultValue(m.getReturnType());
+				}
+			}
+		});
+		return (PHBridge)Proxy.newProxyInstance(Stubs.class.getClassLoader(),new Class<?>[]{PHBridge.class},new InvocationHandler(){
+			@Override
+			public Object invoke(Object proxy, Method m, Object[] args)
+			{
+				if("getResourceCache".equals(m.getName()))
+					return cache;
+				// All commands are silently accepted
+				return defaultValue(m.getReturnType());
+			}
+		});
+	}
+
+	/*
+	 * Register a stub bridge with HueHandler, as if it had been discovered and connected
+	 */
+	static HueBridge attachBridge(PHBridge b)
+	{
+		PHAccessPoint pap=new PHAccessPoint();
+		pap.setIpAddress("192.0.2.1");
+		pap.setBridgeId("stubbridge");
+		HueBridge hb=new HueBridge(null,pap,false);
+		hb.attach(b,new HueBridge.CacheUpdate(b.getResourceCache()));
+		HueHandler.addBridge(hb);
+		return hb;
+	}
+}
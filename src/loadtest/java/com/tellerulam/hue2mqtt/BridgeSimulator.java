@@ -0,0 +1,486 @@
+/*
+ * Simulator of the local API of a Hue bridge, for the load harness.
+ *
+ * Serves the subset of the v1 API used in direct mode (lights, groups, scenes, light state
+ * and group actions, user registration) plus the v2 event stream, with a configurable number
+ * of lights and groups. The full state and the configuration are served as well, which is
+ * all the Hue SDK needs to connect and poll. To exercise the error paths of hue2mqtt, it can add latency to each
+ * request, limit the rate of commands like a real bridge does, fail a fraction of commands,
+ * reject unknown users until the link button is "pressed", and drop all requests during an
+ * outage window.
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+import com.eclipsesource.json.*;
+import com.sun.net.httpserver.*;
+
+public class BridgeSimulator
+{
+	static final String USERNAME="loadtest";
+
+	/* v1 error types */
+	static final int ERROR_UNAUTHORIZED=1;
+	static final int ERROR_LINK_BUTTON=101;
+	static final int ERROR_INTERNAL=901;
+
+	interface Listener
+	{
+		/* A command for the light with the given index arrived at the bridge */
+		void commandReceived(int light,JsonObject state);
+	}
+
+	static class Options
+	{
+		int lights=50;
+		int groups=5;
+		/* Added to each request, in ms */
+		int latency=0;
+		/* Commands per second accepted, 0 for no limit */
+		int rate=0;
+		/* Fraction of commands failing with an internal error */
+		double errors=0;
+		/* Time after the first registration attempt until the link button is pressed, -1 if registered already */
+		int linkDelay=-1;
+		/* Window after start in which requests are dropped, as if the bridge was unreachable */
+		int outageStart=0,outageDuration=0;
+	}
+
+	private static class Light
+	{
+		boolean on=true;
+		int bri=254;
+		int ct=366;
+		float x=0.4f,y=0.4f;
+	}
+
+	private final Options opts;
+	private final Light lights[];
+	private final HttpServer server;
+	private final long started=System.nanoTime();
+	private final Random random=new Random();
+	private final List<OutputStream> eventClients=new CopyOnWriteArrayList<>();
+	private final AtomicLong eventID=new AtomicLong();
+	private final AtomicLong requests=new AtomicLong(),commands=new AtomicLong(),rejected=new AtomicLong();
+	private volatile Listener listener;
+
+	/* null until a client registered, if the link button has to be pressed */
+	private volatile String username;
+	private long firstRegistration;
+
+	/* Token bucket for the command rate limit */
+	private double tokens;
+	private long lastRefill=System.nanoTime();
+
+	BridgeSimulator(Options opts) throws IOException
+	{
+		this.opts=opts;
+		lights=new Light[opts.lights];
+		for(int ix=0;ix<lights.length;ix++)
+			lights[ix]=new Light();
+		tokens=opts.rate;
+		username=opts.linkDelay<0?USERNAME:null;
+		server=HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(),0),0);
+		// The event stream blocks a thread per client, and latency is simulated with sleeps
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/api",new HttpHandler(){
+			@Override
+			public void handle(HttpExchange ex) throws IOException
+			{
+				handleAPI(ex);
+			}
+		});
+		server.createContext("/eventstream/clip/v2",new HttpHandler(){
+			@Override
+			public void handle(HttpExchange ex) throws IOException
+			{
+				handleEvents(ex);
+			}
+		});
+		server.start();
+		L.info("Simulating bridge with "+opts.lights+" lights and "+opts.groups+" groups at "+getAddress());
+	}
+
+	void setListener(Listener listener)
+	{
+		this.listener=listener;
+	}
+
+	/* Address to use as access point IP */
+	String getAddress()
+	{
+		return "127.0.0.1:"+server.getAddress().getPort();
+	}
+
+	/* The username presented by a registered client */
+	String getUsername()
+	{
+		return username!=null?username:"unregistered";
+	}
+
+	void stop()
+	{
+		server.stop(0);
+	}
+
+	JsonObject report()
+	{
+		JsonObject jso=new JsonObject();
+		jso.add("requests",requests.get());
+		jso.add("commands",commands.get());
+		jso.add("commands_rejected",rejected.get());
+		jso.add("event_clients",eventClients.size());
+		return jso;
+	}
+
+	/*
+	 * Change a light outside of hue2mqtt, e.g. with a switch or another app
+	 */
+	void changeLight(int index,int bri)
+	{
+		Light l=lights[index];
+		synchronized(l)
+		{
+			l.on=true;
+			l.bri=bri;
+		}
+		if(eventClients.isEmpty() || inOutage())
+			return;
+		long id=eventID.incrementAndGet();
+		String event="id: "+id+":0\ndata: [{\"data\":[{\"id_v1\":\"/lights/"+(index+1)
+			+"\",\"on\":{\"on\":true},\"dimming\":{\"brightness\":"+(bri/2.54)
+			+"},\"type\":\"light\"}],\"type\":\"update\"}]\n\n";
+		byte b[]=event.getBytes(StandardCharsets.UTF_8);
+		for(OutputStream out:eventClients)
+		{
+			try
+			{
+				synchronized(out)
+				{
+					out.write(b);
+					out.flush();
+				}
+			}
+			catch(IOException e)
+			{
+				eventClients.remove(out);
+			}
+		}
+	}
+
+	private boolean inOutage()
+	{
+		if(opts.outageDuration<=0)
+			return false;
+		long t=(System.nanoTime()-started)/1000000;
+		return t>=opts.outageStart && t<opts.outageStart+opts.outageDuration;
+	}
+
+	private void handleAPI(HttpExchange ex) throws IOException
+	{
+		requests.incrementAndGet();
+		if(inOutage())
+		{
+			// Unreachable: no response at all
+			ex.close();
+			return;
+		}
+		if(opts.latency>0)
+		{
+			try
+			{
+				Thread.sleep(opts.latency);
+			}
+			catch(InterruptedException e)
+			{
+				/* Ignore */
+			}
+		}
+		String method=ex.getRequestMethod();
+		String path[]=ex.getRequestURI().getPath().split("/");
+		String body=readBody(ex);
+		String response;
+		// path[0] is empty, path[1] is "api"
+		if(path.length==2 && "POST".equals(method))
+			response=register();
+		else if(path.length<3 || !path[2].equals(username))
+			response=error(ERROR_UNAUTHORIZED,"/","unauthorized user");
+		else if(path.length==3 && "GET".equals(method))
+			response=fullState();
+		else if(path.length==4 && "GET".equals(method))
+			response=get(path[3]);
+		else if(path.length==6 && "PUT".equals(method))
+			response=command(path[3],path[4],Json.parse(body).asObject());
+		else
+			response=error(3,ex.getRequestURI().getPath(),"resource, "+ex.getRequestURI().getPath()+", not available");
+		byte b[]=response.getBytes(StandardCharsets.UTF_8);
+		ex.getResponseHeaders().set("Content-Type","application/json");
+		ex.sendResponseHeaders(200,b.length);
+		try(OutputStream out=ex.getResponseBody())
+		{
+			out.write(b);
+		}
+	}
+
+	private static String readBody(HttpExchange ex) throws IOException
+	{
+		ByteArrayOutputStream bo=new ByteArrayOutputStream();
+		byte b[]=new byte[1024];
+		try(InputStream in=ex.getRequestBody())
+		{
+			int n;
+			while((n=in.read(b))>0)
+				bo.write(b,0,n);
+		}
+		return bo.toString("UTF-8");
+	}
+
+	private static String error(int type,String address,String description)
+	{
+		JsonObject err=new JsonObject();
+		err.add("type",type);
+		err.add("address",address);
+		err.add("description",description);
+		return "["+new JsonObject().add("error",err)+"]";
+	}
+
+	private synchronized String register()
+	{
+		long now=System.nanoTime();
+		if(username==null)
+		{
+			if(firstRegistration==0)
+				firstRegistration=now;
+			if((now-firstRegistration)/1000000<opts.linkDelay)
+				return error(ERROR_LINK_BUTTON,"","link button not pressed");
+		}
+		username=USERNAME;
+		return "[{\"success\":{\"username\":\""+USERNAME+"\"}}]";
+	}
+
+	/*
+	 * The full state, as polled by the SDK on connect and with its full config heartbeat
+	 */
+	private String fullState()
+	{
+		return "{\"lights\":"+get("lights")+",\"groups\":"+get("groups")+",\"scenes\":"+get("scenes")
+			+",\"config\":"+get("config")+",\"schedules\":{},\"sensors\":{},\"rules\":{},\"resourcelinks\":{}}";
+	}
+
+	private String get(String type)
+	{
+		if("config".equals(type))
+		{
+			// The SDK sends all further requests to this address, and fails to parse an empty whitelist
+			return "{\"name\":\"Simulator\",\"bridgeid\":\"SIMULATOR\",\"modelid\":\"BSB002\",\"mac\":\"00:17:88:00:00:00\""
+				+",\"ipaddress\":\""+getAddress()+"\",\"apiversion\":\"1.50.0\",\"swversion\":\"1950207110\""
+				+",\"whitelist\":{\""+USERNAME+"\":{\"last use date\":\"2020-01-01T00:00:00\",\"create date\":\"2020-01-01T00:00:00\",\"name\":\"hue2mqtt\"}}}";
+		}
+		StringBuilder sb=new StringBuilder();
+		sb.append('{');
+		if("lights".equals(type))
+		{
+			for(int ix=0;ix<lights.length;ix++)
+			{
+				Light l=lights[ix];
+				if(ix>0)
+					sb.append(',');
+				synchronized(l)
+				{
+					sb.append("\"").append(ix+1).append("\":{\"state\":{\"on\":").append(l.on)
+						.append(",\"bri\":").append(l.bri)
+						.append(",\"hue\":8402,\"sat\":140,\"effect\":\"none\",\"xy\":[").append(l.x).append(',').append(l.y)
+						.append("],\"ct\":").append(l.ct)
+						.append(",\"alert\":\"none\",\"colormode\":\"ct\",\"mode\":\"homeautomation\",\"reachable\":true}")
+						.append(",\"type\":\"Extended color light\",\"name\":\"Light ").append(ix+1)
+						.append("\",\"modelid\":\"LCT015\",\"manufacturername\":\"Signify Netherlands B.V.\"")
+						.append(",\"swversion\":\"1.50.2_r30933\",\"uniqueid\":\"00:17:88:01:00:00:00:").append(ix%100).append("-0b\"}");
+				}
+			}
+		}
+		else if("groups".equals(type))
+		{
+			for(int g=0;g<opts.groups;g++)
+			{
+				if(g>0)
+					sb.append(',');
+				sb.append("\"").append(g+1).append("\":{\"name\":\"Group ").append(g+1).append("\",\"lights\":[");
+				boolean first=true;
+				for(int ix:groupMembers(g))
+				{
+					if(!first)
+						sb.append(',');
+					first=false;
+					sb.append("\"").append(ix+1).append("\"");
+				}
+				sb.append("],\"type\":\"Room\",\"action\":{\"on\":true,\"bri\":254}}");
+			}
+		}
+		else if("scenes".equals(type))
+		{
+			for(int g=0;g<opts.groups;g++)
+			{
+				if(g>0)
+					sb.append(',');
+				sb.append("\"scene").append(g+1).append("\":{\"name\":\"Scene ").append(g+1).append("\",\"lights\":[");
+				boolean first=true;
+				for(int ix:groupMembers(g))
+				{
+					if(!first)
+						sb.append(',');
+					first=false;
+					sb.append("\"").append(ix+1).append("\"");
+				}
+				sb.append("]}");
+			}
+		}
+		sb.append('}');
+		return sb.toString();
+	}
+
+	/*
+	 * Lights are spread evenly over the groups
+	 */
+	private List<Integer> groupMembers(int group)
+	{
+		List<Integer> members=new ArrayList<>();
+		for(int ix=group;ix<lights.length;ix+=opts.groups)
+			members.add(Integer.valueOf(ix));
+		return members;
+	}
+
+	private synchronized boolean takeToken()
+	{
+		if(opts.rate<=0)
+			return true;
+		long now=System.nanoTime();
+		tokens=Math.min(opts.rate,tokens+(now-lastRefill)*opts.rate/1e9);
+		lastRefill=now;
+		if(tokens<1)
+			return false;
+		tokens--;
+		return true;
+	}
+
+	private String command(String type,String id,JsonObject state)
+	{
+		commands.incrementAndGet();
+		String address="/"+type+"/"+id;
+		if(!takeToken() || random.nextDouble()<opts.errors)
+		{
+			rejected.incrementAndGet();
+			return error(ERROR_INTERNAL,address,"Internal error, 503");
+		}
+		List<Integer> targets;
+		if("lights".equals(type))
+		{
+			int ix=Integer.parseInt(id)-1;
+			if(ix<0 || ix>=lights.length)
+				return error(3,address,"resource, "+address+", not available");
+			targets=Collections.singletonList(Integer.valueOf(ix));
+		}
+		else if("groups".equals(type))
+		{
+			int g=Integer.parseInt(id);
+			if(g==0)
+			{
+				targets=new ArrayList<>();
+				for(int ix=0;ix<lights.length;ix++)
+					targets.add(Integer.valueOf(ix));
+			}
+			else if(g<=opts.groups)
+				targets=groupMembers(g-1);
+			else
+				return error(3,address,"resource, "+address+", not available");
+		}
+		else
+			return error(3,address,"resource, "+address+", not available");
+		// A scene recall changes nothing we track
+		if(state.get("scene")==null)
+		{
+			for(Integer ix:targets)
+				apply(ix.intValue(),state);
+		}
+		StringBuilder sb=new StringBuilder();
+		sb.append('[');
+		for(JsonObject.Member m:state)
+		{
+			if(sb.length()>1)
+				sb.append(',');
+			sb.append("{\"success\":{\""+address+"/"+m.getName()+"\":"+m.getValue()+"}}");
+		}
+		sb.append(']');
+		return sb.toString();
+	}
+
+	private void apply(int index,JsonObject state)
+	{
+		Light l=lights[index];
+		synchronized(l)
+		{
+			JsonValue v;
+			if((v=state.get("on"))!=null)
+				l.on=v.asBoolean();
+			if((v=state.get("bri"))!=null)
+				l.bri=v.asInt();
+			if((v=state.get("ct"))!=null)
+				l.ct=v.asInt();
+			if((v=state.get("xy"))!=null)
+			{
+				l.x=v.asArray().get(0).asFloat();
+				l.y=v.asArray().get(1).asFloat();
+			}
+		}
+		Listener li=listener;
+		if(li!=null)
+			li.commandReceived(index,state);
+	}
+
+	private void handleEvents(HttpExchange ex) throws IOException
+	{
+		if(inOutage() || !String.valueOf(username).equals(ex.getRequestHeaders().getFirst("hue-application-key")))
+		{
+			ex.sendResponseHeaders(403,-1);
+			ex.close();
+			return;
+		}
+		ex.getResponseHeaders().set("Content-Type","text/event-stream");
+		ex.sendResponseHeaders(200,0);
+		OutputStream out=ex.getResponseBody();
+		synchronized(out)
+		{
+			out.write(": hi\n\n".getBytes(StandardCharsets.UTF_8));
+			out.flush();
+		}
+		eventClients.add(out);
+		// Keep the exchange open; changes are written by changeLight(), keep-alives here
+		try
+		{
+			while(eventClients.contains(out))
+			{
+				Thread.sleep(10000);
+				synchronized(out)
+				{
+					out.write(": keep-alive\n\n".getBytes(StandardCharsets.UTF_8));
+					out.flush();
+				}
+			}
+		}
+		catch(InterruptedException|IOException e)
+		{
+			/* Client is gone */
+		}
+		eventClients.remove(out);
+		ex.close();
+	}
+
+	private static final Logger L=Logger.getLogger(BridgeSimulator.class.getName());
+}
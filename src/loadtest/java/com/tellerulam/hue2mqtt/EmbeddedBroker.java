@@ -0,0 +1,355 @@
+/*
+ * Minimal in-process MQTT 3.1/3.1.1 broker for the load harness.
+ *
+ * Supports what hue2mqtt and the load generator use: clean sessions, subscriptions with
+ * + and # wildcards, retained messages, wills and keep-alive pings. Inbound QoS 1 and 2
+ * publishes are acknowledged, but all messages are delivered to subscribers with QoS 0,
+ * which is enough on a loopback connection.
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+public class EmbeddedBroker
+{
+	private static final int CONNECT=1;
+	private static final int CONNACK=2;
+	private static final int PUBLISH=3;
+	private static final int PUBACK=4;
+	private static final int PUBREC=5;
+	private static final int PUBREL=6;
+	private static final int PUBCOMP=7;
+	private static final int SUBSCRIBE=8;
+	private static final int SUBACK=9;
+	private static final int UNSUBSCRIBE=10;
+	private static final int UNSUBACK=11;
+	private static final int PINGREQ=12;
+	private static final int PINGRESP=13;
+	private static final int DISCONNECT=14;
+
+	private final ServerSocket server;
+	private final Set<Client> clients=new CopyOnWriteArraySet<>();
+	private final Map<String,byte[]> retained=new ConcurrentHashMap<>();
+	private volatile boolean running=true;
+
+	private class Client implements Runnable
+	{
+		final Socket socket;
+		final DataInputStream in;
+		final OutputStream out;
+		final List<String> subscriptions=new CopyOnWriteArrayList<>();
+		String clientID;
+		String willTopic;
+		byte willPayload[];
+		boolean willRetain;
+
+		Client(Socket socket) throws IOException
+		{
+			this.socket=socket;
+			socket.setTcpNoDelay(true);
+			in=new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out=new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		@Override
+		public void run()
+		{
+			boolean clean=false;
+			try
+			{
+				for(;;)
+				{
+					int header=in.read();
+					if(header<0)
+						break;
+					byte body[]=new byte[readLength()];
+					in.readFully(body);
+					if(!handle(header>>4,header&0x0f,body))
+					{
+						clean=true;
+						break;
+					}
+				}
+			}
+			catch(IOException e)
+			{
+				/* Connection broken, treated as unclean */
+			}
+			clients.remove(this);
+			try
+			{
+				socket.close();
+			}
+			catch(IOException e)
+			{
+				/* Ignore */
+			}
+			if(!clean && willTopic!=null)
+				publish(willTopic,willPayload,willRetain);
+		}
+
+		private int readLength() throws IOException
+		{
+			int len=0,shift=0,b;
+			do
+			{
+				b=in.readUnsignedByte();
+				len|=(b&0x7f)<<shift;
+				shift+=7;
+			}
+			while((b&0x80)!=0);
+			return len;
+		}
+
+		/*
+		 * Handle one packet. Returns false on DISCONNECT
+		 */
+		private boolean handle(int type,int flags,byte body[]) throws IOException
+		{
+			DataInputStream b=new DataInputStream(new ByteArrayInputStream(body));
+			switch(type)
+			{
+				case CONNECT:
+				{
+					readString(b);
+					b.readUnsignedByte();
+					int cflags=b.readUnsignedByte();
+					b.readUnsignedShort();
+					clientID=readString(b);
+					if((cflags&0x04)!=0)
+					{
+						willTopic=readString(b);
+						willPayload=new byte[b.readUnsignedShort()];
+						b.readFully(willPayload);
+						willRetain=(cflags&0x20)!=0;
+					}
+					// A client with the same ID takes over
+					for(Client c:clients)
+					{
+						if(c.clientID!=null && c.clientID.equals(clientID) && c!=this)
+							c.close();
+					}
+					send(CONNACK<<4,new byte[]{0,0});
+					break;
+				}
+				case PUBLISH:
+				{
+					int qos=(flags>>1)&3;
+					String topic=readString(b);
+					int id=qos>0?b.readUnsignedShort():0;
+					byte payload[]=new byte[b.available()];
+					b.readFully(payload);
+					publish(topic,payload,(flags&1)!=0);
+					if(qos==1)
+						send(PUBACK<<4,packetID(id));
+					else if(qos==2)
+						send(PUBREC<<4,packetID(id));
+					break;
+				}
+				case PUBREL:
+					send(PUBCOMP<<4,packetID(b.readUnsignedShort()));
+					break;
+				case PUBACK:
+				case PUBREC:
+				case PUBCOMP:
+					/* We only send QoS 0 */
+					break;
+				case SUBSCRIBE:
+				{
+					int id=b.readUnsignedShort();
+					List<String> topics=new ArrayList<>();
+					while(b.available()>0)
+					{
+						topics.add(readString(b));
+						b.readUnsignedByte();
+					}
+					byte ack[]=new byte[2+topics.size()];
+					System.arraycopy(packetID(id),0,ack,0,2);
+					send((SUBACK<<4),ack);
+					subscriptions.addAll(topics);
+					for(Map.Entry<String,byte[]> me:retained.entrySet())
+					{
+						for(String filter:topics)
+						{
+							if(matches(filter,me.getKey()))
+							{
+								deliver(me.getKey(),me.getValue(),true);
+								break;
+							}
+						}
+					}
+					break;
+				}
+				case UNSUBSCRIBE:
+				{
+					int id=b.readUnsignedShort();
+					while(b.available()>0)
+						subscriptions.remove(readString(b));
+					send(UNSUBACK<<4,packetID(id));
+					break;
+				}
+				case PINGREQ:
+					send(PINGRESP<<4,new byte[0]);
+					break;
+				case DISCONNECT:
+					return false;
+				default:
+					throw new IOException("Unsupported packet type "+type);
+			}
+			return true;
+		}
+
+		void deliver(String topic,byte payload[],boolean retain)
+		{
+			byte t[]=topic.getBytes(StandardCharsets.UTF_8);
+			byte body[]=new byte[2+t.length+payload.length];
+			body[0]=(byte)(t.length>>8);
+			body[1]=(byte)t.length;
+			System.arraycopy(t,0,body,2,t.length);
+			System.arraycopy(payload,0,body,2+t.length,payload.length);
+			try
+			{
+				send((PUBLISH<<4)|(retain?1:0),body);
+			}
+			catch(IOException e)
+			{
+				close();
+			}
+		}
+
+		synchronized void send(int header,byte body[]) throws IOException
+		{
+			out.write(header);
+			int len=body.length;
+			do
+			{
+				int d=len&0x7f;
+				len>>>=7;
+				out.write(len>0?d|0x80:d);
+			}
+			while(len>0);
+			out.write(body);
+			out.flush();
+		}
+
+		void close()
+		{
+			try
+			{
+				socket.close();
+			}
+			catch(IOException e)
+			{
+				/* Ignore */
+			}
+		}
+	}
+
+	private static String readString(DataInputStream b) throws IOException
+	{
+		byte s[]=new byte[b.readUnsignedShort()];
+		b.readFully(s);
+		return new String(s,StandardCharsets.UTF_8);
+	}
+
+	private static byte[] packetID(int id)
+	{
+		return new byte[]{(byte)(id>>8),(byte)id};
+	}
+
+	static boolean matches(String filter,String topic)
+	{
+		String f[]=filter.split("/",-1);
+		String t[]=topic.split("/",-1);
+		for(int ix=0;ix<f.length;ix++)
+		{
+			if("#".equals(f[ix]))
+				return true;
+			if(ix>=t.length)
+				return false;
+			if(!"+".equals(f[ix]) && !f[ix].equals(t[ix]))
+				return false;
+		}
+		return f.length==t.length;
+	}
+
+	void publish(String topic,byte payload[],boolean retain)
+	{
+		if(retain)
+		{
+			if(payload.length==0)
+				retained.remove(topic);
+			else
+				retained.put(topic,payload);
+		}
+		for(Client c:clients)
+		{
+			for(String filter:c.subscriptions)
+			{
+				if(matches(filter,topic))
+				{
+					c.deliver(topic,payload,false);
+					break;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Listen on the given port on the loopback interface. 0 selects a free port
+	 */
+	EmbeddedBroker(int port) throws IOException
+	{
+		server=new ServerSocket(port,50,InetAddress.getLoopbackAddress());
+		Thread t=new Thread(new Runnable(){
+			@Override
+			public void run()
+			{
+				acceptLoop();
+			}
+		},"broker accept");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void acceptLoop()
+	{
+		while(running)
+		{
+			try
+			{
+				Client c=new Client(server.accept());
+				clients.add(c);
+				Thread t=new Thread(c,"broker client "+c.socket.getPort());
+				t.setDaemon(true);
+				t.start();
+			}
+			catch(IOException e)
+			{
+				if(running)
+					L.log(Level.WARNING,"Error accepting MQTT connection",e);
+			}
+		}
+	}
+
+	String getURI()
+	{
+		return "tcp://127.0.0.1:"+server.getLocalPort();
+	}
+
+	void stop() throws IOException
+	{
+		running=false;
+		server.close();
+		for(Client c:clients)
+			c.close();
+	}
+
+	private static final Logger L=Logger.getLogger(EmbeddedBroker.class.getName());
+}
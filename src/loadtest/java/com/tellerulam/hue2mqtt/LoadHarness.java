@@ -0,0 +1,296 @@
+/*
+ * End-to-end load test of hue2mqtt against a simulated bridge and an embedded broker.
+ *
+ * hue2mqtt runs in-process in direct mode or with the Hue SDK, with the real MQTTHandler,
+ * HueHandler and HueBridge.
+ * A generator client publishes brightness sets at a fixed rate to random lights, while the
+ * simulator changes random lights "externally" at another rate. Two latencies are measured:
+ *
+ *   set_to_bridge     from publishing a set until the command arrives at the bridge
+ *   change_to_status  from a change on the bridge until its status message arrives
+ *
+ * Sets use brightness 1..127 and external changes 128..254, so the status messages caused by
+ * changes can be told apart. Sets and changes which were superseded before arriving are counted,
+ * but not measured. The result is printed as JSON, so runs of different releases can be compared.
+ *
+ * Arguments are property definitions without the hue2mqtt prefix, like for Main. Options of the
+ * harness itself are in the loadtest namespace; all others configure hue2mqtt, e.g.
+ *
+ *   loadtest.lights=200 loadtest.rate=50 ratelimit.lights=20 rest.events=true
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+import org.eclipse.paho.client.mqttv3.*;
+import org.eclipse.paho.client.mqttv3.persist.*;
+
+import com.eclipsesource.json.*;
+import com.philips.lighting.hue.sdk.*;
+
+public class LoadHarness
+{
+	private final BridgeSimulator sim;
+	private final int lights;
+	private final Random random=new Random();
+
+	/* Pending sets and changes by light and brightness, with the time they were made */
+	private final Map<Integer,Long> pendingSets=new ConcurrentHashMap<>();
+	private final Map<Integer,Long> pendingChanges=new ConcurrentHashMap<>();
+
+	private final LatencyHistogram setToBridge=new LatencyHistogram();
+	private final LatencyHistogram changeToStatus=new LatencyHistogram();
+	private final AtomicLong setsSent=new AtomicLong(),setsArrived=new AtomicLong();
+	private final AtomicLong changesMade=new AtomicLong(),changesPublished=new AtomicLong();
+
+	/* Only measured after the warmup */
+	private volatile boolean measuring;
+
+	private LoadHarness(BridgeSimulator sim,int lights)
+	{
+		this.sim=sim;
+		this.lights=lights;
+	}
+
+	private static int key(int light,int bri)
+	{
+		return light<<8|bri;
+	}
+
+	private void setArrived(int light,JsonObject state)
+	{
+		JsonValue bri=state.get("bri");
+		if(bri==null)
+			return;
+		Long sent=pendingSets.remove(Integer.valueOf(key(light,bri.asInt())));
+		if(sent!=null && measuring)
+		{
+			setToBridge.recordSince(sent.longValue());
+			setsArrived.incrementAndGet();
+		}
+	}
+
+	private void statusArrived(String topic,MqttMessage msg)
+	{
+		int ix=topic.lastIndexOf("Light ");
+		if(ix<0)
+			return;
+		JsonValue val=Json.parse(new String(msg.getPayload())).asObject().get("val");
+		if(val==null)
+			return;
+		int light=Integer.parseInt(topic.substring(ix+6))-1;
+		Long changed=pendingChanges.remove(Integer.valueOf(key(light,val.asInt())));
+		if(changed!=null && measuring)
+		{
+			changeToStatus.recordSince(changed.longValue());
+			changesPublished.incrementAndGet();
+		}
+	}
+
+	private void sendSet(IMqttAsyncClient client,String setPrefix) throws MqttException
+	{
+		int light=random.nextInt(lights);
+		int bri=1+random.nextInt(127);
+		pendingSets.put(Integer.valueOf(key(light,bri)),Long.valueOf(System.nanoTime()));
+		if(measuring)
+			setsSent.incrementAndGet();
+		client.publish(setPrefix+"Light "+(light+1),String.valueOf(bri).getBytes(),0,false);
+	}
+
+	private void makeChange()
+	{
+		int light=random.nextInt(lights);
+		int bri=128+random.nextInt(127);
+		pendingChanges.put(Integer.valueOf(key(light,bri)),Long.valueOf(System.nanoTime()));
+		if(measuring)
+			changesMade.incrementAndGet();
+		sim.changeLight(light,bri);
+	}
+
+	/*
+	 * Run something at the given rate per second on the executor
+	 */
+	private static ScheduledFuture<?> atRate(ScheduledExecutorService ses,double rate,Runnable r)
+	{
+		if(rate<=0)
+			return null;
+		long period=(long)(1e9/rate);
+		return ses.scheduleAtFixedRate(r,period,period,TimeUnit.NANOSECONDS);
+	}
+
+	private static String opt(String name,String def)
+	{
+		return System.getProperty("hue2mqtt.loadtest."+name,def);
+	}
+
+	private static int intOpt(String name,int def)
+	{
+		return Integer.parseInt(opt(name,String.valueOf(def)));
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		for(String s:args)
+		{
+			String sp[]=s.split("=",2);
+			if(sp.length!=2)
+			{
+				System.out.println("Invalid argument (no '='): "+s);
+				System.exit(1);
+			}
+			System.setProperty("hue2mqtt."+sp[0],sp[1]);
+		}
+		Logger.getLogger("com.tellerulam.hue2mqtt").setLevel(Level.parse(opt("loglevel","WARNING")));
+
+		BridgeSimulator.Options so=new BridgeSimulator.Options();
+		so.lights=intOpt("lights",200);
+		so.groups=intOpt("groups",10);
+		so.latency=intOpt("bridge.latency",0);
+		so.rate=intOpt("bridge.rate",0);
+		so.errors=Double.parseDouble(opt("bridge.errors","0"));
+		so.linkDelay=intOpt("bridge.linkdelay",-1);
+		so.outageStart=intOpt("bridge.outage.start",0);
+		so.outageDuration=intOpt("bridge.outage.duration",0);
+		double setRate=Double.parseDouble(opt("rate","50"));
+		double changeRate=Double.parseDouble(opt("changes","5"));
+		boolean sdk="sdk".equals(opt("backend","rest"));
+		int warmup=intOpt("warmup",5);
+		int duration=intOpt("duration",30);
+
+		EmbeddedBroker broker=new EmbeddedBroker(0);
+		BridgeSimulator sim=new BridgeSimulator(so);
+		final LoadHarness lh=new LoadHarness(sim,so.lights);
+		sim.setListener(new BridgeSimulator.Listener(){
+			@Override
+			public void commandReceived(int light,JsonObject state)
+			{
+				lh.setArrived(light,state);
+			}
+		});
+
+		// hue2mqtt with the simulated bridge registered as if it was discovered
+		System.setProperty("hue2mqtt.mqtt.server",broker.getURI());
+		if(sdk)
+			System.clearProperty("hue2mqtt.backend");
+		else
+			System.setProperty("hue2mqtt.backend","rest");
+		if(Boolean.getBoolean("hue2mqtt.rest.events") && System.getProperty("hue2mqtt.rest.events.tls")==null)
+			System.setProperty("hue2mqtt.rest.events.tls","false");
+		MQTTHandler.init();
+		PHAccessPoint pap=new PHAccessPoint();
+		pap.setIpAddress(sim.getAddress());
+		pap.setBridgeId("simulator");
+		pap.setUsername(sim.getUsername());
+		HueBridge hb=new HueBridge(sdk?HueHandler.initSDK():null,pap,HueHandler.isNamespaced());
+		HueHandler.addBridge(hb);
+		long connectStart=System.nanoTime();
+		hb.connect();
+		while(!hb.isConnected())
+		{
+			if(System.nanoTime()-connectStart>120*1000000000L)
+			{
+				System.out.println("Unable to connect to the simulated bridge");
+				System.exit(2);
+			}
+			Thread.sleep(10);
+		}
+		long connectMillis=(System.nanoTime()-connectStart)/1000000;
+		// What the SDK reports if the bridge search finds nothing. hue2mqtt must carry on with the known bridge
+		if(Boolean.parseBoolean(opt("bridge.notfound","false")))
+			new HueHandler().onError(PHMessageType.BRIDGE_NOT_FOUND,"No bridge found");
+
+		// The generator
+		String prefix=System.getProperty("hue2mqtt.mqtt.topic","hue");
+		if(!prefix.endsWith("/"))
+			prefix+="/";
+		final String setPrefix=prefix+(HueHandler.isNamespaced()?hb.getKey()+"/":"")+"set/lights/";
+		final MqttAsyncClient client=new MqttAsyncClient(broker.getURI(),"loadgen",new MemoryPersistence());
+		client.setCallback(new MqttCallback(){
+			@Override
+			public void messageArrived(String topic,MqttMessage msg)
+			{
+				lh.statusArrived(topic,msg);
+			}
+			@Override
+			public void deliveryComplete(IMqttDeliveryToken token)
+			{
+				/* Not needed */
+			}
+			@Override
+			public void connectionLost(Throwable t)
+			{
+				L.log(Level.SEVERE,"Load generator lost connection to broker",t);
+			}
+		});
+		MqttConnectOptions copts=new MqttConnectOptions();
+		client.connect(copts).waitForCompletion();
+		client.subscribe(prefix+"status/lights/#",0).waitForCompletion();
+
+		ScheduledExecutorService ses=Executors.newScheduledThreadPool(2);
+		atRate(ses,setRate,new Runnable(){
+			@Override
+			public void run()
+			{
+				try
+				{
+					lh.sendSet(client,setPrefix);
+				}
+				catch(MqttException e)
+				{
+					L.log(Level.WARNING,"Unable to publish set",e);
+				}
+			}
+		});
+		atRate(ses,changeRate,new Runnable(){
+			@Override
+			public void run()
+			{
+				lh.makeChange();
+			}
+		});
+		Thread.sleep(warmup*1000L);
+		lh.measuring=true;
+		// Histograms of hue2mqtt start with this interval
+		Metrics.report();
+		Thread.sleep(duration*1000L);
+		ses.shutdownNow();
+		// Let the last sets and changes settle
+		Thread.sleep(2000);
+		lh.measuring=false;
+
+		JsonObject config=new JsonObject();
+		config.add("lights",so.lights);
+		config.add("groups",so.groups);
+		config.add("rate",setRate);
+		config.add("changes",changeRate);
+		config.add("duration",duration);
+		config.add("backend",sdk?"sdk":"rest");
+		config.add("bridge_latency",so.latency);
+		config.add("bridge_rate",so.rate);
+		config.add("bridge_errors",so.errors);
+		config.add("events",Boolean.getBoolean("hue2mqtt.rest.events"));
+		JsonObject report=new JsonObject();
+		report.add("config",config);
+		report.add("connect_ms",connectMillis);
+		report.add("sets_sent",lh.setsSent.get());
+		report.add("sets_arrived",lh.setsArrived.get());
+		report.add("set_to_bridge",lh.setToBridge.intervalSnapshot().toJson());
+		report.add("changes_made",lh.changesMade.get());
+		report.add("changes_published",lh.changesPublished.get());
+		report.add("change_to_status",lh.changeToStatus.intervalSnapshot().toJson());
+		report.add("bridge",sim.report());
+		report.add("metrics",Metrics.report());
+		System.out.println(report.toString(WriterConfig.PRETTY_PRINT));
+
+		client.disconnect().waitForCompletion();
+		sim.stop();
+		broker.stop();
+		System.exit(0);
+	}
+
+	private static final Logger L=Logger.getLogger(LoadHarness.class.getName());
+}
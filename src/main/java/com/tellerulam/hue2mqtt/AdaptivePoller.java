@@ -0,0 +1,239 @@
+/*
+ * Activity driven polling of a bridge.
+ *
+ * Lights, groups (which are only available with the full configuration) and scenes
+ * are polled with separate heartbeats -- those of the SDK, or those of the direct REST
+ * client. After activity -- commands being sent or
+ * changes being detected -- all heartbeats run at their minimum interval. Once there
+ * was no activity for the active period, each interval doubles after every period,
+ * up to its maximum.
+ *
+ * The number of heartbeat periods spent at each interval is counted, for tuning.
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+import com.eclipsesource.json.*;
+import com.philips.lighting.hue.sdk.heartbeat.*;
+import com.philips.lighting.model.*;
+
+public class AdaptivePoller
+{
+	/*
+	 * What actually polls the bridge. Each call (re)starts the respective poll with the given interval
+	 */
+	interface Heartbeats
+	{
+		void enableLights(long interval);
+		void enableGroups(long interval);
+		void enableScenes(long interval);
+		/* Not adaptive: sensors are polled at a fixed interval, see HueBridge */
+		void enableSensors(long interval);
+	}
+
+	/*
+	 * Heartbeats of the SDK's heartbeat manager
+	 */
+	static Heartbeats forSDK(final PHBridge b)
+	{
+		return new Heartbeats(){
+			@Override
+			public void enableLights(long interval)
+			{
+				PHHeartbeatManager.getInstance().enableLightsHeartbeat(b,interval);
+			}
+			@Override
+			public void enableGroups(long interval)
+			{
+				PHHeartbeatManager.getInstance().enableFullConfigHeartbeat(b,interval);
+			}
+			@Override
+			public void enableScenes(long interval)
+			{
+				PHHeartbeatManager.getInstance().enableScenesHeartbeat(b,interval);
+			}
+			@Override
+			public void enableSensors(long interval)
+			{
+				PHHeartbeatManager.getInstance().enableSensorsHeartbeat(b,interval);
+			}
+			@Override
+			public String toString()
+			{
+				return b.toString();
+			}
+		};
+	}
+
+	private enum Kind
+	{
+		LIGHTS(1000,10000),
+		GROUPS(10000,60000),
+		SCENES(30000,300000);
+
+		final long defaultMin,defaultMax;
+
+		private Kind(long defaultMin,long defaultMax)
+		{
+			this.defaultMin=defaultMin;
+			this.defaultMax=defaultMax;
+		}
+	}
+
+	private class Poll implements Runnable
+	{
+		final Kind kind;
+		final String name;
+		final long min,max;
+		volatile long current;
+		ScheduledFuture<?> future;
+		/* Heartbeat periods spent at each interval */
+		final Map<Long,Long> counts=new TreeMap<>();
+
+		Poll(Kind kind)
+		{
+			this.kind=kind;
+			this.name=kind.name().toLowerCase();
+			this.min=Long.getLong("hue2mqtt.poll."+name+".min",kind.defaultMin).longValue();
+			this.max=Math.max(min,Long.getLong("hue2mqtt.poll."+name+".max",kind.defaultMax).longValue());
+			this.current=min;
+		}
+
+		@Override
+		public void run()
+		{
+			synchronized(AdaptivePoller.this)
+			{
+				// Stopped in the meantime
+				if(future==null)
+					return;
+				Long c=counts.get(Long.valueOf(current));
+				counts.put(Long.valueOf(current),Long.valueOf(c!=null?c.longValue()+1:1));
+				if(System.currentTimeMillis()-lastActivity>activePeriod && current<max)
+				{
+					current=Math.min(current*2,max);
+					L.fine("Idle, polling "+name+" of "+bridge+" every "+current+"ms");
+					enable(this);
+				}
+				reschedule(this);
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Poll "+name+" of "+bridge;
+		}
+	}
+
+	private final Poll polls[];
+	private final long activePeriod;
+	private volatile long lastActivity=System.currentTimeMillis();
+	private Heartbeats bridge;
+
+	public AdaptivePoller()
+	{
+		activePeriod=Long.getLong("hue2mqtt.poll.active",30000).longValue();
+		polls=new Poll[Kind.values().length];
+		for(Kind k:Kind.values())
+			polls[k.ordinal()]=new Poll(k);
+	}
+
+	private void enable(Poll p)
+	{
+		switch(p.kind)
+		{
+			case LIGHTS:
+				bridge.enableLights(p.current);
+				break;
+			case GROUPS:
+				bridge.enableGroups(p.current);
+				break;
+			case SCENES:
+				bridge.enableScenes(p.current);
+				break;
+		}
+	}
+
+	private void reschedule(Poll p)
+	{
+		if(p.future!=null)
+			p.future.cancel(false);
+		p.future=Scheduler.schedule(Scheduler.Lane.LOOP,p,p.current);
+	}
+
+	synchronized void start(Heartbeats b)
+	{
+		bridge=b;
+		lastActivity=System.currentTimeMillis();
+		for(Poll p:polls)
+		{
+			p.current=p.min;
+			enable(p);
+			reschedule(p);
+		}
+	}
+
+	synchronized void stop()
+	{
+		for(Poll p:polls)
+		{
+			if(p.future!=null)
+				p.future.cancel(false);
+			p.future=null;
+		}
+	}
+
+	/*
+	 * Commands have been sent or changes have been detected. Cheap if we are already active
+	 */
+	void activity()
+	{
+		lastActivity=System.currentTimeMillis();
+		for(Poll p:polls)
+		{
+			if(p.current!=p.min)
+			{
+				speedUp();
+				break;
+			}
+		}
+	}
+
+	private synchronized void speedUp()
+	{
+		if(bridge==null)
+			return;
+		for(Poll p:polls)
+		{
+			if(p.current==p.min || p.future==null)
+				continue;
+			p.current=p.min;
+			L.fine("Activity, polling "+p.name+" of "+bridge+" every "+p.current+"ms");
+			enable(p);
+			reschedule(p);
+		}
+	}
+
+	synchronized JsonObject toJson()
+	{
+		JsonObject jso=new JsonObject();
+		for(Poll p:polls)
+		{
+			JsonObject pj=new JsonObject();
+			pj.add("interval",p.current);
+			JsonObject counts=new JsonObject();
+			for(Map.Entry<Long,Long> me:p.counts.entrySet())
+				counts.add(me.getKey().toString(),me.getValue().longValue());
+			pj.add("counts",counts);
+			jso.add(p.name,pj);
+		}
+		return jso;
+	}
+
+	private static final Logger L=Logger.getLogger(AdaptivePoller.class.getName());
+}
@@ -0,0 +1,333 @@
+/*
+ * Minimal CBOR (RFC 7049) encoder and decoder for the binary payload option.
+ *
+ * Only what we need: maps, arrays, text strings, integers, floats, booleans and null,
+ * all with definite lengths. The encoder writes into a growable buffer, the decoder reads
+ * directly from the payload array, so no intermediate strings are created for values.
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.nio.charset.*;
+import java.util.*;
+
+import com.eclipsesource.json.*;
+import com.eclipsesource.json.JsonObject.Member;
+
+public class Cbor
+{
+	private static final int MAJOR_UINT=0;
+	private static final int MAJOR_NINT=1;
+	private static final int MAJOR_TEXT=3;
+	private static final int MAJOR_ARRAY=4;
+	private static final int MAJOR_MAP=5;
+	private static final int MAJOR_SIMPLE=7;
+
+	private static final int FALSE=0xf4;
+	private static final int TRUE=0xf5;
+	private static final int NULL=0xf6;
+	private static final int FLOAT16=0xf9;
+	private static final int FLOAT32=0xfa;
+	private static final int FLOAT64=0xfb;
+
+	/*
+	 * Whether the payload looks like a CBOR map. JSON text and plain values never start with these bytes
+	 */
+	static boolean isMap(byte[] payload)
+	{
+		return payload.length>0 && (payload[0]&0xff)>>5==MAJOR_MAP;
+	}
+
+	static class Writer
+	{
+		private byte buf[]=new byte[128];
+		private int len;
+
+		private void ensure(int n)
+		{
+			if(len+n>buf.length)
+				buf=Arrays.copyOf(buf,Math.max(buf.length*2,len+n));
+		}
+
+		private void header(int major,long val)
+		{
+			ensure(9);
+			int mt=major<<5;
+			if(val<24)
+				buf[len++]=(byte)(mt|val);
+			else if(val<=0xff)
+			{
+				buf[len++]=(byte)(mt|24);
+				buf[len++]=(byte)val;
+			}
+			else if(val<=0xffff)
+			{
+				buf[len++]=(byte)(mt|25);
+				buf[len++]=(byte)(val>>8);
+				buf[len++]=(byte)val;
+			}
+			else if(val<=0xffffffffL)
+			{
+				buf[len++]=(byte)(mt|26);
+				for(int s=24;s>=0;s-=8)
+					buf[len++]=(byte)(val>>s);
+			}
+			else
+			{
+				buf[len++]=(byte)(mt|27);
+				for(int s=56;s>=0;s-=8)
+					buf[len++]=(byte)(val>>s);
+			}
+		}
+
+		Writer map(int entries)
+		{
+			header(MAJOR_MAP,entries);
+			return this;
+		}
+
+		Writer array(int entries)
+		{
+			header(MAJOR_ARRAY,entries);
+			return this;
+		}
+
+		Writer text(String s)
+		{
+			// Most of our strings are ASCII, which we can copy without encoding
+			int n=s.length();
+			boolean ascii=true;
+			for(int ix=0;ix<n && ascii;ix++)
+				ascii=s.charAt(ix)<0x80;
+			if(!ascii)
+			{
+				byte b[]=s.getBytes(StandardCharsets.UTF_8);
+				header(MAJOR_TEXT,b.length);
+				ensure(b.length);
+				System.arraycopy(b,0,buf,len,b.length);
+				len+=b.length;
+				return this;
+			}
+			header(MAJOR_TEXT,n);
+			ensure(n);
+			for(int ix=0;ix<n;ix++)
+				buf[len++]=(byte)s.charAt(ix);
+			return this;
+		}
+
+		Writer integer(long val)
+		{
+			if(val>=0)
+				header(MAJOR_UINT,val);
+			else
+				header(MAJOR_NINT,-1-val);
+			return this;
+		}
+
+		Writer bool(boolean val)
+		{
+			ensure(1);
+			buf[len++]=(byte)(val?TRUE:FALSE);
+			return this;
+		}
+
+		Writer nul()
+		{
+			ensure(1);
+			buf[len++]=(byte)NULL;
+			return this;
+		}
+
+		Writer float32(float val)
+		{
+			ensure(5);
+			buf[len++]=(byte)FLOAT32;
+			int bits=Float.floatToIntBits(val);
+			for(int s=24;s>=0;s-=8)
+				buf[len++]=(byte)(bits>>s);
+			return this;
+		}
+
+		Writer float64(double val)
+		{
+			ensure(9);
+			buf[len++]=(byte)FLOAT64;
+			long bits=Double.doubleToLongBits(val);
+			for(int s=56;s>=0;s-=8)
+				buf[len++]=(byte)(bits>>s);
+			return this;
+		}
+
+		/*
+		 * Generic conversion of a JSON value. Numbers are encoded as integers if they are integral
+		 */
+		Writer value(JsonValue v)
+		{
+			if(v.isObject())
+			{
+				JsonObject o=v.asObject();
+				map(o.size());
+				for(Member m:o)
+				{
+					text(m.getName());
+					value(m.getValue());
+				}
+			}
+			else if(v.isArray())
+			{
+				JsonArray a=v.asArray();
+				array(a.size());
+				for(JsonValue e:a)
+					value(e);
+			}
+			else if(v.isString())
+				text(v.asString());
+			else if(v.isBoolean())
+				bool(v.asBoolean());
+			else if(v.isNumber())
+			{
+				double d=v.asDouble();
+				if(d==Math.rint(d) && Math.abs(d)<1e15)
+					integer((long)d);
+				else
+					float64(d);
+			}
+			else
+				nul();
+			return this;
+		}
+
+		byte[] toByteArray()
+		{
+			return Arrays.copyOf(buf,len);
+		}
+	}
+
+	static class Reader
+	{
+		private final byte buf[];
+		private int pos;
+
+		Reader(byte buf[])
+		{
+			this.buf=buf;
+		}
+
+		private int next()
+		{
+			if(pos>=buf.length)
+				throw new IllegalArgumentException("Truncated CBOR payload");
+			return buf[pos++]&0xff;
+		}
+
+		private long argument(int initial)
+		{
+			int info=initial&0x1f;
+			if(info<24)
+				return info;
+			int n;
+			switch(info)
+			{
+				case 24: n=1; break;
+				case 25: n=2; break;
+				case 26: n=4; break;
+				case 27: n=8; break;
+				default:
+					throw new IllegalArgumentException("Unsupported CBOR length encoding "+info);
+			}
+			long val=0;
+			for(int ix=0;ix<n;ix++)
+				val=(val<<8)|next();
+			return val;
+		}
+
+		private int expect(int major)
+		{
+			int initial=next();
+			if(initial>>5!=major)
+				throw new IllegalArgumentException("Expected CBOR major type "+major+", got "+(initial>>5));
+			return (int)argument(initial);
+		}
+
+		int readMap()
+		{
+			return expect(MAJOR_MAP);
+		}
+
+		String readText()
+		{
+			int n=expect(MAJOR_TEXT);
+			if(pos+n>buf.length)
+				throw new IllegalArgumentException("Truncated CBOR payload");
+			String s=new String(buf,pos,n,StandardCharsets.UTF_8);
+			pos+=n;
+			return s;
+		}
+
+		/*
+		 * Read any numeric or boolean value as a double
+		 */
+		double readNumber()
+		{
+			int initial=next();
+			switch(initial>>5)
+			{
+				case MAJOR_UINT:
+					return argument(initial);
+				case MAJOR_NINT:
+					return -1-argument(initial);
+				case MAJOR_SIMPLE:
+					switch(initial)
+					{
+						case FALSE:
+							return 0;
+						case TRUE:
+							return 1;
+						case FLOAT16:
+							return halfToFloat((int)argument(initial));
+						case FLOAT32:
+							return Float.intBitsToFloat((int)argument(initial));
+						case FLOAT64:
+							return Double.longBitsToDouble(argument(initial));
+					}
+					break;
+			}
+			throw new IllegalArgumentException("Expected a CBOR number, got initial byte "+initial);
+		}
+
+		boolean readBoolean()
+		{
+			int initial=buf[pos]&0xff;
+			if(initial==TRUE || initial==FALSE)
+			{
+				pos++;
+				return initial==TRUE;
+			}
+			return readNumber()!=0;
+		}
+
+		boolean isText()
+		{
+			return pos<buf.length && (buf[pos]&0xff)>>5==MAJOR_TEXT;
+		}
+
+		private static float halfToFloat(int h)
+		{
+			int exp=(h>>10)&0x1f;
+			int mant=h&0x3ff;
+			float val;
+			if(exp==0)
+				val=mant*(float)Math.pow(2,-24);
+			else if(exp==31)
+				val=mant==0?Float.POSITIVE_INFINITY:Float.NaN;
+			else
+				val=(mant+1024)*(float)Math.pow(2,exp-25);
+			return (h&0x8000)!=0?-val:val;
+		}
+	}
+
+	private Cbor()
+	{
+		/* Static utility methods only */
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * Collapses bursts of identical per-light commands into group commands.
+ *
+ * Many clients set a room by sending the same state to each of its lights individually.
+ * If enabled, light commands are held back for a short window. When the window expires,
+ * every group whose members all received the identical state during the window is sent
+ * one group command instead, largest groups first. All other held commands are passed on
+ * to the command scheduler unchanged.
+ *
+ * Batches of commands, e.g. from a bulk set, are collapsed the same way right away.
+ *
+ * Group and scene commands are not held. Held commands for their lights are passed on
+ * first, so that the scheduler receives them in the order they arrived.
+ *
+ * Only used on the event loop. The command scheduler hands the commands over to its
+ * dispatcher thread.
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+import com.philips.lighting.model.*;
+import com.philips.lighting.model.PHLight.PHLightAlertMode;
+import com.philips.lighting.model.PHLight.PHLightColorMode;
+import com.philips.lighting.model.PHLight.PHLightEffectMode;
+
+public class CommandCoalescer
+{
+	private static class Held
+	{
+		final PHLight light;
+		final PHLightState ls;
+		/* When the oldest of the merged commands arrived */
+		final long arrived;
+		String signature;
+
+		Held(PHLight light,PHLightState ls,long arrived)
+		{
+			this.light=light;
+			this.ls=ls;
+			this.arrived=arrived;
+			this.signature=signature(ls);
+		}
+	}
+
+	/* One command of a batch */
+	static class Command
+	{
+		final PHBridgeResource res;
+		final PHLightState ls;
+		final long arrived;
+
+		Command(PHBridgeResource res,PHLightState ls,long arrived)
+		{
+			this.res=res;
+			this.ls=ls;
+			this.arrived=arrived;
+		}
+	}
+
+	private final CommandScheduler scheduler;
+	private final long window;
+
+	/* Held commands by light ID, in arrival order */
+	private final LinkedHashMap<String,Held> held=new LinkedHashMap<>();
+	private boolean flushScheduled;
+
+	/* Groups by descending size, so that the largest complete group wins */
+	private List<PHGroup> groups=Collections.emptyList();
+
+	private final AtomicLong collapsed=new AtomicLong();
+
+	public CommandCoalescer(CommandScheduler scheduler)
+	{
+		this.scheduler=scheduler;
+		this.window=Integer.getInteger("hue2mqtt.coalesce.window",0).intValue();
+	}
+
+	private static final Comparator<PHGroup> bySizeDescending=new Comparator<PHGroup>(){
+		@Override
+		public int compare(PHGroup g1, PHGroup g2)
+		{
+			return g2.getLightIdentifiers().size()-g1.getLightIdentifiers().size();
+		}
+	};
+
+	void updateGroups(Collection<PHGroup> all)
+	{
+		List<PHGroup> l=new ArrayList<>(all.size());
+		for(PHGroup g:all)
+		{
+			if(g.getLightIdentifiers()!=null && g.getLightIdentifiers().size()>1)
+				l.add(g);
+		}
+		Collections.sort(l,bySizeDescending);
+		groups=l;
+	}
+
+	/*
+	 * arrived is the System.nanoTime() when the command arrived via MQTT
+	 */
+	void submit(PHBridgeResource res,boolean isGroup,PHLightState ls,long arrived)
+	{
+		if(window<=0 || isGroup || !(res instanceof PHLight))
+		{
+			if(window>0)
+				dispatch(takeOverlapping(held,res));
+			scheduler.submit(res,isGroup,ls,arrived);
+			return;
+		}
+		Held h=held.get(res.getIdentifier());
+		if(h!=null)
+		{
+			CommandScheduler.merge(h.ls,ls);
+			h.signature=signature(h.ls);
+		}
+		else
+		{
+			PHLightState copy=new PHLightState();
+			CommandScheduler.merge(copy,ls);
+			held.put(res.getIdentifier(),new Held((PHLight)res,copy,arrived));
+		}
+		if(flushScheduled)
+			return;
+		flushScheduled=true;
+		Scheduler.schedule(Scheduler.Lane.LOOP,new Runnable(){
+			@Override
+			public void run()
+			{
+				flush();
+			}
+		},window);
+	}
+
+	/*
+	 * Submit a batch of commands, collapsing light commands into group commands where possible.
+	 * Returns the number of collapsed light commands
+	 */
+	int submitBatch(List<Command> commands)
+	{
+		int n=0;
+		Map<String,Held> batch=new LinkedHashMap<>();
+		for(Command c:commands)
+		{
+			if(!(c.res instanceof PHLight))
+			{
+				Map<String,Held> older=takeOverlapping(held,c.res);
+				older.putAll(takeOverlapping(batch,c.res));
+				n+=dispatch(older);
+				scheduler.submit(c.res,true,c.ls,c.arrived);
+				continue;
+			}
+			Held h=batch.get(c.res.getIdentifier());
+			// A command still held from before the batch is older, and goes along with it
+			if(h==null)
+				h=held.remove(c.res.getIdentifier());
+			if(h!=null)
+			{
+				CommandScheduler.merge(h.ls,c.ls);
+				h.signature=signature(h.ls);
+				batch.put(c.res.getIdentifier(),h);
+			}
+			else
+			{
+				PHLightState copy=new PHLightState();
+				CommandScheduler.merge(copy,c.ls);
+				batch.put(c.res.getIdentifier(),new Held((PHLight)c.res,copy,c.arrived));
+			}
+		}
+		return n+dispatch(batch);
+	}
+
+	/*
+	 * Remove the commands for the lights affected by a group or scene command from the given ones
+	 */
+	private static Map<String,Held> takeOverlapping(Map<String,Held> from,PHBridgeResource res)
+	{
+		Map<String,Held> taken=new LinkedHashMap<>();
+		if(from.isEmpty())
+			return taken;
+		Collection<String> lights=CommandScheduler.lightsOf(res);
+		for(Iterator<Held> it=from.values().iterator();it.hasNext();)
+		{
+			Held h=it.next();
+			if(lights==null || lights.contains(h.light.getIdentifier()))
+			{
+				taken.put(h.light.getIdentifier(),h);
+				it.remove();
+			}
+		}
+		return taken;
+	}
+
+	private void flush()
+	{
+		Map<String,Held> batch=new LinkedHashMap<>(held);
+		held.clear();
+		flushScheduled=false;
+		dispatch(batch);
+	}
+
+	private int dispatch(Map<String,Held> batch)
+	{
+		int n=0;
+		if(batch.size()>1)
+		{
+			for(PHGroup g:groups)
+			{
+				List<String> members=g.getLightIdentifiers();
+				if(members.size()>batch.size())
+					continue;
+				String sig=null;
+				for(String id:members)
+				{
+					Held h=batch.get(id);
+					if(h==null || (sig!=null && !sig.equals(h.signature)))
+					{
+						sig=null;
+						break;
+					}
+					sig=h.signature;
+				}
+				if(sig==null)
+					continue;
+				PHLightState ls=batch.get(members.get(0)).ls;
+				long arrived=Long.MAX_VALUE;
+				for(String id:members)
+					arrived=Math.min(arrived,batch.remove(id).arrived);
+				collapsed.addAndGet(members.size());
+				n+=members.size();
+				L.fine("Collapsed "+members.size()+" light commands into one command for group "+g.getName());
+				scheduler.submit(g,true,ls,arrived);
+			}
+		}
+		for(Held h:batch.values())
+			scheduler.submit(h.light,false,h.ls,h.arrived);
+		return n;
+	}
+
+	/*
+	 * A canonical representation of all datapoints set in a light state
+	 */
+	static String signature(PHLightState ls)
+	{
+		StringBuilder sb=new StringBuilder();
+		sb.append(ls.isOn()).append(',');
+		sb.append(ls.getBrightness()).append(',').append(ls.getIncrementBri()).append(',');
+		sb.append(ls.getHue()).append(',').append(ls.getIncrementHue()).append(',');
+		sb.append(ls.getSaturation()).append(',').append(ls.getIncrementSat()).append(',');
+		sb.append(ls.getCt()).append(',').append(ls.getIncrementCt()).append(',');
+		sb.append(ls.getX()).append(',').append(ls.getIncrementX()).append(',');
+		sb.append(ls.getY()).append(',').append(ls.getIncrementY()).append(',');
+		sb.append(ls.getTransitionTime()).append(',');
+		if(ls.getAlertMode()!=PHLightAlertMode.ALERT_UNKNOWN)
+			sb.append(ls.getAlertMode());
+		sb.append(',');
+		if(ls.getEffectMode()!=PHLightEffectMode.EFFECT_UNKNOWN)
+			sb.append(ls.getEffectMode());
+		sb.append(',');
+		if(ls.getColorMode()!=PHLightColorMode.COLORMODE_UNKNOWN)
+			sb.append(ls.getColorMode());
+		return sb.toString();
+	}
+
+	public long getCollapsedCount()
+	{
+		return collapsed.get();
+	}
+
+	private static final Logger L=Logger.getLogger(CommandCoalescer.class.getName());
+}
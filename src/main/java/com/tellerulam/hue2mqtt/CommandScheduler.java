@@ -0,0 +1,511 @@
+/*
+ * Rate limiting command queue in front of the bridge.
+ *
+ * The bridge can only process about 10 light commands and 1 group command per second.
+ * Commands are queued per resource; a newer command for a resource which still has a
+ * pending command is merged into it (latest wins per datapoint), so a burst of updates
+ * e.g. from a dimmer slider collapses into one bridge call. Dispatch is paced by two
+ * token buckets, one for light and one for group commands. Scene recalls are group commands.
+ *
+ * A group command and the commands for its member lights are dispatched in the order they
+ * arrived, even though they are paced by different buckets: a command is held back while an
+ * older command for any of the same lights is still pending, and a pending command is no
+ * longer merged into once a newer command for an overlapping set of lights was queued behind it.
+ *
+ * While the bridge is not connected, the scheduler is paused and keeps accepting commands.
+ * On reconnect, the pending commands are replayed, paced by the token buckets. Commands
+ * which were last updated longer than the TTL ago are dropped and counted as expired.
+ *
+ * Commands are submitted on the event loop and sent on the dispatcher thread, as sending
+ * blocks until the bridge replied. The pending commands are the handoff between the two
+ * and are guarded by the scheduler's monitor.
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+import com.philips.lighting.model.*;
+import com.philips.lighting.model.PHLight.PHLightAlertMode;
+import com.philips.lighting.model.PHLight.PHLightColorMode;
+import com.philips.lighting.model.PHLight.PHLightEffectMode;
+
+public class CommandScheduler
+{
+	public interface Dispatcher
+	{
+		/*
+		 * arrived is the System.nanoTime() when the oldest of the merged commands arrived via MQTT
+		 */
+		void dispatch(PHBridgeResource res,PHLightState ls,long arrived);
+	}
+
+	private static class TokenBucket
+	{
+		private final double ratePerNano;
+		private final double capacity;
+		private double tokens;
+		private long lastRefill=System.nanoTime();
+
+		TokenBucket(double ratePerSecond,double capacity)
+		{
+			this.ratePerNano=ratePerSecond/1e9;
+			this.capacity=capacity;
+			this.tokens=capacity;
+		}
+
+		/*
+		 * Returns 0 if a token was taken, otherwise the number of nanoseconds
+		 * until the next token will be available
+		 */
+		long tryTake(long now)
+		{
+			tokens=Math.min(capacity,tokens+(now-lastRefill)*ratePerNano);
+			lastRefill=now;
+			if(tokens>=1)
+			{
+				tokens-=1;
+				return 0;
+			}
+			return (long)Math.ceil((1-tokens)/ratePerNano);
+		}
+	}
+
+	private static class PendingCommand
+	{
+		final String key;
+		final PHBridgeResource res;
+		final boolean isGroup;
+		final PHLightState ls;
+		/* The lights affected, null for all */
+		final Collection<String> lights;
+		/* When the first of the merged commands arrived via MQTT */
+		final long arrived;
+		/* When the command was last merged into */
+		long updated=System.nanoTime();
+
+		PendingCommand(String key,PHBridgeResource res,boolean isGroup,PHLightState ls,long arrived)
+		{
+			this.key=key;
+			this.res=res;
+			this.isGroup=isGroup;
+			this.ls=ls;
+			this.arrived=arrived;
+			this.lights=lightsOf(res);
+		}
+	}
+
+	private final Dispatcher dispatcher;
+	private final TokenBucket lightBucket;
+	private final TokenBucket groupBucket;
+	private final int maxPending;
+	private final long ttlNanos;
+
+	/* Insertion order is dispatch order; a merged command keeps its original position */
+	private final LinkedList<PendingCommand> pending=new LinkedList<>();
+	/* The pending commands which newer commands for the same resource may be merged into, by key */
+	private final Map<String,PendingCommand> mergeable=new HashMap<>();
+	/* Commands are accepted, but not dispatched while paused */
+	private boolean paused;
+
+	private final AtomicLong enqueued=new AtomicLong();
+	private final AtomicLong dispatched=new AtomicLong();
+	private final AtomicLong merged=new AtomicLong();
+	private final AtomicLong dropped=new AtomicLong();
+	private final AtomicLong expired=new AtomicLong();
+
+	public CommandScheduler(Dispatcher dispatcher)
+	{
+		this.dispatcher=dispatcher;
+		double lightRate=Double.parseDouble(System.getProperty("hue2mqtt.ratelimit.lights","10"));
+		double groupRate=Double.parseDouble(System.getProperty("hue2mqtt.ratelimit.groups","1"));
+		lightBucket=new TokenBucket(lightRate,Math.max(1,lightRate));
+		groupBucket=new TokenBucket(groupRate,Math.max(1,groupRate));
+		maxPending=Integer.getInteger("hue2mqtt.ratelimit.maxpending",1000).intValue();
+		ttlNanos=Integer.getInteger("hue2mqtt.offline.ttl",60).intValue()*1000000000L;
+		Thread t=new Thread(new Runnable(){
+			@Override
+			public void run()
+			{
+				dispatchLoop();
+			}
+		},"hue2mqtt command dispatcher");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public synchronized void setPaused(boolean paused)
+	{
+		if(this.paused && !paused && !pending.isEmpty())
+			L.info("Resuming, replaying "+pending.size()+" queued commands");
+		this.paused=paused;
+		notifyAll();
+	}
+
+	private static String keyFor(PHBridgeResource res,boolean isGroup)
+	{
+		if(res instanceof SceneResource)
+			return "s/"+res.getIdentifier();
+		return (isGroup?"g/":"l/")+res.getIdentifier();
+	}
+
+	/*
+	 * The IDs of the lights a command for the resource affects, or null if unknown or all
+	 */
+	static Collection<String> lightsOf(PHBridgeResource res)
+	{
+		if(res instanceof PHLight)
+			return Collections.singletonList(res.getIdentifier());
+		if(res instanceof SceneResource)
+			return ((SceneResource)res).getScene().getLightIdentifiers();
+		if(res instanceof PHGroup)
+			return ((PHGroup)res).getLightIdentifiers();
+		return null;
+	}
+
+	static boolean overlaps(Collection<String> l1,Collection<String> l2)
+	{
+		if(l1==null || l2==null)
+			return true;
+		if(l1.size()>l2.size())
+		{
+			Collection<String> t=l1;
+			l1=l2;
+			l2=t;
+		}
+		for(String id:l1)
+		{
+			if(l2.contains(id))
+				return true;
+		}
+		return false;
+	}
+
+	public void submit(PHBridgeResource res,boolean isGroup,PHLightState ls,long arrived)
+	{
+		enqueued.incrementAndGet();
+		String key=keyFor(res,isGroup);
+		synchronized(this)
+		{
+			PendingCommand pc=mergeable.get(key);
+			if(pc!=null)
+			{
+				merge(pc.ls,ls);
+				pc.updated=System.nanoTime();
+				merged.incrementAndGet();
+				return;
+			}
+			if(pending.size()>=maxPending)
+				expire(System.nanoTime());
+			if(pending.size()>=maxPending)
+			{
+				dropped.incrementAndGet();
+				L.warning("Command queue full ("+maxPending+" pending), dropping command for "+res.getName());
+				return;
+			}
+			// The PHLightState copy constructor does not copy increments, so merge into a fresh state instead
+			PHLightState copy=new PHLightState();
+			merge(copy,ls);
+			pc=new PendingCommand(key,res,isGroup,copy,arrived);
+			// Newer commands for these lights must not be merged into commands queued before this one
+			for(Iterator<PendingCommand> it=mergeable.values().iterator();it.hasNext();)
+			{
+				if(overlaps(it.next().lights,pc.lights))
+					it.remove();
+			}
+			pending.add(pc);
+			mergeable.put(key,pc);
+			notifyAll();
+		}
+	}
+
+	/*
+	 * Merge a newer light state into a pending one. Absolute values of the newer
+	 * state win. Relative increments are applied to a pending absolute value, or accumulated
+	 * otherwise.
+	 */
+	static void merge(PHLightState into,PHLightState from)
+	{
+		// The color modes exclude each other, and the bridge prefers xy over ct over hue/sat.
+		// A newer color in one mode therefore replaces an older one in the others
+		boolean hs=from.getHue()!=null || from.getSaturation()!=null || from.getIncrementHue()!=null || from.getIncrementSat()!=null;
+		boolean ct=from.getCt()!=null || from.getIncrementCt()!=null;
+		boolean xy=from.getX()!=null || from.getY()!=null || from.getIncrementX()!=null || from.getIncrementY()!=null;
+		if(hs || ct || xy)
+		{
+			if(!hs)
+			{
+				into.setHue(null);
+				into.setSaturation(null);
+				into.setIncrementHue(null);
+				into.setIncrementSat(null);
+			}
+			if(!ct)
+			{
+				into.setCt(null);
+				into.setIncrementCt(null);
+			}
+			if(!xy)
+			{
+				into.setX(null);
+				into.setY(null);
+				into.setIncrementX(null);
+				into.setIncrementY(null);
+			}
+			into.setColorMode(PHLightColorMode.COLORMODE_UNKNOWN);
+		}
+		if(from.isOn()!=null)
+			into.setOn(from.isOn());
+		if(from.getBrightness()!=null)
+		{
+			into.setBrightness(from.getBrightness());
+			into.setIncrementBri(null);
+		}
+		if(from.getHue()!=null)
+		{
+			into.setHue(from.getHue());
+			into.setIncrementHue(null);
+		}
+		if(from.getSaturation()!=null)
+		{
+			into.setSaturation(from.getSaturation());
+			into.setIncrementSat(null);
+		}
+		if(from.getCt()!=null)
+		{
+			into.setCt(from.getCt());
+			into.setIncrementCt(null);
+		}
+		if(from.getX()!=null)
+		{
+			into.setX(from.getX());
+			into.setIncrementX(null);
+		}
+		if(from.getY()!=null)
+		{
+			into.setY(from.getY());
+			into.setIncrementY(null);
+		}
+		if(from.getIncrementBri()!=null)
+		{
+			if(into.getBrightness()!=null)
+				into.setBrightness(Integer.valueOf(clamp(into.getBrightness().intValue()+from.getIncrementBri().intValue(),1,254)));
+			else
+				into.setIncrementBri(Integer.valueOf(intValue(into.getIncrementBri())+from.getIncrementBri().intValue()));
+		}
+		if(from.getIncrementHue()!=null)
+		{
+			if(into.getHue()!=null)
+				into.setHue(Integer.valueOf((into.getHue().intValue()+from.getIncrementHue().intValue()+65536)%65536));
+			else
+				into.setIncrementHue(Integer.valueOf(intValue(into.getIncrementHue())+from.getIncrementHue().intValue()));
+		}
+		if(from.getIncrementSat()!=null)
+		{
+			if(into.getSaturation()!=null)
+				into.setSaturation(Integer.valueOf(clamp(into.getSaturation().intValue()+from.getIncrementSat().intValue(),0,254)));
+			else
+				into.setIncrementSat(Integer.valueOf(intValue(into.getIncrementSat())+from.getIncrementSat().intValue()));
+		}
+		if(from.getIncrementCt()!=null)
+		{
+			if(into.getCt()!=null)
+				into.setCt(Integer.valueOf(clamp(into.getCt().intValue()+from.getIncrementCt().intValue(),153,500)));
+			else
+				into.setIncrementCt(Integer.valueOf(intValue(into.getIncrementCt())+from.getIncrementCt().intValue()));
+		}
+		if(from.getIncrementX()!=null)
+		{
+			if(into.getX()!=null)
+				into.setX(Float.valueOf(Math.max(0,Math.min(1,into.getX().floatValue()+from.getIncrementX().floatValue()))));
+			else
+				into.setIncrementX(Float.valueOf(floatValue(into.getIncrementX())+from.getIncrementX().floatValue()));
+		}
+		if(from.getIncrementY()!=null)
+		{
+			if(into.getY()!=null)
+				into.setY(Float.valueOf(Math.max(0,Math.min(1,into.getY().floatValue()+from.getIncrementY().floatValue()))));
+			else
+				into.setIncrementY(Float.valueOf(floatValue(into.getIncrementY())+from.getIncrementY().floatValue()));
+		}
+		if(from.getTransitionTime()!=null)
+			into.setTransitionTime(from.getTransitionTime());
+		// A fresh PHLightState has the modes set to UNKNOWN, which means "not set"
+		if(from.getAlertMode()!=null && from.getAlertMode()!=PHLightAlertMode.ALERT_UNKNOWN)
+			into.setAlertMode(from.getAlertMode());
+		if(from.getEffectMode()!=null && from.getEffectMode()!=PHLightEffectMode.EFFECT_UNKNOWN)
+			into.setEffectMode(from.getEffectMode());
+		if(from.getColorMode()!=null && from.getColorMode()!=PHLightColorMode.COLORMODE_UNKNOWN)
+			into.setColorMode(from.getColorMode());
+	}
+
+	private static int clamp(int val,int min,int max)
+	{
+		return Math.max(min,Math.min(max,val));
+	}
+
+	private static int intValue(Integer i)
+	{
+		return i!=null?i.intValue():0;
+	}
+
+	private static float floatValue(Float f)
+	{
+		return f!=null?f.floatValue():0;
+	}
+
+	private boolean isExpired(PendingCommand pc,long now)
+	{
+		if(ttlNanos<=0 || now-pc.updated<=ttlNanos)
+			return false;
+		expired.incrementAndGet();
+		L.warning("Dropping expired command for "+pc.res.getName()+", queued "+(now-pc.updated)/1000000000L+"s ago");
+		return true;
+	}
+
+	private void expire(long now)
+	{
+		for(Iterator<PendingCommand> it=pending.iterator();it.hasNext();)
+		{
+			PendingCommand pc=it.next();
+			if(isExpired(pc,now))
+			{
+				it.remove();
+				unmap(pc);
+			}
+		}
+	}
+
+	private void unmap(PendingCommand pc)
+	{
+		if(mergeable.get(pc.key)==pc)
+			mergeable.remove(pc.key);
+	}
+
+	/*
+	 * Take the oldest pending command whose bucket has a token available, and for whose
+	 * lights no older command is still pending. Blocks until there is one.
+	 */
+	private synchronized PendingCommand takeNext() throws InterruptedException
+	{
+		for(;;)
+		{
+			if(paused)
+			{
+				wait();
+				continue;
+			}
+			long now=System.nanoTime();
+			long waitNanos=Long.MAX_VALUE;
+			boolean lightsBlocked=false,groupsBlocked=false;
+			/* Lights of the commands held back so far, which later commands must not overtake */
+			Set<String> waiting=null;
+			boolean allWaiting=false;
+			for(Iterator<PendingCommand> it=pending.iterator();it.hasNext();)
+			{
+				PendingCommand pc=it.next();
+				if(isExpired(pc,now))
+				{
+					it.remove();
+					unmap(pc);
+					continue;
+				}
+				boolean overtaking=allWaiting || (waiting!=null && overlaps(waiting,pc.lights));
+				if(!overtaking && !(pc.isGroup?groupsBlocked:lightsBlocked))
+				{
+					long w=(pc.isGroup?groupBucket:lightBucket).tryTake(now);
+					if(w==0)
+					{
+						it.remove();
+						unmap(pc);
+						return pc;
+					}
+					if(pc.isGroup)
+						groupsBlocked=true;
+					else
+						lightsBlocked=true;
+					waitNanos=Math.min(waitNanos,w);
+					if(lightsBlocked && groupsBlocked)
+						break;
+				}
+				if(pc.lights==null)
+					allWaiting=true;
+				else
+				{
+					if(waiting==null)
+						waiting=new HashSet<>();
+					waiting.addAll(pc.lights);
+				}
+			}
+			if(waitNanos==Long.MAX_VALUE)
+				wait();
+			else
+				wait(waitNanos/1000000,(int)(waitNanos%1000000));
+		}
+	}
+
+	private void dispatchLoop()
+	{
+		for(;;)
+		{
+			PendingCommand pc;
+			try
+			{
+				pc=takeNext();
+			}
+			catch(InterruptedException e)
+			{
+				return;
+			}
+			try
+			{
+				dispatched.incrementAndGet();
+				dispatcher.dispatch(pc.res,pc.ls,pc.arrived);
+			}
+			catch(Exception e)
+			{
+				L.log(Level.WARNING,"Error dispatching command to "+pc.res.getName(),e);
+			}
+		}
+	}
+
+	public synchronized int getQueueDepth()
+	{
+		return pending.size();
+	}
+
+	public long getEnqueuedCount()
+	{
+		return enqueued.get();
+	}
+
+	public long getDispatchedCount()
+	{
+		return dispatched.get();
+	}
+
+	public long getMergedCount()
+	{
+		return merged.get();
+	}
+
+	public long getDroppedCount()
+	{
+		return dropped.get();
+	}
+
+	public long getExpiredCount()
+	{
+		return expired.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "queue="+getQueueDepth()+" enqueued="+enqueued+" dispatched="+dispatched+" merged="+merged+" dropped="+dropped+" expired="+expired;
+	}
+
+	private static final Logger L=Logger.getLogger(CommandScheduler.class.getName());
+}
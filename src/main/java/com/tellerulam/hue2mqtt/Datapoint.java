@@ -0,0 +1,65 @@
+/*
+ * Settable datapoints of a light state, as used in set topics and composite JSON payloads
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.util.*;
+
+public enum Datapoint
+{
+	ON("on"),
+	BRI("bri"),
+	BRI_INC("bri_inc"),
+	HUE("hue"),
+	HUE_INC("hue_inc"),
+	SAT("sat"),
+	SAT_INC("sat_inc"),
+	X("x"),
+	X_INC("x_inc"),
+	Y("y"),
+	Y_INC("y_inc"),
+	CT("ct"),
+	CT_INC("ct_inc"),
+	TRANSITIONTIME("transitiontime"),
+	COLORMODE("colormode"),
+	ALERT("alert"),
+	EFFECT("effect");
+
+	final String topicName;
+
+	private Datapoint(String topicName)
+	{
+		this.topicName=topicName;
+	}
+
+	private static final Datapoint[] all=values();
+	private static final Map<String,Datapoint> byName=new HashMap<>();
+	static
+	{
+		for(Datapoint dp:all)
+			byName.put(dp.topicName,dp);
+	}
+
+	/*
+	 * Returns null if there is no such datapoint
+	 */
+	static Datapoint forName(String name)
+	{
+		return byName.get(name);
+	}
+
+	/*
+	 * Match the datapoint name in the given region of a string, without allocating
+	 */
+	static Datapoint forName(String s,int start,int end)
+	{
+		int len=end-start;
+		for(Datapoint dp:all)
+		{
+			if(dp.topicName.length()==len && s.regionMatches(start,dp.topicName,0,len))
+				return dp;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * The event loop: a single thread which processes inbound MQTT messages, notifications of the
+ * Hue SDK, results of bridge polls and timer ticks, in the order they arrived.
+ *
+ * The state derived from these events (transition time cache, reported light states, resource
+ * indexes, the set of bridges) is only written on this thread, so handlers need no coordination
+ * among each other. Producers hand over events through a lock-free ring; if the ring is full,
+ * they wait for the loop to catch up, which throttles e.g. the MQTT client instead of dropping
+ * messages. The loop itself cannot wait for itself, so when a task on the loop posts to a full
+ * ring, the ring is moved to a loop-local overflow queue, which is processed first and takes
+ * further posts of the loop until it is empty, keeping everything in order. Anything which may block (network connects, polls, commands sent to the bridge)
+ * stays on its own threads and only posts its result here.
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.logging.*;
+
+public class EventLoop
+{
+	private static final class Event
+	{
+		final Runnable task;
+		final long queued;
+
+		Event(Runnable task)
+		{
+			this.task=task;
+			this.queued=System.nanoTime();
+		}
+	}
+
+	private static final MpscRing<Event> ring=new MpscRing<>(Integer.getInteger("hue2mqtt.loop.capacity",4096).intValue());
+
+	/* Events which precede those in the ring. Only used on the loop */
+	private static final ArrayDeque<Event> overflow=new ArrayDeque<>();
+
+	/* Set by the loop before it parks, so producers know they have to wake it */
+	private static volatile boolean parked;
+
+	private static final Thread thread=new Thread(new Runnable(){
+		@Override
+		public void run()
+		{
+			loop();
+		}
+	},"hue2mqtt loop");
+	static
+	{
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private EventLoop()
+	{
+		/* Static only */
+	}
+
+	private static void loop()
+	{
+		for(;;)
+		{
+			Event e=overflow.poll();
+			if(e==null)
+				e=ring.poll();
+			if(e==null)
+			{
+				parked=true;
+				// Re-check, a producer may have added an event before seeing the flag
+				e=ring.poll();
+				if(e==null)
+				{
+					LockSupport.park();
+					parked=false;
+					continue;
+				}
+				parked=false;
+			}
+			Metrics.loopLag.recordSince(e.queued);
+			try
+			{
+				e.task.run();
+			}
+			catch(Throwable t)
+			{
+				L.log(Level.WARNING,"Uncaught exception in event loop task "+e.task,t);
+			}
+		}
+	}
+
+	static boolean inLoop()
+	{
+		return Thread.currentThread()==thread;
+	}
+
+	/*
+	 * Queue a task to run on the loop. Waits while the queue is full
+	 */
+	static void post(Runnable task)
+	{
+		Event e=new Event(task);
+		if(inLoop() && !overflow.isEmpty())
+		{
+			// Behind our earlier overflowed events
+			overflow.add(e);
+			return;
+		}
+		if(!ring.offer(e))
+		{
+			Metrics.loopFull.incrementAndGet();
+			if(inLoop())
+			{
+				// Waiting for ourselves would never end. Take over the queued events, so ours stays behind them
+				Event q;
+				while((q=ring.poll())!=null)
+					overflow.add(q);
+				overflow.add(e);
+				return;
+			}
+			while(!ring.offer(e))
+				LockSupport.parkNanos(100000);
+		}
+		if(parked)
+			LockSupport.unpark(thread);
+	}
+
+	/*
+	 * Run a task on the loop and wait for it to complete. For producers which reuse the
+	 * objects handed to the task, e.g. the parse results of a poll
+	 */
+	static void postAndWait(final Runnable task)
+	{
+		if(inLoop())
+		{
+			task.run();
+			return;
+		}
+		final CountDownLatch done=new CountDownLatch(1);
+		post(new Runnable(){
+			@Override
+			public void run()
+			{
+				try
+				{
+					task.run();
+				}
+				finally
+				{
+					done.countDown();
+				}
+			}
+
+			@Override
+			public String toString()
+			{
+				return task.toString();
+			}
+		});
+		boolean interrupted=false;
+		for(;;)
+		{
+			try
+			{
+				done.await();
+				break;
+			}
+			catch(InterruptedException ie)
+			{
+				// The task has been queued and will run anyway
+				interrupted=true;
+			}
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	static int getQueueDepth()
+	{
+		return ring.size();
+	}
+
+	private static final Logger L=Logger.getLogger(EventLoop.class.getName());
+}
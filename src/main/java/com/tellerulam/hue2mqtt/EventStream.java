@@ -0,0 +1,312 @@
+/*
+ * Client for a server-sent events stream, e.g. the resource change events of a bridge.
+ *
+ * Runs on its own thread, as the stream is read with blocking I/O for as long as it is open.
+ * When the stream fails or ends, it is reopened with an increasing delay, up to 30s, presenting
+ * the last event ID received so the server can resume the stream. The data of each event is handed
+ * to the handler as a stream, without converting it to a string first.
+ *
+ * Bridges serve their event stream via HTTPS with a certificate of their own CA. We are talking to
+ * a device on the local network by address, so the certificate is not verified.
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.security.*;
+import java.security.cert.*;
+import java.util.*;
+import java.util.logging.*;
+
+import javax.net.ssl.*;
+
+public class EventStream
+{
+	interface Handler
+	{
+		/* The stream was opened. Events sent while it was closed may have been missed */
+		void onOpen();
+		/* The data of one event */
+		void onEvent(InputStream data) throws IOException;
+		/* The stream was closed or failed, and will be reopened */
+		void onClose();
+	}
+
+	private final String name;
+	private final Handler handler;
+	private final int timeout;
+
+	private volatile boolean running;
+	private volatile HttpURLConnection connection;
+	private volatile Thread thread;
+	private String url;
+	private Map<String,String> headers;
+	private String lastEventID;
+
+	private byte line[]=new byte[1024];
+	private int lineLen;
+	private byte data[]=new byte[4096];
+	private int dataLen;
+
+	/*
+	 * The read timeout should be well above the interval of the server's keep-alive comments,
+	 * if any. If it expires, the stream is simply reopened
+	 */
+	EventStream(String name,Handler handler,int timeout)
+	{
+		this.name=name;
+		this.handler=handler;
+		this.timeout=timeout;
+	}
+
+	synchronized void start(String url,Map<String,String> headers)
+	{
+		if(running)
+			return;
+		this.url=url;
+		this.headers=headers;
+		running=true;
+		thread=new Thread(new Runnable(){
+			@Override
+			public void run()
+			{
+				loop();
+			}
+		},"hue2mqtt events "+name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	synchronized void stop()
+	{
+		if(!running)
+			return;
+		running=false;
+		// Unblocks the read
+		HttpURLConnection c=connection;
+		if(c!=null)
+			c.disconnect();
+		thread.interrupt();
+	}
+
+	boolean isRunning()
+	{
+		return running;
+	}
+
+	private void loop()
+	{
+		long delay=1000;
+		// A stopped loop may still be winding down when the stream is started again
+		Thread self=Thread.currentThread();
+		while(running && thread==self)
+		{
+			boolean opened=false;
+			try
+			{
+				HttpURLConnection c=open();
+				connection=c;
+				try(InputStream in=new BufferedInputStream(c.getInputStream()))
+				{
+					L.info("Event stream "+name+" opened");
+					opened=true;
+					delay=1000;
+					handler.onOpen();
+					read(in);
+				}
+				if(running)
+					L.info("Event stream "+name+" ended, reopening");
+			}
+			catch(IOException e)
+			{
+				if(running)
+					L.info("Event stream "+name+" failed: "+e+"; reopening in "+delay+"ms");
+			}
+			finally
+			{
+				connection=null;
+			}
+			if(opened)
+				handler.onClose();
+			if(!running || thread!=self)
+				break;
+			try
+			{
+				Thread.sleep(delay);
+			}
+			catch(InterruptedException e)
+			{
+				/* Stopped */
+			}
+			delay=Math.min(delay*2,30000);
+		}
+	}
+
+	private HttpURLConnection open() throws IOException
+	{
+		HttpURLConnection c=(HttpURLConnection)new URL(url).openConnection();
+		if(c instanceof HttpsURLConnection)
+		{
+			HttpsURLConnection hc=(HttpsURLConnection)c;
+			hc.setSSLSocketFactory(trustAll());
+			hc.setHostnameVerifier(new HostnameVerifier(){
+				@Override
+				public boolean verify(String hostname,SSLSession session)
+				{
+					return true;
+				}
+			});
+		}
+		c.setConnectTimeout(timeout);
+		c.setReadTimeout(timeout);
+		c.setUseCaches(false);
+		c.setRequestProperty("Accept","text/event-stream");
+		for(Map.Entry<String,String> me:headers.entrySet())
+			c.setRequestProperty(me.getKey(),me.getValue());
+		if(lastEventID!=null)
+			c.setRequestProperty("Last-Event-ID",lastEventID);
+		int rc=c.getResponseCode();
+		if(rc!=HttpURLConnection.HTTP_OK)
+		{
+			c.disconnect();
+			throw new IOException("HTTP "+rc+" from "+url);
+		}
+		return c;
+	}
+
+	private static SSLSocketFactory trustAllFactory;
+
+	private static synchronized SSLSocketFactory trustAll() throws IOException
+	{
+		if(trustAllFactory==null)
+		{
+			try
+			{
+				SSLContext ctx=SSLContext.getInstance("TLS");
+				ctx.init(null,new TrustManager[]{new X509TrustManager(){
+					@Override
+					public void checkClientTrusted(X509Certificate[] chain,String authType)
+					{
+						/* Not verified */
+					}
+					@Override
+					public void checkServerTrusted(X509Certificate[] chain,String authType)
+					{
+						/* Not verified */
+					}
+					@Override
+					public X509Certificate[] getAcceptedIssuers()
+					{
+						return new X509Certificate[0];
+					}
+				}},null);
+				trustAllFactory=ctx.getSocketFactory();
+			}
+			catch(GeneralSecurityException e)
+			{
+				throw new IOException("Unable to set up TLS",e);
+			}
+		}
+		return trustAllFactory;
+	}
+
+	/*
+	 * Read events until the stream ends
+	 */
+	private void read(InputStream in) throws IOException
+	{
+		dataLen=0;
+		while(running && readLine(in))
+		{
+			if(lineLen==0)
+			{
+				// End of an event
+				if(dataLen>0)
+				{
+					try
+					{
+						handler.onEvent(new ByteArrayInputStream(data,0,dataLen));
+					}
+					catch(IOException e)
+					{
+						// Only a broken event, the stream itself is fine
+						L.warning("Unable to parse event from "+name+": "+e);
+					}
+					dataLen=0;
+				}
+				continue;
+			}
+			// Comments, e.g. keep-alives
+			if(line[0]==':')
+				continue;
+			int colon=indexOf(':');
+			int vstart=colon<0?lineLen:colon+1;
+			if(vstart<lineLen && line[vstart]==' ')
+				vstart++;
+			int fieldLen=colon<0?lineLen:colon;
+			if(fieldIs("data",fieldLen))
+			{
+				if(dataLen>0)
+					appendData('\n');
+				for(int ix=vstart;ix<lineLen;ix++)
+					appendData(line[ix]);
+			}
+			else if(fieldIs("id",fieldLen))
+				lastEventID=new String(line,vstart,lineLen-vstart,StandardCharsets.UTF_8);
+			// event and retry are not needed
+		}
+	}
+
+	private boolean readLine(InputStream in) throws IOException
+	{
+		lineLen=0;
+		for(;;)
+		{
+			int c=in.read();
+			if(c<0)
+				return false;
+			if(c=='\n')
+			{
+				if(lineLen>0 && line[lineLen-1]=='\r')
+					lineLen--;
+				return true;
+			}
+			if(lineLen==line.length)
+				line=Arrays.copyOf(line,line.length*2);
+			line[lineLen++]=(byte)c;
+		}
+	}
+
+	private int indexOf(int c)
+	{
+		for(int ix=0;ix<lineLen;ix++)
+		{
+			if(line[ix]==c)
+				return ix;
+		}
+		return -1;
+	}
+
+	private boolean fieldIs(String field,int len)
+	{
+		if(len!=field.length())
+			return false;
+		for(int ix=0;ix<len;ix++)
+		{
+			if(line[ix]!=field.charAt(ix))
+				return false;
+		}
+		return true;
+	}
+
+	private void appendData(int b)
+	{
+		if(dataLen==data.length)
+			data=Arrays.copyOf(data,data.length*2);
+		data[dataLen++]=(byte)b;
+	}
+
+	private static final Logger L=Logger.getLogger(EventStream.class.getName());
+}
@@ -0,0 +1,199 @@
+/*
+ * Aggregated group state, maintained incrementally from light state changes.
+ *
+ * Each light's last state contributes to the aggregates of all groups it is a member of.
+ * When a light changes, its old contribution is removed and the new one added, so a
+ * heartbeat costs O(changed lights * groups per light), independent of group sizes.
+ * Min/max brightness are derived from a per-group brightness histogram.
+ *
+ * Group updates only rebuild the aggregates of groups whose name or members changed, so
+ * the groups heartbeat costs a comparison of the member lists when nothing changed.
+ *
+ * Only used on the event loop.
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.util.*;
+
+import com.eclipsesource.json.*;
+import com.philips.lighting.model.*;
+
+public class GroupAggregation
+{
+	private static class Aggregate
+	{
+		final String name;
+		final List<String> lights;
+		final int members;
+		/* The generation of the last group update which contained the group */
+		int seen;
+		int on,reachable;
+		long briSum;
+		int briCount;
+		final int briHistogram[]=new int[256];
+		boolean dirty=true;
+
+		/* Last published values */
+		String published;
+
+		Aggregate(String name,List<String> lights)
+		{
+			this.name=name;
+			this.lights=new ArrayList<>(lights);
+			this.members=lights.size();
+		}
+
+		void apply(LightStateSnapshot s,int sign)
+		{
+			if(s.reachable==1)
+				reachable+=sign;
+			if(s.on)
+			{
+				on+=sign;
+				if(s.bri!=LightStateSnapshot.NONE)
+				{
+					int bri=Math.max(0,Math.min(255,s.bri));
+					briSum+=sign*bri;
+					briCount+=sign;
+					briHistogram[bri]+=sign;
+				}
+			}
+			dirty=true;
+		}
+
+		JsonObject toJson()
+		{
+			JsonObject jso=new JsonObject();
+			int mean=briCount>0?(int)Math.round((double)briSum/briCount):0;
+			jso.add("val",on>0?mean:0);
+			jso.add("any_on",on>0);
+			jso.add("all_on",on==members && members>0);
+			if(briCount>0)
+			{
+				int min=0,max=255;
+				while(briHistogram[min]==0)
+					min++;
+				while(briHistogram[max]==0)
+					max--;
+				jso.add("bri_mean",mean);
+				jso.add("bri_min",min);
+				jso.add("bri_max",max);
+			}
+			jso.add("on",on);
+			jso.add("reachable",reachable);
+			jso.add("lights",members);
+			return jso;
+		}
+	}
+
+	private final Map<String,List<Aggregate>> groupsByLight=new HashMap<>();
+	/* By group ID */
+	private final Map<String,Aggregate> aggregates=new LinkedHashMap<>();
+	/* The state each light currently contributes to the aggregates */
+	private final Map<String,LightStateSnapshot> contributed=new HashMap<>();
+	private int generation;
+
+	/*
+	 * Apply the current groups. Only the aggregates of added groups and of groups whose name
+	 * or members changed are rebuilt from their members' states. Returns whether any changed
+	 */
+	boolean updateGroups(Collection<PHGroup> groups)
+	{
+		int gen=++generation;
+		boolean changed=false;
+		for(PHGroup g:groups)
+		{
+			List<String> ids=g.getLightIdentifiers();
+			if(ids==null)
+				continue;
+			Aggregate a=aggregates.get(g.getIdentifier());
+			if(a!=null && a.name.equals(g.getName()) && a.lights.equals(ids))
+			{
+				a.seen=gen;
+				continue;
+			}
+			changed=true;
+			Aggregate n=new Aggregate(g.getName(),ids);
+			if(a!=null)
+			{
+				unlink(a);
+				// Only republish under the same topic if the aggregate differs
+				if(a.name.equals(n.name))
+					n.published=a.published;
+			}
+			n.seen=gen;
+			aggregates.put(g.getIdentifier(),n);
+			for(String id:ids)
+			{
+				List<Aggregate> l=groupsByLight.get(id);
+				if(l==null)
+					groupsByLight.put(id,l=new ArrayList<>(2));
+				l.add(n);
+				LightStateSnapshot s=contributed.get(id);
+				if(s!=null)
+					n.apply(s,1);
+			}
+		}
+		for(Iterator<Aggregate> it=aggregates.values().iterator();it.hasNext();)
+		{
+			Aggregate a=it.next();
+			if(a.seen!=gen)
+			{
+				it.remove();
+				unlink(a);
+				changed=true;
+			}
+		}
+		return changed;
+	}
+
+	private void unlink(Aggregate a)
+	{
+		for(String id:a.lights)
+		{
+			List<Aggregate> l=groupsByLight.get(id);
+			if(l==null)
+				continue;
+			l.remove(a);
+			if(l.isEmpty())
+				groupsByLight.remove(id);
+		}
+	}
+
+	/*
+	 * Replace the contribution of a light. The snapshot must not be modified afterwards
+	 */
+	void updateLight(String lightID,LightStateSnapshot snap)
+	{
+		LightStateSnapshot old=contributed.put(lightID,snap);
+		List<Aggregate> l=groupsByLight.get(lightID);
+		if(l==null)
+			return;
+		for(Aggregate a:l)
+		{
+			if(old!=null)
+				a.apply(old,-1);
+			a.apply(snap,1);
+		}
+	}
+
+	/*
+	 * Publish the aggregates which changed since they were last published
+	 */
+	void publishChanged(String topicPrefix)
+	{
+		for(Aggregate a:aggregates.values())
+		{
+			if(!a.dirty)
+				continue;
+			a.dirty=false;
+			JsonObject jso=a.toJson();
+			String txt=jso.toString();
+			if(txt.equals(a.published))
+				continue;
+			a.published=txt;
+			MQTTHandler.publish(topicPrefix+"groups/"+a.name,true,jso);
+		}
+	}
+}
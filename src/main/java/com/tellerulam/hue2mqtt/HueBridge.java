@@ -0,0 +1,801 @@
+/*
+ * State of one connected Hue bridge: connection, resource index, reported state and command queue
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+import com.eclipsesource.json.*;
+import com.philips.lighting.hue.listener.*;
+import com.philips.lighting.hue.sdk.*;
+import com.philips.lighting.model.*;
+import com.philips.lighting.model.sensor.*;
+
+public class HueBridge
+{
+	private final PHHueSDK phHueSDK;
+	private final PHAccessPoint pap;
+	private final String key;
+	private final String topicPrefix;
+
+	private volatile PHBridge bridge;
+	private volatile boolean connected;
+
+	private final ResourceIndex<PHLight> lightIndex;
+	private final ResourceIndex<PHGroup> groupIndex;
+	private final ResourceIndex<SceneResource> sceneIndex;
+	private final CommandScheduler scheduler;
+	private final CommandCoalescer coalescer;
+	private final AdaptivePoller poller=new AdaptivePoller();
+	/* Direct REST client, if used instead of the SDK */
+	private final RestBackend rest;
+
+	/* Use the fixed SDK default heartbeat instead of adaptive polling */
+	private static final boolean fixedPolling=Boolean.getBoolean("hue2mqtt.poll.fixed");
+
+	/*
+	 * Last reported state per status topic. Only lights whose snapshot differs
+	 * from the previously published one are serialized and published. Written on the loop
+	 * only; the dispatcher thread reads it to complete commands which set only x or y.
+	 * Snapshots are not modified once they were put here
+	 */
+	private final Map<String,LightStateSnapshot> reportedLights=new ConcurrentHashMap<>();
+	private LightStateSnapshot scratchSnapshot=new LightStateSnapshot();
+
+	/* Group status, updated from the changed lights only */
+	private final GroupAggregation groupAggregation=new GroupAggregation();
+
+	/* Last published scene catalog */
+	private String publishedSceneCatalog;
+
+	/* Published sensor states */
+	private final SensorStatus sensorStatus=new SensorStatus();
+
+	/*
+	 * Interval of the sensors heartbeat, in ms. Fixed and independent of the adaptive polling,
+	 * as button presses should arrive within a few hundred ms. 0, the default, disables sensors
+	 */
+	private static final long sensorInterval=Long.getLong("hue2mqtt.poll.sensors",0).longValue();
+
+	/* Whether to additionally publish each changed datapoint to its own topic */
+	private static final boolean datapointTopics=Boolean.getBoolean("hue2mqtt.mqtt.datapointtopics");
+
+	/*
+	 * Whether to publish the predicted state as soon as the bridge accepted a command.
+	 * The prediction becomes the reported state, so the next heartbeat only publishes a correction
+	 * if the actual state differs
+	 */
+	private static final boolean optimistic=Boolean.getBoolean("hue2mqtt.mqtt.optimistic");
+
+	HueBridge(PHHueSDK phHueSDK,PHAccessPoint pap,boolean namespaced)
+	{
+		this.phHueSDK=phHueSDK;
+		this.pap=pap;
+		this.key=pap.getBridgeId();
+		this.topicPrefix=namespaced?key+"/":"";
+		lightIndex=new ResourceIndex<>("light on bridge "+key);
+		groupIndex=new ResourceIndex<>("group on bridge "+key);
+		sceneIndex=new ResourceIndex<>("scene on bridge "+key);
+		scheduler=new CommandScheduler(new CommandScheduler.Dispatcher(){
+			@Override
+			public void dispatch(PHBridgeResource res, PHLightState ls, long arrived)
+			{
+				sendLightState(res,ls,arrived);
+			}
+		});
+		// Commands may be queued before we are connected for the first time
+		scheduler.setPaused(true);
+		coalescer=new CommandCoalescer(scheduler);
+		rest=RestBackend.isEnabled()?new RestBackend(this):null;
+	}
+
+	String getKey()
+	{
+		return key;
+	}
+
+	PHAccessPoint getAccessPoint()
+	{
+		return pap;
+	}
+
+	PHBridge getBridge()
+	{
+		return bridge;
+	}
+
+	boolean isConnected()
+	{
+		return connected;
+	}
+
+	CommandScheduler getScheduler()
+	{
+		return scheduler;
+	}
+
+	CommandCoalescer getCoalescer()
+	{
+		return coalescer;
+	}
+
+	AdaptivePoller getPoller()
+	{
+		return poller;
+	}
+
+	void connect()
+	{
+		L.info("Connecting to Hue bridge "+pap.getBridgeId()+" @ "+pap.getIpAddress()+" with username "+pap.getUsername()+(rest!=null?" (direct)":""));
+		if(rest!=null)
+			rest.connect();
+		else
+			phHueSDK.connect(pap);
+	}
+
+	/*
+	 * Restore the reported state and the resource names persisted by a previous run,
+	 * so that commands can be resolved and queued before we are connected. Called
+	 * before the bridge is added to HueHandler, which hands it over to the loop
+	 */
+	void restore(StateStore.BridgeState bs)
+	{
+		reportedLights.putAll(bs.lights);
+		List<PHLight> lights=new ArrayList<>();
+		for(Map.Entry<String,String> me:bs.resources("lights").entrySet())
+			lights.add(new PHLight(me.getValue(),me.getKey(),null,null));
+		lightIndex.update(lights);
+		List<PHGroup> groups=new ArrayList<>();
+		Map<String,String> members=bs.resources("members");
+		for(Map.Entry<String,String> me:bs.resources("groups").entrySet())
+		{
+			PHGroup g=new PHGroup(me.getValue(),me.getKey());
+			String m=members.get(me.getKey());
+			g.setLightIdentifiers(m==null || m.isEmpty()?new ArrayList<String>():new ArrayList<>(Arrays.asList(m.split(","))));
+			groups.add(g);
+		}
+		groupIndex.update(groups);
+		List<SceneResource> scenes=new ArrayList<>();
+		for(Map.Entry<String,String> me:bs.resources("scenes").entrySet())
+		{
+			PHScene s=new PHScene();
+			s.setSceneIdentifier(me.getKey());
+			s.setName(me.getValue());
+			scenes.add(new SceneResource(s));
+		}
+		sceneIndex.update(scenes);
+		L.info("Restored "+bs.lights.size()+" light states, "+lights.size()+" lights, "+groups.size()+" groups and "+scenes.size()+" scenes of bridge "+key);
+	}
+
+	/*
+	 * Bind to the given bridge and index its resources
+	 */
+	void attach(PHBridge b,CacheUpdate cu)
+	{
+		bridge=b;
+		connected=true;
+		updateLights(cu.lights);
+		updateGroups(cu.groups);
+		updateScenes(cu.scenes);
+		StateStore.recordBridge(key,pap.getIpAddress());
+		scheduler.setPaused(false);
+	}
+
+	/*
+	 * The update methods return whether any resource was added, removed, renamed or,
+	 * for groups, changed its members. The full lists usually arrive unchanged with every heartbeat
+	 */
+
+	boolean updateLights(Collection<PHLight> lights)
+	{
+		if(!lightIndex.update(lights))
+			return false;
+		recordResources("lights",lights);
+		return true;
+	}
+
+	boolean updateGroups(Collection<PHGroup> groups)
+	{
+		boolean renamed=groupIndex.update(groups);
+		boolean changed=groupAggregation.updateGroups(groups);
+		if(changed)
+		{
+			coalescer.updateGroups(groups);
+			recordMembers(groups);
+		}
+		if(renamed || changed)
+			recordResources("groups",groups);
+		return renamed || changed;
+	}
+
+	boolean updateScenes(Collection<PHScene> scenes)
+	{
+		List<SceneResource> resources=new ArrayList<>();
+		for(PHScene s:scenes)
+			resources.add(new SceneResource(s));
+		if(!sceneIndex.update(resources))
+			return false;
+		recordResources("scenes",resources);
+		return true;
+	}
+
+	private void recordResources(String type,Collection<? extends PHBridgeResource> resources)
+	{
+		if(!StateStore.isEnabled())
+			return;
+		Map<String,String> idToName=new HashMap<>();
+		for(PHBridgeResource r:resources)
+			idToName.put(r.getIdentifier(),r.getName());
+		StateStore.recordResources(key,type,idToName);
+	}
+
+	/*
+	 * The lights of each group, as comma separated IDs, so that group commands
+	 * queued before we are connected can be predicted per light
+	 */
+	private void recordMembers(Collection<PHGroup> groups)
+	{
+		if(!StateStore.isEnabled())
+			return;
+		Map<String,String> idToMembers=new HashMap<>();
+		for(PHGroup g:groups)
+		{
+			StringBuilder sb=new StringBuilder();
+			List<String> ids=g.getLightIdentifiers();
+			if(ids!=null)
+			{
+				for(String id:ids)
+				{
+					if(sb.length()>0)
+						sb.append(',');
+					sb.append(id);
+				}
+			}
+			idToMembers.put(g.getIdentifier(),sb.toString());
+		}
+		StateStore.recordResources(key,"members",idToMembers);
+	}
+
+	void onConnected(PHBridge b,final CacheUpdate cu)
+	{
+		attach(b,cu);
+		if(fixedPolling)
+			phHueSDK.enableHeartbeat(b, PHHueSDK.HB_INTERVAL);
+		else
+			poller.start(AdaptivePoller.forSDK(b));
+		if(sensorInterval>0)
+			AdaptivePoller.forSDK(b).enableSensors(sensorInterval);
+		MQTTHandler.setBridgeConnectionState(key,true);
+		// The states as of the connect; the lights heartbeat publishes any later changes
+		Scheduler.schedule(Scheduler.Lane.LOOP,new Runnable(){
+			@Override
+			public void run()
+			{
+				reportLights(cu);
+			}
+		},2000);
+		reportGroups(cu.groups);
+		reportScenes(cu.scenes);
+	}
+
+	/*
+	 * Connected in direct mode. The resources have already been updated and reported by the first polls
+	 */
+	void onDirectConnected(AdaptivePoller.Heartbeats heartbeats)
+	{
+		connected=true;
+		StateStore.recordBridge(key,pap.getIpAddress());
+		scheduler.setPaused(false);
+		if(fixedPolling)
+		{
+			heartbeats.enableLights(PHHueSDK.HB_INTERVAL);
+			heartbeats.enableGroups(PHHueSDK.HB_INTERVAL);
+			heartbeats.enableScenes(PHHueSDK.HB_INTERVAL);
+		}
+		else
+			poller.start(heartbeats);
+		if(sensorInterval>0)
+			heartbeats.enableSensors(sensorInterval);
+		MQTTHandler.setBridgeConnectionState(key,true);
+	}
+
+	void onConnectionLost()
+	{
+		connected=false;
+		poller.stop();
+		// Keep commands until we are reconnected
+		scheduler.setPaused(true);
+		MQTTHandler.setBridgeConnectionState(key,false);
+	}
+
+	/*
+	 * The resources of a cache notification, taken on the SDK thread which sent it. The cache
+	 * is not thread safe, but each heartbeat replaces its maps and the light states in them
+	 * with new objects instead of modifying them, so these lists stay consistent until the
+	 * loop gets to them. Resources which were not notified are null
+	 */
+	static class CacheUpdate
+	{
+		final List<PHLight> lights;
+		final List<PHLightState> lightStates;
+		final List<PHGroup> groups;
+		final List<PHScene> scenes;
+		final List<PHSensor> sensors;
+
+		CacheUpdate(PHBridgeResourcesCache cache)
+		{
+			this(cache,true,true,true,false);
+		}
+
+		CacheUpdate(PHBridgeResourcesCache cache,List<Integer> notification)
+		{
+			this(cache,
+				notification.contains(PHMessageType.LIGHTS_CACHE_UPDATED),
+				notification.contains(PHMessageType.GROUPS_CACHE_UPDATED),
+				notification.contains(PHMessageType.SCENE_CACHE_UPDATED),
+				notification.contains(PHMessageType.SENSOR_CACHE_UPDATED));
+		}
+
+		private CacheUpdate(PHBridgeResourcesCache cache,boolean withLights,boolean withGroups,boolean withScenes,boolean withSensors)
+		{
+			if(withLights)
+			{
+				lights=cache.getAllLights();
+				lightStates=new ArrayList<>(lights.size());
+				for(PHLight l:lights)
+					lightStates.add(l.getLastKnownLightState());
+			}
+			else
+			{
+				lights=null;
+				lightStates=null;
+			}
+			groups=withGroups?cache.getAllGroups():null;
+			scenes=withScenes?cache.getAllScenes():null;
+			sensors=withSensors?cache.getAllSensors():null;
+		}
+	}
+
+	void onCacheUpdated(CacheUpdate cu)
+	{
+		if(cu.lights!=null)
+		{
+			updateLights(cu.lights);
+			reportLights(cu);
+		}
+		// The full config heartbeat notifies these on every poll, so only real changes count as activity
+		if(cu.groups!=null && updateGroups(cu.groups))
+		{
+			poller.activity();
+			reportGroups(cu.groups);
+		}
+		if(cu.scenes!=null)
+		{
+			boolean changed=updateScenes(cu.scenes);
+			if(publishSceneCatalog(cu.scenes) || changed)
+			{
+				poller.activity();
+				logScenes(cu.scenes);
+			}
+		}
+		if(sensorInterval>0 && cu.sensors!=null)
+			reportSensors(sensorStatus.fromSDK(cu.sensors));
+	}
+
+	void reportSensors(Collection<SensorStatus.Sensor> sensors)
+	{
+		sensorStatus.report(topicPrefix,sensors);
+	}
+
+	void reportGroups(Collection<PHGroup> groups)
+	{
+		StringBuilder r=new StringBuilder("Available groups on bridge "+key+":");
+		for(PHGroup g:groups)
+		{
+			r.append(' ');
+			r.append(g.getIdentifier());
+			r.append('/');
+			r.append(g.getName());
+		}
+		L.info(r.toString());
+		groupAggregation.publishChanged(topicPrefix);
+	}
+
+	void reportScenes(Collection<PHScene> scenes)
+	{
+		logScenes(scenes);
+		publishSceneCatalog(scenes);
+	}
+
+	private void logScenes(Collection<PHScene> scenes)
+	{
+		StringBuilder r=new StringBuilder("Available scenes on bridge "+key+":");
+		for(PHScene s:scenes)
+		{
+			r.append(' ');
+			r.append(s.getSceneIdentifier());
+			r.append('/');
+			r.append(s.getName());
+		}
+		L.info(r.toString());
+	}
+
+	/*
+	 * Publish the available scenes by ID as a retained catalog, if it changed. Returns whether it did
+	 */
+	private boolean publishSceneCatalog(Collection<PHScene> scenes)
+	{
+		JsonObject catalog=new JsonObject();
+		for(PHScene s:scenes)
+			catalog.add(s.getSceneIdentifier(),new SceneResource(s).toJson());
+		String txt=catalog.toString();
+		if(txt.equals(publishedSceneCatalog))
+			return false;
+		publishedSceneCatalog=txt;
+		MQTTHandler.publish(topicPrefix+"scenes",true,catalog);
+		return true;
+	}
+
+	void reportLights(CacheUpdate cu)
+	{
+		long start=System.nanoTime();
+		for(int i=0;i<cu.lights.size();i++)
+		{
+			PHLight l=cu.lights.get(i);
+			scratchSnapshot.set(cu.lightStates.get(i));
+			if(reportLight(l.getIdentifier(),l.getName(),scratchSnapshot))
+				scratchSnapshot=new LightStateSnapshot();
+		}
+		groupAggregation.publishChanged(topicPrefix);
+		Metrics.reportLights.recordSince(start);
+	}
+
+	/*
+	 * Report the lights polled in direct mode
+	 */
+	void reportLights(List<RestBackend.Light> lights)
+	{
+		long start=System.nanoTime();
+		for(RestBackend.Light l:lights)
+		{
+			if(reportLight(l.id,l.name,l.state))
+			{
+				// Events only carry changes, so the next snapshot starts with the current values
+				LightStateSnapshot next=new LightStateSnapshot();
+				next.copyFrom(l.state);
+				l.state=next;
+			}
+		}
+		groupAggregation.publishChanged(topicPrefix);
+		Metrics.reportLights.recordSince(start);
+	}
+
+	/*
+	 * Publish the light if its state differs from the last published one. Returns
+	 * whether the snapshot was kept as the reported state, in which case the caller
+	 * must not reuse it
+	 */
+	private boolean reportLight(String id,String name,LightStateSnapshot snap)
+	{
+		String topic=topicPrefix+"lights/"+name;
+		LightStateSnapshot prev=reportedLights.get(topic);
+		if(snap.sameAs(prev))
+		{
+			Metrics.statusUnchanged.incrementAndGet();
+			return false;
+		}
+		poller.activity();
+		publishLight(id,topic,snap,prev);
+		return true;
+	}
+
+	private void publishLight(String id,String topic,LightStateSnapshot snap,LightStateSnapshot prev)
+	{
+		reportedLights.put(topic,snap);
+		StateStore.recordLight(key,topic,snap);
+		groupAggregation.updateLight(id,snap);
+
+		if(MQTTHandler.isBinary())
+		{
+			boolean hasVal=!snap.on || snap.bri!=LightStateSnapshot.NONE;
+			Cbor.Writer w=new Cbor.Writer().map(hasVal?2:1);
+			if(hasVal)
+				w.text("val").integer(snap.on?snap.bri:0);
+			w.text("hue_state");
+			snap.writeCbor(w);
+			MQTTHandler.publish(topic,true,w.toByteArray());
+		}
+		else
+		{
+			JsonObject msg=new JsonObject();
+			if(!snap.on)
+				msg.add("val",0);
+			else if(snap.bri!=LightStateSnapshot.NONE)
+				msg.add("val",snap.bri);
+			msg.add("hue_state",snap.toJson());
+			MQTTHandler.publish(topic,true,msg);
+		}
+		if(datapointTopics)
+			snap.publishChangedDatapoints(topic,prev);
+	}
+
+	/*
+	 * Publish the predicted state of the given lights after a command has been accepted
+	 */
+	private void reportOptimistic(Collection<PHLight> lights,PHLightState ls)
+	{
+		for(PHLight l:lights)
+		{
+			if(l==null)
+				continue;
+			String topic=topicPrefix+"lights/"+l.getName();
+			LightStateSnapshot prev=reportedLights.get(topic);
+			LightStateSnapshot snap=new LightStateSnapshot();
+			if(prev!=null)
+				snap.copyFrom(prev);
+			else if(l.getLastKnownLightState()!=null)
+				snap.set(l.getLastKnownLightState());
+			else
+				continue;
+			snap.apply(ls);
+			if(snap.sameAs(prev))
+				continue;
+			publishLight(l.getIdentifier(),topic,snap,prev);
+		}
+		groupAggregation.publishChanged(topicPrefix);
+	}
+
+	/*
+	 * The default group is set without a result listener, so there is no prediction for it.
+	 * Called when the bridge confirmed a command, on the dispatcher or an SDK thread
+	 */
+	void reportOptimistic(final PHBridgeResource res,final PHLightState ls)
+	{
+		if(!optimistic)
+			return;
+		EventLoop.post(new Runnable(){
+			@Override
+			public void run()
+			{
+				predict(res,ls);
+			}
+		});
+	}
+
+	private void predict(PHBridgeResource res,PHLightState ls)
+	{
+		if(res instanceof PHLight)
+			reportOptimistic(Collections.singletonList((PHLight)res),ls);
+		else if(res instanceof PHGroup)
+		{
+			// A command queued while offline may still refer to a group restored from the state file
+			PHGroup g=groupIndex.findByID(res.getIdentifier());
+			if(g==null)
+				g=(PHGroup)res;
+			List<String> ids=g.getLightIdentifiers();
+			if(ids==null)
+				return;
+			List<PHLight> lights=new ArrayList<>();
+			for(String id:ids)
+				lights.add(lightIndex.findByID(id));
+			reportOptimistic(lights,ls);
+		}
+	}
+
+	static final PHBridgeResource DEFAULT_GROUP_RESOURCE=new PHBridgeResource(null, null);
+
+	PHBridgeResource findResourceByName(String name)
+	{
+		if(name.startsWith("lights/"))
+		{
+			return lightIndex.find(name.substring(7));
+		}
+		if(name.startsWith("groups/"))
+		{
+			name=name.substring(7);
+			if("0".equals(name))
+				return DEFAULT_GROUP_RESOURCE;
+			return groupIndex.find(name);
+		}
+		if(name.startsWith("scenes/"))
+		{
+			return sceneIndex.find(name.substring(7));
+		}
+		return null;
+	}
+
+	void updateLightState(PHBridgeResource res,PHLightState ls,long arrived)
+	{
+		coalescer.submit(res,!(res instanceof PHLight),ls,arrived);
+	}
+
+	/*
+	 * Submit a batch of commands at once. Returns the number of light commands collapsed into group commands
+	 */
+	int updateLightStates(List<CommandCoalescer.Command> commands)
+	{
+		return coalescer.submitBatch(commands);
+	}
+
+	/*
+	 * The bridge only accepts x and y together. If a command sets only one of them, the other
+	 * is taken from the light's last reported state. For groups, or if the light's color
+	 * is not known, the coordinate is dropped with a warning. Called on the dispatcher thread
+	 */
+	private void completeXY(PHBridgeResource res,PHLightState ls)
+	{
+		if((ls.getX()==null)==(ls.getY()==null))
+			return;
+		LightStateSnapshot snap=res instanceof PHLight?reportedLights.get(topicPrefix+"lights/"+res.getName()):null;
+		if(snap!=null && snap.hasXY)
+		{
+			if(ls.getX()==null)
+				ls.setX(Float.valueOf(snap.x));
+			else
+				ls.setY(Float.valueOf(snap.y));
+			return;
+		}
+		L.warning("Ignoring "+(ls.getX()!=null?"x without y":"y without x")+" for "+res.getName()+", as its current color is not known");
+		ls.setX(null);
+		ls.setY(null);
+	}
+
+	private void sendLightState(final PHBridgeResource res,final PHLightState ls,final long arrived)
+	{
+		poller.activity();
+		completeXY(res,ls);
+		if(rest!=null)
+		{
+			rest.send(res,ls,arrived);
+			return;
+		}
+		if(res instanceof PHLight)
+		{
+			bridge.updateLightState((PHLight)res, ls,new PHLightListener() {
+
+				@Override
+				public void onSuccess()
+				{
+					Metrics.setToBridge.recordSince(arrived);
+					Metrics.bridgeCommandsOk.incrementAndGet();
+					L.fine("Updating state ok for "+res);
+					reportOptimistic(res,ls);
+				}
+
+				@Override
+				public void onStateUpdate(Map<String, String> p, List<PHHueError> err)
+				{
+					// Done by cache_updated notification
+					//reportLights();
+				}
+
+				@Override
+				public void onError(int rc, String msg)
+				{
+					Metrics.bridgeCommandsFailed.incrementAndGet();
+					L.info("Updating state FAILED for "+res+" RC "+rc+": "+msg);
+				}
+
+				@Override
+				public void onSearchComplete()
+				{
+					/* Ignore */
+				}
+
+				@Deprecated
+				@Override
+				public void onReceivingLights(List<PHBridgeResource> arg0)
+				{
+					/* Ignore */
+				}
+
+				@Override
+				public void onReceivingLightDetails(PHLight arg0)
+				{
+					/* Ignore */
+				}
+			});
+		}
+		else if(res instanceof SceneResource)
+		{
+			// Recalling a scene is a single group call, regardless of the number of lights
+			bridge.activateScene(res.getIdentifier(),"0",new PHSceneListener(){
+
+				@Override
+				public void onSuccess()
+				{
+					Metrics.setToBridge.recordSince(arrived);
+					Metrics.bridgeCommandsOk.incrementAndGet();
+					L.fine("Activating ok for "+res);
+				}
+
+				@Override
+				public void onError(int rc, String msg)
+				{
+					Metrics.bridgeCommandsFailed.incrementAndGet();
+					L.info("Activating FAILED for "+res+" RC "+rc+": "+msg);
+				}
+
+				@Override
+				public void onStateUpdate(Map<String, String> p, List<PHHueError> err)
+				{
+					// Done by cache_updated notification
+				}
+
+				@Override
+				public void onScenesReceived(List<PHScene> arg0)
+				{
+					// Ignore
+				}
+
+				@Override
+				public void onSceneReceived(PHScene arg0)
+				{
+					// Ignore
+				}
+			});
+		}
+		else if(res==DEFAULT_GROUP_RESOURCE)
+		{
+			bridge.setLightStateForDefaultGroup(ls);
+		}
+		else if(res instanceof PHGroup)
+		{
+			bridge.setLightStateForGroup(res.getIdentifier(),ls,new PHGroupListener(){
+
+				@Override
+				public void onError(int rc, String msg)
+				{
+					Metrics.bridgeCommandsFailed.incrementAndGet();
+					L.info("Updating state FAILED for "+res+" RC "+rc+": "+msg);
+				}
+
+				@Override
+				public void onStateUpdate(Map<String, String> p, List<PHHueError> err)
+				{
+					// Done by cache_updated notification
+					//reportLights();
+				}
+
+				@Override
+				public void onSuccess()
+				{
+					Metrics.setToBridge.recordSince(arrived);
+					Metrics.bridgeCommandsOk.incrementAndGet();
+					L.fine("Updating state ok for "+res);
+					reportOptimistic(res,ls);
+				}
+
+				@Override
+				public void onCreated(PHGroup arg0)
+				{
+					// Ignore
+				}
+
+				@Override
+				public void onReceivingAllGroups(List<PHBridgeResource> arg0)
+				{
+					// Ignore
+				}
+
+				@Override
+				public void onReceivingGroupDetails(PHGroup arg0)
+				{
+					// Ignore
+				}
+
+			});
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Bridge "+key+" @ "+pap.getIpAddress();
+	}
+
+	private static final Logger L=Logger.getLogger(HueBridge.class.getName());
+}
@@ -1,10 +1,10 @@
 package com.tellerulam.hue2mqtt;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.Logger;
 import java.util.prefs.*;
 
-import com.eclipsesource.json.*;
 import com.philips.lighting.hue.listener.*;
 import com.philips.lighting.hue.sdk.*;
 import com.philips.lighting.model.*;
@@ -37,7 +37,7 @@ public class HueHandler implements PHSDKListener
 		return u;
 	}
 
-	private static void saveUsername(String bridgeID, String u)
+	static void saveUsername(String bridgeID, String u)
 	{
 		Preferences prefs;
 		prefs = Preferences.userRoot().node("com.tellerulam.hue2mqtt-" + bridgeID);
@@ -47,6 +47,20 @@ public class HueHandler implements PHSDKListener
 
 
 	static void init()
+	{
+		initSDK();
+
+		StateStore.init();
+		restoreBridges();
+
+		PHBridgeSearchManager sm = (PHBridgeSearchManager)phHueSDK.getSDKService(PHHueSDK.SEARCH_BRIDGE);
+	    sm.search(true, true);
+	}
+
+	/*
+	 * Set up the SDK and receive its notifications, without searching for bridges
+	 */
+	static PHHueSDK initSDK()
 	{
 		instance=new HueHandler();
 
@@ -54,133 +68,278 @@ public class HueHandler implements PHSDKListener
 		phHueSDK.setAppName("hue2mqtt");
 		phHueSDK.setDeviceName("hue2mqtt");
 		phHueSDK.getNotificationManager().registerSDKListener(instance);
+		return phHueSDK;
+	}
 
-		PHBridgeSearchManager sm = (PHBridgeSearchManager)phHueSDK.getSDKService(PHHueSDK.SEARCH_BRIDGE);
-	    sm.search(true, true);
+	/*
+	 * All bridges we are handling, in configuration order. With multiple bridges, topics
+	 * can either be namespaced by bridge ID, or merged, in which case a resource name is
+	 * resolved on the first bridge which knows it.
+	 */
+	private static final List<HueBridge> bridges=new ArrayList<>();
+	private static final boolean namespaced=Boolean.getBoolean("hue2mqtt.bridge.namespace");
+
+	static boolean isNamespaced()
+	{
+		return namespaced;
 	}
 
-	private PHAccessPoint lastPap;
-	private void connect(PHAccessPoint pap)
+	static List<HueBridge> getBridges()
 	{
-		lastPap=pap;
-		phHueSDK.connect(pap);
+		synchronized(bridges)
+		{
+			return new ArrayList<>(bridges);
+		}
 	}
 
-	protected void reconnect()
+	static void addBridge(HueBridge hb)
 	{
-		connect(lastPap);
+		synchronized(bridges)
+		{
+			bridges.add(hb);
+		}
 	}
 
-	@Override
-	public void onAccessPointsFound(List<PHAccessPoint> bridges)
+	private static HueBridge findBridge(String ip)
 	{
-		if(bridges.size()==0)
+		synchronized(bridges)
 		{
-			L.severe("No Hue bridge found");
-			System.exit(1);
+			for(HueBridge hb:bridges)
+			{
+				if(hb.getAccessPoint().getIpAddress().equals(ip))
+					return hb;
+			}
 		}
+		return null;
+	}
 
-		String specifiedID=System.getProperty("hue2mqtt.bridge.id");
-		String specifiedIP=System.getProperty("hue2mqtt.bridge.ip");
+	private static HueBridge findBridge(PHBridge b)
+	{
+		synchronized(bridges)
+		{
+			for(HueBridge hb:bridges)
+			{
+				if(hb.getBridge()==b)
+					return hb;
+			}
+		}
+		PHBridgeConfiguration config=b.getResourceCache().getBridgeConfiguration();
+		if(config!=null)
+			return findBridge(config.getIpAddress());
+		return null;
+	}
 
-		for(PHAccessPoint pap:bridges)
+	static HueBridge findBridgeByKey(String key)
+	{
+		synchronized(bridges)
 		{
-			L.info("Found Hue bridge '"+pap.getBridgeId()+"' @ "+pap.getIpAddress());
+			for(HueBridge hb:bridges)
+			{
+				if(hb.getKey().equalsIgnoreCase(key))
+					return hb;
+			}
 		}
-		if(bridges.size()>1 && specifiedID==null && specifiedIP==null)
+		return null;
+	}
+
+	/*
+	 * Connect to the bridges known from the previous run right away, instead of waiting for the search
+	 */
+	private static void restoreBridges()
+	{
+		Set<String> specifiedIDs=parseList(System.getProperty("hue2mqtt.bridge.id"));
+		Set<String> specifiedIPs=parseList(System.getProperty("hue2mqtt.bridge.ip"));
+		for(Map.Entry<String,StateStore.BridgeState> me:StateStore.getBridges().entrySet())
 		{
-			L.warning("Multiple bridges found. Specify the bridge you want to connect to explicitely with bridge.id=<id> or bridge.ip=<ip>");
-			System.exit(0);
+			String id=me.getKey();
+			StateStore.BridgeState bs=me.getValue();
+			if(!isSelected(specifiedIDs,specifiedIPs,id,bs.ip))
+				continue;
+			PHAccessPoint pap=new PHAccessPoint();
+			pap.setBridgeId(id);
+			pap.setIpAddress(bs.ip);
+			pap.setUsername(readUsername(id,bs.ip));
+			HueBridge hb=new HueBridge(phHueSDK,pap,namespaced);
+			hb.restore(bs);
+			addBridge(hb);
+			hb.connect();
 		}
+	}
+
+	private static boolean isSelected(Set<String> specifiedIDs,Set<String> specifiedIPs,String id,String ip)
+	{
+		return (specifiedIDs.isEmpty() && specifiedIPs.isEmpty())
+			|| specifiedIDs.contains(id)
+			|| specifiedIPs.contains(ip);
+	}
 
-		// Now find our specified bridge
-		PHAccessPoint foundPap=null;
-		for(PHAccessPoint pap:bridges)
+	private static Set<String> parseList(String list)
+	{
+		Set<String> s=new HashSet<>();
+		if(list!=null)
 		{
-			if(specifiedID==null && specifiedIP==null)
+			for(String e:list.split(","))
 			{
-				foundPap=pap;
-				break;
+				e=e.trim();
+				if(!e.isEmpty())
+					s.add(e);
 			}
-			if(specifiedID!=null && specifiedID.equals(pap.getBridgeId()))
+		}
+		return s;
+	}
+
+	/*
+	 * The SDK listener methods are called on SDK threads, and only hand over to the event loop
+	 */
+
+	@Override
+	public void onAccessPointsFound(final List<PHAccessPoint> foundBridges)
+	{
+		EventLoop.post(new Runnable(){
+			@Override
+			public void run()
 			{
-				foundPap=pap;
-				break;
+				accessPointsFound(foundBridges);
 			}
-			if(specifiedIP!=null && specifiedIP.equals(pap.getIpAddress()))
+		});
+	}
+
+	private static void accessPointsFound(List<PHAccessPoint> foundBridges)
+	{
+		if(foundBridges.size()==0)
+		{
+			if(getBridges().isEmpty())
 			{
-				foundPap=pap;
-				break;
+				L.severe("No Hue bridge found");
+				System.exit(1);
 			}
+			L.warning("No Hue bridge found by search, continuing with the bridges from the state file");
+			return;
+		}
+
+		Set<String> specifiedIDs=parseList(System.getProperty("hue2mqtt.bridge.id"));
+		Set<String> specifiedIPs=parseList(System.getProperty("hue2mqtt.bridge.ip"));
+
+		for(PHAccessPoint pap:foundBridges)
+		{
+			L.info("Found Hue bridge '"+pap.getBridgeId()+"' @ "+pap.getIpAddress());
 		}
-		if(foundPap==null)
+		if(foundBridges.size()>1 && specifiedIDs.isEmpty() && specifiedIPs.isEmpty())
 		{
-			L.warning("Your specified bridge ID="+specifiedID+" IP="+specifiedIP+" was not found. Please check your configuration!");
-			System.exit(0);
+			L.info("Multiple bridges found and none specified, connecting to all of them");
 		}
 
-		String username=readUsername(foundPap.getBridgeId(),foundPap.getIpAddress());
-		foundPap.setUsername(username);
-		L.info("Connecting to Hue bridge "+foundPap.getBridgeId()+" @ "+foundPap.getIpAddress()+" with username "+username);
-		connect(foundPap);
+		// Now find our specified bridges
+		List<PHAccessPoint> selected=new ArrayList<>();
+		int known=0;
+		for(PHAccessPoint pap:foundBridges)
+		{
+			if(isSelected(specifiedIDs,specifiedIPs,pap.getBridgeId(),pap.getIpAddress()))
+			{
+				HueBridge hb=findBridgeByKey(pap.getBridgeId());
+				if(hb==null)
+					hb=findBridge(pap.getIpAddress());
+				if(hb==null)
+				{
+					selected.add(pap);
+					continue;
+				}
+				known++;
+				// Restored from the state file, but the bridge may have changed its address since
+				if(!hb.getAccessPoint().getIpAddress().equals(pap.getIpAddress()))
+				{
+					L.info("Bridge "+hb.getKey()+" moved from "+hb.getAccessPoint().getIpAddress()+" to "+pap.getIpAddress());
+					hb.getAccessPoint().setIpAddress(pap.getIpAddress());
+					if(!hb.isConnected())
+						hb.connect();
+				}
+			}
+		}
+		if(selected.size()+known==0 || selected.size()+known<Math.max(specifiedIDs.size(),specifiedIPs.size()))
+		{
+			L.warning("Not all of your specified bridges IDs="+specifiedIDs+" IPs="+specifiedIPs+" were found. Please check your configuration!");
+			if(selected.size()+known==0)
+			{
+				if(getBridges().isEmpty())
+					System.exit(0);
+				return;
+			}
+		}
+		if(selected.size()>1 && !namespaced)
+			L.info("Handling multiple bridges with merged topics. Resource names should be unique across bridges, or set bridge.namespace=true");
+
+		for(PHAccessPoint pap:selected)
+		{
+			String username=readUsername(pap.getBridgeId(),pap.getIpAddress());
+			pap.setUsername(username);
+			HueBridge hb=new HueBridge(phHueSDK,pap,namespaced);
+			addBridge(hb);
+			hb.connect();
+		}
 	}
 
 	@Override
-	public void onAuthenticationRequired(PHAccessPoint pap)
+	public void onAuthenticationRequired(final PHAccessPoint pap)
+	{
+		EventLoop.post(new Runnable(){
+			@Override
+			public void run()
+			{
+				authenticationRequired(pap);
+			}
+		});
+	}
+
+	private static void authenticationRequired(PHAccessPoint pap)
 	{
 		L.severe("IMPORTANT! AUTHENTICATION REQUIRED -- press the button on your Hue Bridge "+pap.getIpAddress()+" within 30s to authenticate hue2mqtt!");
 		phHueSDK.startPushlinkAuthentication(pap);
 		MQTTHandler.notifyAuthRequired();
 	}
 
-	private void reportGroups(PHBridgeResourcesCache cache)
+	@Override
+	public void onCacheUpdated(List<Integer> notification, final PHBridge b)
 	{
-		StringBuilder r=new StringBuilder("Available groups:");
-		for(Map.Entry<String,PHGroup> me:cache.getGroups().entrySet())
-		{
-			r.append(' ');
-			r.append(me.getKey());
-			r.append('/');
-			r.append(me.getValue().getName());
-		}
-		L.info(r.toString());
+		// The cache must be read on this thread, see HueBridge.CacheUpdate
+		final List<Integer> n=new ArrayList<>(notification);
+		final HueBridge.CacheUpdate cu=new HueBridge.CacheUpdate(b.getResourceCache(),n);
+		EventLoop.post(new Runnable(){
+			@Override
+			public void run()
+			{
+				cacheUpdated(n,cu,b);
+			}
+		});
 	}
-	private void reportScenes(PHBridgeResourcesCache cache)
+
+	private static void cacheUpdated(List<Integer> notification, HueBridge.CacheUpdate cu, PHBridge b)
 	{
-		StringBuilder r=new StringBuilder("Available scenes:");
-		for(Map.Entry<String,PHScene> me:cache.getScenes().entrySet())
-		{
-			r.append(' ');
-			r.append(me.getKey());
-			r.append('/');
-			r.append(me.getValue().getName());
-		}
-		L.info(r.toString());
+		L.fine("Cache updated "+notification);
+		HueBridge hb=findBridge(b);
+		if(hb!=null)
+			hb.onCacheUpdated(cu);
 	}
 
 	@Override
-	public void onCacheUpdated(List<Integer> notification, PHBridge b)
+	public void onConnectionLost(final PHAccessPoint pap)
 	{
-		L.fine("Cache updated "+notification);
-		if(notification.contains(PHMessageType.LIGHTS_CACHE_UPDATED))
-			reportLights();
-		if(notification.contains(PHMessageType.GROUPS_CACHE_UPDATED))
-		{
-			PHBridgeResourcesCache cache=phHueSDK.getSelectedBridge().getResourceCache();
-			reportGroups(cache);
-		}
-		if(notification.contains(PHMessageType.SCENE_CACHE_UPDATED))
-		{
-			PHBridgeResourcesCache cache=phHueSDK.getSelectedBridge().getResourceCache();
-			reportScenes(cache);
-		}
+		EventLoop.post(new Runnable(){
+			@Override
+			public void run()
+			{
+				connectionLost(pap);
+			}
+		});
 	}
 
-	@Override
-	public void onConnectionLost(PHAccessPoint pap)
+	private static void connectionLost(PHAccessPoint pap)
 	{
 		L.warning("Connection to bridge "+pap.getIpAddress()+" lost");
-		MQTTHandler.setHueConnectionState(false);
+		Metrics.bridgeConnectionsLost.incrementAndGet();
+		HueBridge hb=findBridge(pap.getIpAddress());
+		if(hb!=null)
+			hb.onConnectionLost();
+		updateConnectionState();
 	}
 
 	@Override
@@ -191,7 +350,18 @@ public class HueHandler implements PHSDKListener
 	}
 
 	@Override
-	public void onError(int e, String msg)
+	public void onError(final int e, final String msg)
+	{
+		EventLoop.post(new Runnable(){
+			@Override
+			public void run()
+			{
+				error(e,msg);
+			}
+		});
+	}
+
+	private static void error(int e, String msg)
 	{
 		if(e==101)
 		{
@@ -200,229 +370,114 @@ public class HueHandler implements PHSDKListener
 		}
 		if(e==1157)
 		{
-			L.warning("No bridges found, please check your configuration!");
-			System.exit(1);
-		}
-
-		L.warning("Error in bridge connection. Code "+e+": "+msg+"; will reconnect in 10s");
-		/* Retry connection in 10s */
-		Main.t.schedule(new TimerTask(){
-			@Override
-			public void run()
+			if(getBridges().isEmpty())
 			{
-				reconnect();
+				L.warning("No bridges found, please check your configuration!");
+				System.exit(1);
 			}
-		}, 10000);
-	}
+			// The bridges restored from the state file keep running, and reconnect on their own
+			L.warning("No bridges found by search, continuing with the bridges from the state file");
+			return;
+		}
 
-	@Override
-	public void onParsingErrors(List<PHHueParsingError> errors)
-	{
-		L.severe("Internal API error "+errors);
+		Metrics.bridgeErrors.incrementAndGet();
+		L.warning("Error in bridge connection. Code "+e+": "+msg+"; will reconnect in 10s");
+		/* Retry connection in 10s. The error does not tell us which bridge it refers to, so retry all unconnected ones */
+		if(pendingReconnect!=null && !pendingReconnect.isDone())
+			return;
+		pendingReconnect=Scheduler.schedule(Scheduler.Lane.LOOP,reconnectTask,10000);
 	}
 
-	private static String reworkName(Object enumValue)
-	{
-		String name=enumValue.toString();
-		int usc=name.indexOf('_');
-		if(usc>=0)
-			name=name.substring(usc+1);
-		// Use the value of the raw API
-		if("HUE_SATURATION".equals(name))
-			return "hs";
-		// Occasionally we receive status updates with the modes set to UNKNOWN
-		// To avoid bogus publishes, we change that to "none"
-		if("UNKNOWN".equals(name))
-			return "none";
-		return name.toLowerCase();
-	}
+	/* Handle of a queued bridge reconnect, as a burst of errors should only cause one. Only used on the loop */
+	private static ScheduledFuture<?> pendingReconnect;
 
-	static void reportLights()
-	{
-		PHBridgeResourcesCache cache=phHueSDK.getSelectedBridge().getResourceCache();
-		for(PHLight l:cache.getAllLights())
+	private static final Runnable reconnectTask=new Runnable(){
+		@Override
+		public void run()
 		{
-			PHLightState state=l.getLastKnownLightState();
-			/*
-			 * Generate a JSON object with the state
-			 */
-			WrappedJsonObject json=new WrappedJsonObject();
-			json.add("on",state.isOn());
-			json.add("bri",state.getBrightness());
-			json.add("hue",state.getHue());
-			json.add("sat",state.getSaturation());
-			json.add("ct",state.getCt());
-			json.add("transitiontime",state.getTransitionTime());
-			json.add("alert",reworkName(state.getAlertMode()));
-			json.add("effect",reworkName(state.getEffectMode()));
-			json.add("colormode",reworkName(state.getColorMode()));
-			json.add("reachable",state.isReachable());
-			if(state.getX()!=null)
+			for(HueBridge hb:getBridges())
 			{
-				JsonArray xy=new JsonArray();
-				xy.add(state.getX().floatValue());
-				xy.add(state.getY().floatValue());
-				json.add("xy",xy);
+				if(!hb.isConnected())
+				{
+					Metrics.bridgeReconnects.incrementAndGet();
+					hb.connect();
+				}
 			}
-			MQTTHandler.publishIfChanged(
-				"lights/"+l.getName(),
-				true,
-				"val", state.isOn().booleanValue() ? state.getBrightness() : Integer.valueOf(0),
-				"hue_state", json
-			);
 		}
+	};
+
+	@Override
+	public void onParsingErrors(List<PHHueParsingError> errors)
+	{
+		L.severe("Internal API error "+errors);
 	}
 
 	private static final Logger L=Logger.getLogger(HueHandler.class.getName());
 
-	private static final PHBridgeResource DEFAULT_GROUP_RESOURCE=new PHBridgeResource(null, null);
-
-	public static PHBridgeResource findResourceByName(String name)
+	/*
+	 * Resolve a resource name, optionally prefixed with the bridge key, to its bridge
+	 */
+	static HueBridge resolveBridge(String bridgeKey,String name)
 	{
-		PHBridgeResourcesCache cache=phHueSDK.getSelectedBridge().getResourceCache();
-		if(name.startsWith("lights/"))
-		{
-			name=name.substring(7);
-			for(PHLight l:cache.getAllLights())
-			{
-				if(name.equals(l.getName()))
-					return l;
-			}
-			return cache.getLights().get(name);
-		}
-		if(name.startsWith("groups/"))
+		if(bridgeKey!=null)
+			return findBridgeByKey(bridgeKey);
+		for(HueBridge hb:getBridges())
 		{
-			name=name.substring(7);
-			if("0".equals(name))
-				return DEFAULT_GROUP_RESOURCE;
-			for(PHGroup g:cache.getAllGroups())
-			{
-				if(name.equals(g.getName()))
-					return g;
-			}
-			return cache.getGroups().get(name);
+			// Not necessarily connected: commands for restored bridges are queued until they are
+			if(hb.findResourceByName(name)!=null)
+				return hb;
 		}
 		return null;
 	}
 
-	public static void updateLightState(final String name,final PHLightState ls)
+	public static void updateLightState(String bridgeKey,String name,PHLightState ls,long arrived)
 	{
-		final PHBridgeResource res=findResourceByName(name);
+		HueBridge hb=resolveBridge(bridgeKey,name);
+		PHBridgeResource res=hb!=null?hb.findResourceByName(name):null;
 		if(res==null)
 		{
-			L.info("Unable to find resource by name: "+name);
+			L.info("Unable to find resource by name: "+(bridgeKey!=null?bridgeKey+"/":"")+name);
 			return;
 		}
+		hb.updateLightState(res,ls,arrived);
+	}
 
-		if(res instanceof PHLight)
-		{
-			phHueSDK.getSelectedBridge().updateLightState((PHLight)res, ls,new PHLightListener() {
-
-				@Override
-				public void onSuccess()
-				{
-					L.fine("Updating state ok for "+res);
-				}
-
-				@Override
-				public void onStateUpdate(Map<String, String> p, List<PHHueError> err)
-				{
-					// Done by cache_updated notification
-					//reportLights();
-				}
-
-				@Override
-				public void onError(int rc, String msg)
-				{
-					L.info("Updating state FAILED for "+res+" RC "+rc+": "+msg);
-				}
-
-				@Override
-				public void onSearchComplete()
-				{
-					/* Ignore */
-				}
-
-				@Deprecated
-				@Override
-				public void onReceivingLights(List<PHBridgeResource> arg0)
-				{
-					/* Ignore */
-				}
-
-				@Override
-				public void onReceivingLightDetails(PHLight arg0)
-				{
-					/* Ignore */
-				}
-			});
-		}
-		else if(res==DEFAULT_GROUP_RESOURCE)
-		{
-			phHueSDK.getSelectedBridge().setLightStateForDefaultGroup(ls);
-		}
-		else if(res instanceof PHGroup)
-		{
-			phHueSDK.getSelectedBridge().setLightStateForGroup(res.getIdentifier(),ls,new PHGroupListener(){
-
-				@Override
-				public void onError(int rc, String msg)
-				{
-					L.info("Updating state FAILED for "+res+" RC "+rc+": "+msg);
-				}
-
-				@Override
-				public void onStateUpdate(Map<String, String> p, List<PHHueError> err)
-				{
-					// Done by cache_updated notification
-					//reportLights();
-				}
-
-				@Override
-				public void onSuccess()
-				{
-					L.fine("Updating state ok for "+res);
-				}
-
-				@Override
-				public void onCreated(PHGroup arg0)
-				{
-					// Ignore
-				}
-
-				@Override
-				public void onReceivingAllGroups(List<PHBridgeResource> arg0)
-				{
-					// Ignore
-				}
-
-				@Override
-				public void onReceivingGroupDetails(PHGroup arg0)
-				{
-					// Ignore
-				}
-
-			});
-		}
+	/*
+	 * The overall connection state is only "connected" if all bridges are connected
+	 */
+	static void updateConnectionState()
+	{
+		boolean allConnected=true;
+		for(HueBridge hb:getBridges())
+			allConnected&=hb.isConnected();
+		MQTTHandler.setHueConnectionState(allConnected);
 	}
 
 	@Override
-	public void onBridgeConnected(PHBridge b, String name)
+	public void onBridgeConnected(final PHBridge b, final String name)
 	{
-		L.info("Successfully connected to Hue bridge as "+name);
-		phHueSDK.setSelectedBridge(b);
-		saveUsername(lastPap.getBridgeId(),name);
-		phHueSDK.enableHeartbeat(b, PHHueSDK.HB_INTERVAL);
-		MQTTHandler.setHueConnectionState(true);
-		Main.t.schedule(new TimerTask(){
+		final HueBridge.CacheUpdate cu=new HueBridge.CacheUpdate(b.getResourceCache());
+		EventLoop.post(new Runnable(){
 			@Override
 			public void run()
 			{
-				reportLights();
+				bridgeConnected(b,name,cu);
 			}
-		},2000);
-		PHBridgeResourcesCache cache=phHueSDK.getSelectedBridge().getResourceCache();
-		reportGroups(cache);
-		reportScenes(cache);
+		});
+	}
+
+	private static void bridgeConnected(PHBridge b, String name, HueBridge.CacheUpdate cu)
+	{
+		HueBridge hb=findBridge(b);
+		if(hb==null)
+		{
+			L.warning("Connected to unknown Hue bridge as "+name+", ignoring");
+			return;
+		}
+		L.info("Successfully connected to Hue bridge "+hb.getKey()+" as "+name);
+		phHueSDK.setSelectedBridge(b);
+		saveUsername(hb.getAccessPoint().getBridgeId(),name);
+		hb.onConnected(b,cu);
+		updateConnectionState();
 	}
 }
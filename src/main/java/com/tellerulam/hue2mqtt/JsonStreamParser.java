@@ -0,0 +1,474 @@
+/*
+ * Minimal pull parser for JSON, reading bytes directly from a stream.
+ *
+ * Used to parse bridge responses in direct mode without building a document tree.
+ * Names and string values are kept in a reusable buffer and can be compared against
+ * constants without creating String objects; numbers are parsed without allocation.
+ * Separators (':' and ',') are skipped implicitly, so the caller must know the structure.
+ * Peeking at the next token does not touch the buffer, so a member name can be compared
+ * after checking its value for null.
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+import com.eclipsesource.json.*;
+
+public class JsonStreamParser
+{
+	enum Token
+	{
+		BEGIN_OBJECT,END_OBJECT,BEGIN_ARRAY,END_ARRAY,STRING,NUMBER,TRUE,FALSE,NULL,EOF
+	}
+
+	private InputStream in;
+	private final byte buf[]=new byte[8192];
+	private int pos,limit;
+
+	/* Content of the last STRING or NUMBER token */
+	private byte str[]=new byte[256];
+	private int strLen;
+
+	private Token peeked;
+
+	void reset(InputStream in)
+	{
+		this.in=in;
+		pos=limit=0;
+		peeked=null;
+	}
+
+	private int read() throws IOException
+	{
+		if(pos==limit)
+		{
+			limit=in.read(buf,0,buf.length);
+			pos=0;
+			if(limit<=0)
+			{
+				limit=0;
+				return -1;
+			}
+		}
+		return buf[pos++]&0xff;
+	}
+
+	private int peekByte() throws IOException
+	{
+		int c=read();
+		if(c>=0)
+			pos--;
+		return c;
+	}
+
+	private void append(int b)
+	{
+		if(strLen==str.length)
+			str=Arrays.copyOf(str,str.length*2);
+		str[strLen++]=(byte)b;
+	}
+
+	Token peek() throws IOException
+	{
+		if(peeked==null)
+			peeked=readToken();
+		return peeked;
+	}
+
+	Token next() throws IOException
+	{
+		Token t=peek();
+		peeked=null;
+		// The content is only read when the token is consumed
+		if(t==Token.STRING)
+			readString();
+		else if(t==Token.NUMBER)
+			readNumber();
+		return t;
+	}
+
+	private void expect(Token expected) throws IOException
+	{
+		Token t=next();
+		if(t!=expected)
+			throw new IOException("Expected "+expected+", got "+t);
+	}
+
+	void beginObject() throws IOException
+	{
+		expect(Token.BEGIN_OBJECT);
+	}
+
+	void beginArray() throws IOException
+	{
+		expect(Token.BEGIN_ARRAY);
+	}
+
+	/*
+	 * Whether the current object or array has more members. Consumes the closing bracket if not
+	 */
+	boolean hasNext() throws IOException
+	{
+		Token t=peek();
+		if(t==Token.END_OBJECT || t==Token.END_ARRAY)
+		{
+			peeked=null;
+			return false;
+		}
+		if(t==Token.EOF)
+			throw new EOFException("Unexpected end of JSON");
+		return true;
+	}
+
+	/*
+	 * Read a member name or string value into the buffer
+	 */
+	void nextString() throws IOException
+	{
+		expect(Token.STRING);
+	}
+
+	boolean stringEquals(String s)
+	{
+		return stringEquals(0,s);
+	}
+
+	/*
+	 * Compare the buffer from the given offset on. The buffer holds UTF-8, so the string
+	 * is encoded while comparing
+	 */
+	boolean stringEquals(int offset,String s)
+	{
+		int p=offset;
+		int n=s.length();
+		for(int ix=0;ix<n;ix++)
+		{
+			int c=s.charAt(ix);
+			if(c<0x80)
+			{
+				if(p==strLen || str[p++]!=(byte)c)
+					return false;
+				continue;
+			}
+			if(Character.isHighSurrogate((char)c) && ix+1<n && Character.isLowSurrogate(s.charAt(ix+1)))
+				c=Character.toCodePoint((char)c,s.charAt(++ix));
+			int len=c<0x800?2:c<0x10000?3:4;
+			if(p+len>strLen)
+				return false;
+			int shift=6*(len-1);
+			// Leading byte: as many high bits as the sequence has bytes, then the top bits of the code point
+			if(str[p++]!=(byte)((0xf00>>len)|(c>>shift)))
+				return false;
+			while(shift>0)
+			{
+				shift-=6;
+				if(str[p++]!=(byte)(0x80|((c>>shift)&0x3f)))
+					return false;
+			}
+		}
+		return p==strLen;
+	}
+
+	/*
+	 * For ASCII prefixes only
+	 */
+	boolean stringStartsWith(String prefix)
+	{
+		int n=prefix.length();
+		if(n>strLen)
+			return false;
+		for(int ix=0;ix<n;ix++)
+		{
+			if(str[ix]!=(byte)prefix.charAt(ix))
+				return false;
+		}
+		return true;
+	}
+
+	String stringValue()
+	{
+		return new String(str,0,strLen,StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Return the given string if it equals the buffer, otherwise a new string. Avoids
+	 * creating strings for names which are the same as in the previous response
+	 */
+	String stringValue(String previous)
+	{
+		if(previous!=null && stringEquals(previous))
+			return previous;
+		return stringValue();
+	}
+
+	boolean nextBoolean() throws IOException
+	{
+		Token t=next();
+		if(t==Token.TRUE)
+			return true;
+		if(t==Token.FALSE)
+			return false;
+		throw new IOException("Expected a boolean, got "+t);
+	}
+
+	double nextNumber() throws IOException
+	{
+		expect(Token.NUMBER);
+		long mantissa=0;
+		int scale=0,exp=0,ix=0;
+		boolean neg=false,fraction=false;
+		if(ix<strLen && str[ix]=='-')
+		{
+			neg=true;
+			ix++;
+		}
+		for(;ix<strLen;ix++)
+		{
+			int c=str[ix];
+			if(c>='0' && c<='9')
+			{
+				if(mantissa<100000000000000000L)
+				{
+					mantissa=mantissa*10+(c-'0');
+					if(fraction)
+						scale++;
+				}
+				else if(!fraction)
+					exp++;
+			}
+			else if(c=='.')
+				fraction=true;
+			else
+				break;
+		}
+		if(ix<strLen)
+		{
+			// Exponent; rare enough to not care about allocation
+			return Double.parseDouble(new String(str,0,strLen,StandardCharsets.US_ASCII));
+		}
+		double val=mantissa;
+		exp-=scale;
+		if(exp<0)
+			val/=POW10[Math.min(-exp,POW10.length-1)];
+		else if(exp>0)
+			val*=POW10[Math.min(exp,POW10.length-1)];
+		return neg?-val:val;
+	}
+
+	private static final double POW10[]=new double[23];
+	static
+	{
+		POW10[0]=1;
+		for(int ix=1;ix<POW10.length;ix++)
+			POW10[ix]=POW10[ix-1]*10;
+	}
+
+	int nextInt() throws IOException
+	{
+		return (int)nextNumber();
+	}
+
+	/*
+	 * Read the next value as a document tree. For parts of a response which are passed on as they are
+	 */
+	JsonValue nextValue() throws IOException
+	{
+		switch(peek())
+		{
+			case BEGIN_OBJECT:
+			{
+				next();
+				JsonObject o=new JsonObject();
+				while(hasNext())
+				{
+					nextString();
+					String name=stringValue();
+					o.add(name,nextValue());
+				}
+				return o;
+			}
+			case BEGIN_ARRAY:
+			{
+				next();
+				JsonArray a=new JsonArray();
+				while(hasNext())
+					a.add(nextValue());
+				return a;
+			}
+			case STRING:
+				next();
+				return Json.value(stringValue());
+			case NUMBER:
+			{
+				double d=nextNumber();
+				// Integers without a fraction, as the bridge sent them
+				if(d==Math.rint(d) && Math.abs(d)<1e15)
+					return Json.value((long)d);
+				return Json.value(d);
+			}
+			case TRUE:
+				next();
+				return Json.TRUE;
+			case FALSE:
+				next();
+				return Json.FALSE;
+			case NULL:
+				next();
+				return Json.NULL;
+			default:
+				throw new IOException("Expected a value, got "+next());
+		}
+	}
+
+	/*
+	 * Skip the next value, including nested objects and arrays
+	 */
+	void skipValue() throws IOException
+	{
+		int depth=0;
+		do
+		{
+			switch(next())
+			{
+				case BEGIN_OBJECT:
+				case BEGIN_ARRAY:
+					depth++;
+					break;
+				case END_OBJECT:
+				case END_ARRAY:
+					depth--;
+					break;
+				case EOF:
+					throw new EOFException("Unexpected end of JSON");
+				default:
+					break;
+			}
+		}
+		while(depth>0);
+	}
+
+	private Token readToken() throws IOException
+	{
+		for(;;)
+		{
+			int c=read();
+			switch(c)
+			{
+				case -1:
+					return Token.EOF;
+				case ' ':
+				case '\t':
+				case '\r':
+				case '\n':
+				case ':':
+				case ',':
+					continue;
+				case '{':
+					return Token.BEGIN_OBJECT;
+				case '}':
+					return Token.END_OBJECT;
+				case '[':
+					return Token.BEGIN_ARRAY;
+				case ']':
+					return Token.END_ARRAY;
+				case '"':
+					return Token.STRING;
+				case 't':
+					skipLiteral(3);
+					return Token.TRUE;
+				case 'f':
+					skipLiteral(4);
+					return Token.FALSE;
+				case 'n':
+					skipLiteral(3);
+					return Token.NULL;
+				default:
+					if(c=='-' || (c>='0' && c<='9'))
+					{
+						// Read again by readNumber()
+						pos--;
+						return Token.NUMBER;
+					}
+					throw new IOException("Unexpected character '"+(char)c+"' in JSON");
+			}
+		}
+	}
+
+	private void readNumber() throws IOException
+	{
+		strLen=0;
+		for(;;)
+		{
+			int d=peekByte();
+			if((d>='0' && d<='9') || d=='.' || d=='e' || d=='E' || d=='+' || d=='-')
+			{
+				append(read());
+				continue;
+			}
+			break;
+		}
+	}
+
+	private void skipLiteral(int n) throws IOException
+	{
+		for(int ix=0;ix<n;ix++)
+		{
+			if(read()<0)
+				throw new EOFException("Unexpected end of JSON");
+		}
+	}
+
+	private void readString() throws IOException
+	{
+		strLen=0;
+		for(;;)
+		{
+			int c=read();
+			if(c<0)
+				throw new EOFException("Unexpected end of JSON string");
+			if(c=='"')
+				return;
+			if(c!='\\')
+			{
+				append(c);
+				continue;
+			}
+			c=read();
+			switch(c)
+			{
+				case 'n': append('\n'); break;
+				case 't': append('\t'); break;
+				case 'r': append('\r'); break;
+				case 'b': append('\b'); break;
+				case 'f': append('\f'); break;
+				case 'u':
+				{
+					int cp=0;
+					for(int ix=0;ix<4;ix++)
+						cp=(cp<<4)|Character.digit(read(),16);
+					// Encode as UTF-8 (surrogate pairs are encoded separately, which is good enough for names)
+					if(cp<0x80)
+						append(cp);
+					else if(cp<0x800)
+					{
+						append(0xc0|(cp>>6));
+						append(0x80|(cp&0x3f));
+					}
+					else
+					{
+						append(0xe0|(cp>>12));
+						append(0x80|((cp>>6)&0x3f));
+						append(0x80|(cp&0x3f));
+					}
+					break;
+				}
+				default:
+					append(c);
+					break;
+			}
+		}
+	}
+}
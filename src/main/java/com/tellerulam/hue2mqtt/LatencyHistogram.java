@@ -0,0 +1,178 @@
+/*
+ * Lock-free log-linear latency histogram, in the style of HdrHistogram.
+ *
+ * Values (nanoseconds) are counted in buckets which are linear within each power of two,
+ * with 8 sub-buckets each, giving a relative precision of 12.5% over the whole range
+ * at a fixed memory cost. Recording is a few atomic increments and never allocates.
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.util.concurrent.atomic.*;
+
+import com.eclipsesource.json.*;
+
+public class LatencyHistogram implements LatencyHistogramMBean
+{
+	private static final int SUB_BITS=3;
+	private static final int SUB_BUCKETS=1<<SUB_BITS;
+	private static final int BUCKETS=(64-SUB_BITS)*SUB_BUCKETS;
+
+	private final AtomicLongArray counts=new AtomicLongArray(BUCKETS);
+	private final AtomicLong sum=new AtomicLong();
+	private final AtomicLong max=new AtomicLong();
+
+	/* Result of the last interval, as seen by snapshot() */
+	private volatile Snapshot last=new Snapshot(0,0,0,0,0,0);
+
+	static int bucketFor(long value)
+	{
+		if(value<2*SUB_BUCKETS)
+			return (int)Math.max(0,value);
+		int exp=63-Long.numberOfLeadingZeros(value);
+		int sub=(int)(value>>>(exp-SUB_BITS))&(SUB_BUCKETS-1);
+		return (exp-SUB_BITS+1)*SUB_BUCKETS+sub;
+	}
+
+	/*
+	 * Highest value which falls into the given bucket
+	 */
+	static long bucketUpperBound(int bucket)
+	{
+		if(bucket<2*SUB_BUCKETS)
+			return bucket;
+		int exp=bucket/SUB_BUCKETS+SUB_BITS-1;
+		int sub=bucket%SUB_BUCKETS;
+		long lower=(long)(SUB_BUCKETS+sub)<<(exp-SUB_BITS);
+		return lower+(1L<<(exp-SUB_BITS))-1;
+	}
+
+	public void record(long nanos)
+	{
+		counts.incrementAndGet(bucketFor(nanos));
+		sum.addAndGet(nanos);
+		long m;
+		while(nanos>(m=max.get()))
+		{
+			if(max.compareAndSet(m,nanos))
+				break;
+		}
+	}
+
+	/*
+	 * Convenience for measuring from a System.nanoTime() start value
+	 */
+	public void recordSince(long startNanos)
+	{
+		record(System.nanoTime()-startNanos);
+	}
+
+	static class Snapshot
+	{
+		final long count;
+		final double meanMicros;
+		final long p50,p90,p99,maxMicros;
+
+		Snapshot(long count,double meanMicros,long p50,long p90,long p99,long maxMicros)
+		{
+			this.count=count;
+			this.meanMicros=meanMicros;
+			this.p50=p50;
+			this.p90=p90;
+			this.p99=p99;
+			this.maxMicros=maxMicros;
+		}
+
+		JsonObject toJson()
+		{
+			JsonObject jso=new JsonObject();
+			jso.add("count",count);
+			jso.add("mean_us",Math.round(meanMicros));
+			jso.add("p50_us",p50);
+			jso.add("p90_us",p90);
+			jso.add("p99_us",p99);
+			jso.add("max_us",maxMicros);
+			return jso;
+		}
+	}
+
+	/*
+	 * Compute the statistics of all values recorded since the last call, and reset
+	 */
+	Snapshot intervalSnapshot()
+	{
+		long[] c=new long[BUCKETS];
+		long n=0;
+		for(int ix=0;ix<BUCKETS;ix++)
+		{
+			c[ix]=counts.getAndSet(ix,0);
+			n+=c[ix];
+		}
+		long s=sum.getAndSet(0);
+		long m=max.getAndSet(0);
+		Snapshot snap;
+		if(n==0)
+			snap=new Snapshot(0,0,0,0,0,0);
+		else
+		{
+			// Bucket bounds may overshoot the largest actual value
+			long maxMicros=m/1000;
+			snap=new Snapshot(n,s/1000.0/n,
+				Math.min(maxMicros,percentile(c,n,0.5)),
+				Math.min(maxMicros,percentile(c,n,0.9)),
+				Math.min(maxMicros,percentile(c,n,0.99)),
+				maxMicros);
+		}
+		last=snap;
+		return snap;
+	}
+
+	private static long percentile(long[] c,long n,double p)
+	{
+		long rank=(long)Math.ceil(p*n);
+		long seen=0;
+		for(int ix=0;ix<c.length;ix++)
+		{
+			seen+=c[ix];
+			if(seen>=rank)
+				return bucketUpperBound(ix)/1000;
+		}
+		return 0;
+	}
+
+	@Override
+	public long getCount()
+	{
+		return last.count;
+	}
+
+	@Override
+	public double getMean()
+	{
+		return last.meanMicros;
+	}
+
+	@Override
+	public long getP50()
+	{
+		return last.p50;
+	}
+
+	@Override
+	public long getP90()
+	{
+		return last.p90;
+	}
+
+	@Override
+	public long getP99()
+	{
+		return last.p99;
+	}
+
+	@Override
+	public long getMax()
+	{
+		return last.maxMicros;
+	}
+}
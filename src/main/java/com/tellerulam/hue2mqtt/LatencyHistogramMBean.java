@@ -0,0 +1,15 @@
+package com.tellerulam.hue2mqtt;
+
+/*
+ * JMX view of a latency histogram. All values refer to the last metrics interval,
+ * latencies are in microseconds
+ */
+public interface LatencyHistogramMBean
+{
+	long getCount();
+	double getMean();
+	long getP50();
+	long getP90();
+	long getP99();
+	long getMax();
+}
@@ -0,0 +1,348 @@
+/*
+ * Compact copy of the published fields of a PHLightState, used to detect
+ * changes field by field before any JSON is generated
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.io.*;
+
+import com.eclipsesource.json.*;
+import com.philips.lighting.model.*;
+import com.philips.lighting.model.PHLight.PHLightAlertMode;
+import com.philips.lighting.model.PHLight.PHLightColorMode;
+import com.philips.lighting.model.PHLight.PHLightEffectMode;
+
+public class LightStateSnapshot
+{
+	/* Marker for integer fields which are not present in the light state */
+	static final int NONE=Integer.MIN_VALUE;
+
+	boolean on;
+	int bri,hue,sat,ct,transitiontime;
+	boolean hasXY;
+	float x,y;
+	PHLightAlertMode alert;
+	PHLightEffectMode effect;
+	PHLightColorMode colormode;
+	/* 0=false, 1=true, -1=unknown */
+	byte reachable;
+
+	private static int intValue(Integer i)
+	{
+		return i!=null ? i.intValue() : NONE;
+	}
+
+	void set(PHLightState state)
+	{
+		on=state.isOn().booleanValue();
+		bri=intValue(state.getBrightness());
+		hue=intValue(state.getHue());
+		sat=intValue(state.getSaturation());
+		ct=intValue(state.getCt());
+		transitiontime=intValue(state.getTransitionTime());
+		// Occasionally we receive status updates with the modes set to UNKNOWN
+		// To avoid bogus publishes, we treat that like "none"
+		alert=state.getAlertMode();
+		if(alert==PHLightAlertMode.ALERT_UNKNOWN)
+			alert=PHLightAlertMode.ALERT_NONE;
+		effect=state.getEffectMode();
+		if(effect==PHLightEffectMode.EFFECT_UNKNOWN)
+			effect=PHLightEffectMode.EFFECT_NONE;
+		colormode=state.getColorMode();
+		if(colormode==PHLightColorMode.COLORMODE_UNKNOWN)
+			colormode=PHLightColorMode.COLORMODE_NONE;
+		Boolean r=state.isReachable();
+		reachable=(byte)(r==null ? -1 : r.booleanValue() ? 1 : 0);
+		hasXY=state.getX()!=null;
+		if(hasXY)
+		{
+			x=state.getX().floatValue();
+			y=state.getY().floatValue();
+		}
+		else
+		{
+			x=0;
+			y=0;
+		}
+	}
+
+	/*
+	 * Reset to an empty state, before filling in the fields present in a bridge response
+	 */
+	void clear()
+	{
+		on=false;
+		bri=hue=sat=ct=transitiontime=NONE;
+		alert=null;
+		effect=null;
+		colormode=null;
+		reachable=-1;
+		hasXY=false;
+		x=0;
+		y=0;
+	}
+
+	void copyFrom(LightStateSnapshot o)
+	{
+		on=o.on;
+		bri=o.bri;
+		hue=o.hue;
+		sat=o.sat;
+		ct=o.ct;
+		transitiontime=o.transitiontime;
+		alert=o.alert;
+		effect=o.effect;
+		colormode=o.colormode;
+		reachable=o.reachable;
+		hasXY=o.hasXY;
+		x=o.x;
+		y=o.y;
+	}
+
+	private static int clamp(int val,int min,int max)
+	{
+		return Math.max(min,Math.min(max,val));
+	}
+
+	private static float clamp(float val)
+	{
+		return Math.max(0,Math.min(1,val));
+	}
+
+	/*
+	 * Predict the state after the bridge accepted the given command. Alerts are
+	 * transient and the transition time is not part of the reported state,
+	 * so neither is applied
+	 */
+	void apply(PHLightState cmd)
+	{
+		if(cmd.isOn()!=null)
+			on=cmd.isOn().booleanValue();
+		if(cmd.getBrightness()!=null)
+			bri=cmd.getBrightness().intValue();
+		else if(cmd.getIncrementBri()!=null && bri!=NONE)
+			bri=clamp(bri+cmd.getIncrementBri().intValue(),1,254);
+		if(cmd.getHue()!=null)
+			hue=cmd.getHue().intValue();
+		else if(cmd.getIncrementHue()!=null && hue!=NONE)
+			hue=(hue+cmd.getIncrementHue().intValue()+65536)%65536;
+		if(cmd.getSaturation()!=null)
+			sat=cmd.getSaturation().intValue();
+		else if(cmd.getIncrementSat()!=null && sat!=NONE)
+			sat=clamp(sat+cmd.getIncrementSat().intValue(),0,254);
+		if(cmd.getHue()!=null || cmd.getIncrementHue()!=null || cmd.getSaturation()!=null || cmd.getIncrementSat()!=null)
+			colormode=PHLightColorMode.COLORMODE_HUE_SATURATION;
+		if(cmd.getCt()!=null)
+			ct=cmd.getCt().intValue();
+		else if(cmd.getIncrementCt()!=null && ct!=NONE)
+			ct=clamp(ct+cmd.getIncrementCt().intValue(),153,500);
+		if(cmd.getCt()!=null || cmd.getIncrementCt()!=null)
+			colormode=PHLightColorMode.COLORMODE_CT;
+		if(hasXY)
+		{
+			if(cmd.getX()!=null)
+				x=cmd.getX().floatValue();
+			else if(cmd.getIncrementX()!=null)
+				x=clamp(x+cmd.getIncrementX().floatValue());
+			if(cmd.getY()!=null)
+				y=cmd.getY().floatValue();
+			else if(cmd.getIncrementY()!=null)
+				y=clamp(y+cmd.getIncrementY().floatValue());
+		}
+		if(cmd.getX()!=null || cmd.getY()!=null || cmd.getIncrementX()!=null || cmd.getIncrementY()!=null)
+			colormode=PHLightColorMode.COLORMODE_XY;
+		if(cmd.getEffectMode()!=null && cmd.getEffectMode()!=PHLightEffectMode.EFFECT_UNKNOWN)
+			effect=cmd.getEffectMode();
+		if(cmd.getColorMode()!=null && cmd.getColorMode()!=PHLightColorMode.COLORMODE_UNKNOWN)
+			colormode=cmd.getColorMode();
+	}
+
+	boolean sameAs(LightStateSnapshot o)
+	{
+		return o!=null
+			&& on==o.on
+			&& bri==o.bri
+			&& hue==o.hue
+			&& sat==o.sat
+			&& ct==o.ct
+			&& transitiontime==o.transitiontime
+			&& alert==o.alert
+			&& effect==o.effect
+			&& colormode==o.colormode
+			&& reachable==o.reachable
+			&& hasXY==o.hasXY
+			&& Float.floatToIntBits(x)==Float.floatToIntBits(o.x)
+			&& Float.floatToIntBits(y)==Float.floatToIntBits(o.y);
+	}
+
+	/*
+	 * Binary form for the state file. Enums are stored by name
+	 */
+	void write(DataOutput out) throws IOException
+	{
+		out.writeBoolean(on);
+		out.writeInt(bri);
+		out.writeInt(hue);
+		out.writeInt(sat);
+		out.writeInt(ct);
+		out.writeInt(transitiontime);
+		out.writeBoolean(hasXY);
+		out.writeFloat(x);
+		out.writeFloat(y);
+		out.writeUTF(alert!=null?alert.name():"");
+		out.writeUTF(effect!=null?effect.name():"");
+		out.writeUTF(colormode!=null?colormode.name():"");
+		out.writeByte(reachable);
+	}
+
+	void read(DataInput in) throws IOException
+	{
+		on=in.readBoolean();
+		bri=in.readInt();
+		hue=in.readInt();
+		sat=in.readInt();
+		ct=in.readInt();
+		transitiontime=in.readInt();
+		hasXY=in.readBoolean();
+		x=in.readFloat();
+		y=in.readFloat();
+		alert=readEnum(in,PHLightAlertMode.class);
+		effect=readEnum(in,PHLightEffectMode.class);
+		colormode=readEnum(in,PHLightColorMode.class);
+		reachable=in.readByte();
+	}
+
+	private static <E extends Enum<E>> E readEnum(DataInput in,Class<E> type) throws IOException
+	{
+		String name=in.readUTF();
+		if(name.isEmpty())
+			return null;
+		try
+		{
+			return Enum.valueOf(type,name);
+		}
+		catch(IllegalArgumentException e)
+		{
+			// Unknown to this SDK version
+			return null;
+		}
+	}
+
+	static String reworkName(Object enumValue)
+	{
+		String name=enumValue.toString();
+		int usc=name.indexOf('_');
+		if(usc>=0)
+			name=name.substring(usc+1);
+		// Use the value of the raw API
+		if("HUE_SATURATION".equals(name))
+			return "hs";
+		return name.toLowerCase();
+	}
+
+	/*
+	 * Publish the datapoints which differ from the previous snapshot (or all, if there
+	 * is none) as scalar values to <topic>/<datapoint>
+	 */
+	void publishChangedDatapoints(String topic,LightStateSnapshot prev)
+	{
+		boolean all=prev==null;
+		if(all || on!=prev.on)
+			MQTTHandler.publishValue(topic+"/on",String.valueOf(on));
+		publishInt(topic,"bri",bri,all?NONE:prev.bri,all);
+		publishInt(topic,"hue",hue,all?NONE:prev.hue,all);
+		publishInt(topic,"sat",sat,all?NONE:prev.sat,all);
+		publishInt(topic,"ct",ct,all?NONE:prev.ct,all);
+		if(alert!=null && (all || alert!=prev.alert))
+			MQTTHandler.publishValue(topic+"/alert",reworkName(alert));
+		if(effect!=null && (all || effect!=prev.effect))
+			MQTTHandler.publishValue(topic+"/effect",reworkName(effect));
+		if(colormode!=null && (all || colormode!=prev.colormode))
+			MQTTHandler.publishValue(topic+"/colormode",reworkName(colormode));
+		if(reachable>=0 && (all || reachable!=prev.reachable))
+			MQTTHandler.publishValue(topic+"/reachable",String.valueOf(reachable==1));
+		if(hasXY)
+		{
+			if(all || !prev.hasXY || Float.floatToIntBits(x)!=Float.floatToIntBits(prev.x))
+				MQTTHandler.publishValue(topic+"/x",String.valueOf(x));
+			if(all || !prev.hasXY || Float.floatToIntBits(y)!=Float.floatToIntBits(prev.y))
+				MQTTHandler.publishValue(topic+"/y",String.valueOf(y));
+		}
+	}
+
+	private static void publishInt(String topic,String datapoint,int val,int prevVal,boolean all)
+	{
+		if(val!=NONE && (all || val!=prevVal))
+			MQTTHandler.publishValue(topic+"/"+datapoint,String.valueOf(val));
+	}
+
+	private static void addInt(JsonObject json,String name,int val)
+	{
+		if(val!=NONE)
+			json.add(name,val);
+	}
+
+	/*
+	 * Encode the same fields as toJson() as a CBOR map, directly from the snapshot
+	 */
+	void writeCbor(Cbor.Writer w)
+	{
+		int n=1;
+		n+=(bri!=NONE?1:0)+(hue!=NONE?1:0)+(sat!=NONE?1:0)+(ct!=NONE?1:0)+(transitiontime!=NONE?1:0);
+		n+=(alert!=null?1:0)+(effect!=null?1:0)+(colormode!=null?1:0)+(reachable>=0?1:0)+(hasXY?1:0);
+		w.map(n);
+		w.text("on").bool(on);
+		writeCborInt(w,"bri",bri);
+		writeCborInt(w,"hue",hue);
+		writeCborInt(w,"sat",sat);
+		writeCborInt(w,"ct",ct);
+		writeCborInt(w,"transitiontime",transitiontime);
+		if(alert!=null)
+			w.text("alert").text(reworkName(alert));
+		if(effect!=null)
+			w.text("effect").text(reworkName(effect));
+		if(colormode!=null)
+			w.text("colormode").text(reworkName(colormode));
+		if(reachable>=0)
+			w.text("reachable").bool(reachable==1);
+		if(hasXY)
+			w.text("xy").array(2).float32(x).float32(y);
+	}
+
+	private static void writeCborInt(Cbor.Writer w,String name,int val)
+	{
+		if(val!=NONE)
+			w.text(name).integer(val);
+	}
+
+	/*
+	 * Generate a JSON object with the state, in the same form the Hue API uses
+	 */
+	JsonObject toJson()
+	{
+		JsonObject json=new JsonObject();
+		json.add("on",on);
+		addInt(json,"bri",bri);
+		addInt(json,"hue",hue);
+		addInt(json,"sat",sat);
+		addInt(json,"ct",ct);
+		addInt(json,"transitiontime",transitiontime);
+		if(alert!=null)
+			json.add("alert",reworkName(alert));
+		if(effect!=null)
+			json.add("effect",reworkName(effect));
+		if(colormode!=null)
+			json.add("colormode",reworkName(colormode));
+		if(reachable>=0)
+			json.add("reachable",reachable==1);
+		if(hasXY)
+		{
+			JsonArray xy=new JsonArray();
+			xy.add(x);
+			xy.add(y);
+			json.add("xy",xy);
+		}
+		return json;
+	}
+}
@@ -2,8 +2,8 @@ package com.tellerulam.hue2mqtt;
 
 import java.nio.charset.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
-import java.util.regex.*;
 
 import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.*;
@@ -21,27 +21,49 @@ public class MQTTHandler
 
 	public static void init() throws MqttException
 	{
-		instance=new MQTTHandler();
+		String server=System.getProperty("hue2mqtt.mqtt.server","tcp://localhost:1883");
+		String clientID=System.getProperty("hue2mqtt.mqtt.clientid","hue2mqtt");
+		instance=new MQTTHandler(new MqttAsyncClient(server,clientID,new MemoryPersistence()));
 		instance.doInit();
 	}
 
+	/*
+	 * Set up the handler with the given client, without connecting. Used by the benchmarks
+	 */
+	static MQTTHandler initUnconnected(IMqttAsyncClient mqttc)
+	{
+		instance=new MQTTHandler(mqttc);
+		return instance;
+	}
+
 	private static MQTTHandler instance;
 
 	private final String topicPrefix;
-	private MQTTHandler()
+	private final String setPrefix;
+	private MQTTHandler(IMqttAsyncClient mqttc)
 	{
+		this.mqttc=mqttc;
+		this.publishQueue=new PublishQueue(mqttc);
 		String tp=System.getProperty("hue2mqtt.mqtt.topic","hue");
 		if(!tp.endsWith("/"))
 			tp+="/";
 		topicPrefix=tp;
+		setPrefix=topicPrefix+"set/";
+		setTopicParser=new SetTopic.Parser(topicPrefix,HueHandler.isNamespaced());
 	}
 
-	private MqttClient mqttc;
+	private final IMqttAsyncClient mqttc;
+	private final PublishQueue publishQueue;
 
-	private void queueConnect()
+	/* Handle of a queued reconnect, to avoid queueing several at once */
+	private ScheduledFuture<?> pendingConnect;
+
+	private synchronized void queueConnect()
 	{
 		shouldBeConnected=false;
-		Main.t.schedule(new TimerTask(){
+		if(pendingConnect!=null && !pendingConnect.isDone())
+			return;
+		pendingConnect=Scheduler.schedule(Scheduler.Lane.IO,new Runnable(){
 			@Override
 			public void run()
 			{
@@ -50,7 +72,7 @@ public class MQTTHandler
 		},10*1000);
 	}
 
-	private class StateChecker extends TimerTask
+	private class StateChecker implements Runnable
 	{
 		@Override
 		public void run()
@@ -63,74 +85,106 @@ public class MQTTHandler
 		}
 	}
 
-	private boolean shouldBeConnected;
+	private volatile boolean shouldBeConnected;
 
-	private final Pattern topicPattern=Pattern.compile("([^/]+/[^/]+)(?:/((?:on|bri|hue|sat|ct|alert|effect|colormode|reachable|x|y|transitiontime)(?:_inc)?))?");
+	private final SetTopic.Parser setTopicParser;
 
+	/* Only accessed on the event loop */
 	private final Map<String,Integer> transitionTimeCache=new HashMap<>();
 
-	void processSet(String topic,MqttMessage msg)
+	/* Encode status messages as CBOR instead of JSON */
+	private static final boolean binary="cbor".equalsIgnoreCase(System.getProperty("hue2mqtt.mqtt.codec","json"));
+
+	static boolean isBinary()
+	{
+		return binary;
+	}
+
+	void processSet(SetTopic st,MqttMessage msg,long arrived)
 	{
-		String payload=new String(msg.getPayload());
+		byte raw[]=msg.getPayload();
 		/*
 		 * Possible formats:
 		 *
 		 * object/name <simple value>
 		 * object/name <json>
+		 * object/name <cbor map>
 		 * object/name/<datapoint> <simple value>
+		 * scenes/name <anything>
 		 */
-		Matcher m=topicPattern.matcher(topic);
-		if(!m.matches())
+		if(st.resource.startsWith("scenes/"))
 		{
-			L.warning("Received set to unparsable topic "+topic);
+			if(msg.isRetained())
+			{
+				L.fine("Ignoring retained set message "+msg+" to "+st.resource);
+				return;
+			}
+			// The scene defines the light states, so the payload is ignored
+			HueHandler.updateLightState(st.bridgeKey,st.resource,new PHLightState(),arrived);
 			return;
 		}
-		if(m.group(2)!=null)
+		if(st.datapoint!=null)
 		{
+			String payload=new String(raw);
 			// Third format
-			if("transitiontime".equals(m.group(2)))
+			if(st.datapoint==Datapoint.TRANSITIONTIME)
 			{
 				// We only cache that, for future reference
-				transitionTimeCache.put(m.group(1),Integer.valueOf(payload));
+				transitionTimeCache.put(st.cacheKey,Integer.valueOf(payload));
 				return;
 			}
 			if(msg.isRetained())
 			{
-				L.fine("Ignoring retained set message "+msg+" to "+topic);
+				L.fine("Ignoring retained set message "+msg+" to "+st.resource);
 				return;
 			}
-			processSetDatapoint(m.group(1),m.group(2),payload);
+			processSetDatapoint(st,payload,arrived);
 		}
 		else
 		{
 			if(msg.isRetained())
 			{
-				L.fine("Ignoring retained set message "+msg+" to "+topic);
+				L.fine("Ignoring retained set message "+msg+" to "+st.resource);
 				return;
 			}
-			processSetComposite(topic,payload);
+			if(Cbor.isMap(raw))
+				processSetCbor(st,raw,arrived);
+			else
+				processSetComposite(st,new String(raw),arrived);
 		}
 	}
 
 	@SuppressWarnings("boxing")
-	private void processSetComposite(String resource, String payload)
+	private void processSetComposite(SetTopic st, String payload, long arrived)
 	{
-		PHLightState ls=new PHLightState();
-
 		// Attempt to decode payload as a JSON object
-		if(payload.trim().startsWith("{"))
+		JsonValue state=payload.trim().startsWith("{")?Json.parse(payload):Json.value(Double.parseDouble(payload));
+		HueHandler.updateLightState(st.bridgeKey,st.resource,compositeState(st,state),arrived);
+	}
+
+	/*
+	 * Either a JSON object with datapoints, or a brightness level
+	 */
+	@SuppressWarnings("boxing")
+	private PHLightState compositeState(SetTopic st, JsonValue state)
+	{
+		PHLightState ls=new PHLightState();
+		if(state.isObject())
 		{
-			JsonObject jso=(JsonObject)Json.parse(payload);
+			JsonObject jso=state.asObject();
 			for(Iterator<Member> mit=jso.iterator();mit.hasNext();)
 			{
 				Member m=mit.next();
 				JsonValue val=m.getValue();
-				addDatapointToLightState(ls, m.getName(), val.isString()?val.asString():val.toString());
+				Datapoint dp=Datapoint.forName(m.getName());
+				if(dp==null)
+					throw new IllegalArgumentException("Attempting to set unknown datapoint "+m.getName()+" to value "+val);
+				addDatapointToLightState(ls, dp, val.isString()?val.asString():val.toString());
 			}
 		}
 		else
 		{
-			double level=Double.parseDouble(payload);
+			double level=state.isString()?Double.parseDouble(state.asString()):state.asDouble();
 			if(level<1)
 			{
 				ls.setOn(false);
@@ -143,9 +197,198 @@ public class MQTTHandler
 				ls.setBrightness((int)level);
 			}
 			// May be null
-			ls.setTransitionTime(transitionTimeCache.get(resource));
+			ls.setTransitionTime(transitionTimeCache.get(st.cacheKey));
+		}
+		return ls;
+	}
+
+	/*
+	 * A bulk set carries commands for several resources:
+	 *
+	 *   [{"target":"lights/<name>","state":<state>},...]
+	 *
+	 * or, to receive a correlated result,
+	 *
+	 *   {"id":<id>,"commands":[...]}
+	 *
+	 * target is anything which may follow set/ in a single set topic, and state is anything which
+	 * may be published to it. All commands are validated before any of them is executed; if one of
+	 * them is invalid, the whole bulk set is rejected. The accepted commands are submitted as one
+	 * batch per bridge, so identical light states can be collapsed into group commands.
+	 * The result is published to status/bulk.
+	 */
+	private void processBulk(MqttMessage msg,long arrived)
+	{
+		if(msg.isRetained())
+		{
+			L.fine("Ignoring retained bulk set message");
+			return;
+		}
+		JsonObject result=new JsonObject();
+		JsonArray errors=new JsonArray();
+		Map<HueBridge,List<CommandCoalescer.Command>> batches=new LinkedHashMap<>();
+		int count=0;
+		try
+		{
+			JsonValue v=Json.parse(new String(msg.getPayload(),StandardCharsets.UTF_8));
+			JsonValue commands=v;
+			if(v.isObject())
+			{
+				JsonValue id=v.asObject().get("id");
+				if(id!=null)
+					result.add("id",id);
+				commands=v.asObject().get("commands");
+				if(commands==null)
+					throw new IllegalArgumentException("Missing commands");
+			}
+			for(JsonValue e:commands.asArray())
+			{
+				count++;
+				String target=null;
+				try
+				{
+					JsonObject jso=e.asObject();
+					target=jso.get("target").asString();
+					JsonValue state=jso.get("state");
+					SetTopic st=setTopicParser.parse(setPrefix+target);
+					if(st==null)
+						throw new IllegalArgumentException("Invalid target");
+					if(st.datapoint==Datapoint.TRANSITIONTIME)
+						throw new IllegalArgumentException("transitiontime can only be set as part of a state");
+					HueBridge hb=HueHandler.resolveBridge(st.bridgeKey,st.resource);
+					PHBridgeResource res=hb!=null?hb.findResourceByName(st.resource):null;
+					if(res==null)
+						throw new IllegalArgumentException("Unknown resource");
+					PHLightState ls;
+					if(st.resource.startsWith("scenes/"))
+						ls=new PHLightState();
+					else if(st.datapoint!=null)
+					{
+						ls=new PHLightState();
+						addDatapointToLightState(ls,st.datapoint,state.isString()?state.asString():state.toString());
+						ls.setTransitionTime(transitionTimeCache.get(st.cacheKey));
+					}
+					else
+						ls=compositeState(st,state);
+					List<CommandCoalescer.Command> batch=batches.get(hb);
+					if(batch==null)
+						batches.put(hb,batch=new ArrayList<>());
+					batch.add(new CommandCoalescer.Command(res,ls,arrived));
+				}
+				catch(RuntimeException ex)
+				{
+					JsonObject err=new JsonObject();
+					err.add("index",count-1);
+					if(target!=null)
+						err.add("target",target);
+					err.add("error",String.valueOf(ex.getMessage()));
+					errors.add(err);
+				}
+			}
+		}
+		catch(RuntimeException ex)
+		{
+			JsonObject err=new JsonObject();
+			err.add("error",String.valueOf(ex.getMessage()));
+			errors.add(err);
+		}
+		int collapsed=0;
+		if(errors.isEmpty())
+		{
+			for(Map.Entry<HueBridge,List<CommandCoalescer.Command>> me:batches.entrySet())
+				collapsed+=me.getKey().updateLightStates(me.getValue());
+		}
+		else
+			Metrics.setErrors.incrementAndGet();
+		result.add("ok",errors.isEmpty());
+		result.add("commands",count);
+		result.add("collapsed",collapsed);
+		if(!errors.isEmpty())
+			result.add("errors",errors);
+		publish("bulk",false,result);
+	}
+
+	/*
+	 * Decode a CBOR map of datapoints directly into the light state
+	 */
+	private void processSetCbor(SetTopic st,byte[] payload,long arrived)
+	{
+		PHLightState ls=new PHLightState();
+		Cbor.Reader r=new Cbor.Reader(payload);
+		for(int n=r.readMap();n>0;n--)
+		{
+			String name=r.readText();
+			Datapoint dp=Datapoint.forName(name);
+			if(dp==null)
+				throw new IllegalArgumentException("Attempting to set unknown datapoint "+name);
+			switch(dp)
+			{
+				case ON:
+					if(r.isText())
+						addDatapointToLightState(ls,dp,r.readText());
+					else
+						ls.setOn(Boolean.valueOf(r.readBoolean()));
+					break;
+				case COLORMODE:
+				case ALERT:
+				case EFFECT:
+					addDatapointToLightState(ls,dp,r.readText());
+					break;
+				default:
+					addDatapointToLightState(ls,dp,r.readNumber());
+					break;
+			}
+		}
+		HueHandler.updateLightState(st.bridgeKey,st.resource,ls,arrived);
+	}
+
+	private void addDatapointToLightState(PHLightState ls,Datapoint datapoint,double value)
+	{
+		Integer i=Integer.valueOf((int)value);
+		switch(datapoint)
+		{
+			case BRI:
+				ls.setBrightness(i);
+				break;
+			case BRI_INC:
+				ls.setIncrementBri(i);
+				break;
+			case HUE:
+				ls.setHue(i);
+				break;
+			case HUE_INC:
+				ls.setIncrementHue(i);
+				break;
+			case SAT:
+				ls.setSaturation(i);
+				break;
+			case SAT_INC:
+				ls.setIncrementSat(i);
+				break;
+			case X:
+				ls.setX(Float.valueOf((float)value));
+				break;
+			case X_INC:
+				ls.setIncrementX(Float.valueOf((float)value));
+				break;
+			case Y:
+				ls.setY(Float.valueOf((float)value));
+				break;
+			case Y_INC:
+				ls.setIncrementY(Float.valueOf((float)value));
+				break;
+			case CT:
+				ls.setCt(i);
+				break;
+			case CT_INC:
+				ls.setIncrementCt(i);
+				break;
+			case TRANSITIONTIME:
+				ls.setTransitionTime(i);
+				break;
+			default:
+				throw new IllegalArgumentException("Datapoint "+datapoint+" is not numeric");
 		}
-		HueHandler.updateLightState(resource,ls);
 	}
 
 	/*
@@ -156,66 +399,64 @@ public class MQTTHandler
 		return Integer.valueOf((int)Double.parseDouble(number));
 	}
 
-	private void addDatapointToLightState(PHLightState ls,String datapoint,String value)
+	private void addDatapointToLightState(PHLightState ls,Datapoint datapoint,String value)
 	{
 		switch(datapoint)
 		{
-			case "on":
+			case ON:
 				if("1".equals(value)||"on".equals(value)||"true".equals(value))
 					ls.setOn(Boolean.TRUE);
 				else
 					ls.setOn(Boolean.FALSE);
 				break;
-			case "bri":
+			case BRI:
 				ls.setBrightness(parseNumber(value));
 				break;
-			case "bri_inc":
+			case BRI_INC:
 				ls.setIncrementBri(parseNumber(value));
 				break;
-			case "hue":
+			case HUE:
 				ls.setHue(parseNumber(value));
 				break;
-			case "hue_inc":
+			case HUE_INC:
 				ls.setIncrementHue(parseNumber(value));
 				break;
-			case "sat":
+			case SAT:
 				ls.setSaturation(parseNumber(value));
 				break;
-			case "sat_inc":
+			case SAT_INC:
 				ls.setIncrementSat(parseNumber(value));
 				break;
-			case "x":
+			case X:
 				ls.setX(Float.valueOf(value));
 				break;
-			case "x_inc":
+			case X_INC:
 				ls.setIncrementX(Float.valueOf(value));
 				break;
-			case "y":
+			case Y:
 				ls.setY(Float.valueOf(value));
 				break;
-			case "y_inc":
+			case Y_INC:
 				ls.setIncrementY(Float.valueOf(value));
 				break;
-			case "ct":
+			case CT:
 				ls.setCt(parseNumber(value));
 				break;
-			case "ct_inc":
+			case CT_INC:
 				ls.setIncrementCt(parseNumber(value));
 				break;
-			case "transitiontime":
+			case TRANSITIONTIME:
 				ls.setTransitionTime(parseNumber(value));
 				break;
-			case "colormode":
+			case COLORMODE:
 				ls.setColorMode(parseColorMode(value));
 				break;
-			case "alert":
+			case ALERT:
 				ls.setAlertMode(parseAlertMode(value));
 				break;
-			case "effect":
+			case EFFECT:
 				ls.setEffectMode(parseEffectMode(value));
 				break;
-			default:
-				throw new IllegalArgumentException("Attempting to set unknown datapoint "+datapoint+" to value "+value);
 		}
 	}
 
@@ -262,25 +503,43 @@ public class MQTTHandler
 		}
 	}
 
-	private void processSetDatapoint(String resource, String datapoint, String payload)
+	private void processSetDatapoint(SetTopic st, String payload, long arrived)
 	{
 		PHLightState ls=new PHLightState();
-		addDatapointToLightState(ls,datapoint,payload);
+		addDatapointToLightState(ls,st.datapoint,payload);
 		// May be null
-		ls.setTransitionTime(transitionTimeCache.get(resource));
-		HueHandler.updateLightState(resource,ls);
+		ls.setTransitionTime(transitionTimeCache.get(st.cacheKey));
+		HueHandler.updateLightState(st.bridgeKey,st.resource,ls,arrived);
 	}
 
-	void processMessage(String topic,MqttMessage msg)
+	/*
+	 * arrived is the System.nanoTime() when the client received the message
+	 */
+	void processMessage(String topic,MqttMessage msg,long arrived)
 	{
+		long start=System.nanoTime();
 		try
 		{
-			topic=topic.substring(topicPrefix.length(),topic.length());
-			if(topic.startsWith("set/"))
-				processSet(topic.substring(4),msg);
+			if(topic.equals(setPrefix+"bulk"))
+			{
+				Metrics.setsReceived.incrementAndGet();
+				processBulk(msg,arrived);
+				Metrics.processSet.recordSince(start);
+				return;
+			}
+			SetTopic st=setTopicParser.parse(topic);
+			if(st!=null)
+			{
+				Metrics.setsReceived.incrementAndGet();
+				processSet(st,msg,arrived);
+				Metrics.processSet.recordSince(start);
+			}
+			else if(topic.startsWith(topicPrefix+"set/"))
+				L.warning("Received set to unparsable topic "+topic);
 		}
 		catch(Exception e)
 		{
+			Metrics.setErrors.incrementAndGet();
 			L.log(Level.WARNING, "Exception when processing published message to "+topic+": "+msg,e);
 		}
 	}
@@ -294,12 +553,13 @@ public class MQTTHandler
 		copts.setCleanSession(true);
 		try
 		{
-			mqttc.connect(copts);
+			mqttc.connect(copts).waitForCompletion();
 			setHueConnectionState(false);
+			publishQueue.wakeup();
 			L.info("Successfully connected to broker, subscribing to "+topicPrefix+"set/#");
 			try
 			{
-				mqttc.subscribe(topicPrefix+"set/#",1);
+				mqttc.subscribe(topicPrefix+"set/#",1).waitForCompletion();
 				shouldBeConnected=true;
 			}
 			catch(MqttException mqe)
@@ -317,21 +577,31 @@ public class MQTTHandler
 
 	private void doInit() throws MqttException
 	{
-		String server=System.getProperty("hue2mqtt.mqtt.server","tcp://localhost:1883");
-		String clientID=System.getProperty("hue2mqtt.mqtt.clientid","hue2mqtt");
-		mqttc=new MqttClient(server,clientID,new MemoryPersistence());
 		mqttc.setCallback(new MqttCallback() {
 			@Override
-			public void messageArrived(String topic, MqttMessage msg) throws Exception
+			public void messageArrived(final String topic, final MqttMessage msg) throws Exception
 			{
-				try
-				{
-					processMessage(topic,msg);
-				}
-				catch(Exception e)
-				{
-					L.log(Level.WARNING,"Error when processing message "+msg+" for "+topic,e);
-				}
+				final long arrived=System.nanoTime();
+				EventLoop.post(new Runnable(){
+					@Override
+					public void run()
+					{
+						try
+						{
+							processMessage(topic,msg,arrived);
+						}
+						catch(Exception e)
+						{
+							L.log(Level.WARNING,"Error when processing message "+msg+" for "+topic,e);
+						}
+					}
+
+					@Override
+					public String toString()
+					{
+						return "message for "+topic;
+					}
+				});
 			}
 			@Override
 			public void deliveryComplete(IMqttDeliveryToken token)
@@ -346,59 +616,56 @@ public class MQTTHandler
 			}
 		});
 		doConnect();
-		Main.t.schedule(new StateChecker(),30*1000,30*1000);
+		Scheduler.scheduleAtFixedRate(Scheduler.Lane.LOOP,new StateChecker(),30*1000,30*1000);
 	}
 
-	static private Map<String,String> previouslyPublishedValues=new HashMap<>();
-	static void publishIfChanged(String name, boolean retain, Object... vals)
+	static void publish(String name, boolean retain, JsonObject jso)
 	{
-		WrappedJsonObject jso=new WrappedJsonObject();
-		for(int pix=0;pix<vals.length;pix+=2)
-		{
-			String vname=vals[pix].toString();
-			Object val=vals[pix+1];
-			jso.add(vname,val);
-		}
-		String txtmsg=jso.toString();
-		if(txtmsg.equals(previouslyPublishedValues.put(name,txtmsg)))
-			return;
-		MqttMessage msg=new MqttMessage(txtmsg.getBytes(StandardCharsets.UTF_8));
-		msg.setQos(0);
-		msg.setRetained(retain);
-		try
-		{
-			String fullTopic=instance.topicPrefix+"status/"+name;
-			instance.mqttc.publish(fullTopic, msg);
-			instance.L.info("Published "+txtmsg+" to "+fullTopic+(retain?" (R)":""));
-		}
-		catch(MqttException e)
-		{
-			instance.L.log(Level.WARNING,"Error when publishing message "+txtmsg,e);
-		}
+		long start=System.nanoTime();
+		byte payload[]=binary?new Cbor.Writer().value(jso).toByteArray():jso.toString().getBytes(StandardCharsets.UTF_8);
+		instance.publishQueue.publish(instance.topicPrefix+"status/"+name,payload,0,retain);
+		Metrics.statusPublished.incrementAndGet();
+		Metrics.publish.recordSince(start);
+	}
+
+	/*
+	 * Publish an already encoded status message
+	 */
+	static void publish(String name, boolean retain, byte[] payload)
+	{
+		long start=System.nanoTime();
+		instance.publishQueue.publish(instance.topicPrefix+"status/"+name,payload,0,retain);
+		Metrics.statusPublished.incrementAndGet();
+		Metrics.publish.recordSince(start);
+	}
+
+	/*
+	 * Publish a retained plain scalar value to status/<name>
+	 */
+	static void publishValue(String name, String value)
+	{
+		instance.publishQueue.publish(instance.topicPrefix+"status/"+name,value.getBytes(StandardCharsets.UTF_8),0,true);
+		Metrics.statusPublished.incrementAndGet();
+	}
+
+	static PublishQueue getPublishQueue()
+	{
+		return instance.publishQueue;
 	}
 
 	public static void setHueConnectionState(boolean connected)
 	{
-		try
-		{
-			instance.mqttc.publish(instance.topicPrefix+"connected",(connected?"2":"1").getBytes(),1,true);
-		}
-		catch(MqttException e)
-		{
-			/* Ignore */
-		}
+		instance.publishQueue.publish(instance.topicPrefix+"connected",(connected?"2":"1").getBytes(),1,true);
+	}
+
+	public static void setBridgeConnectionState(String bridgeKey,boolean connected)
+	{
+		instance.publishQueue.publish(instance.topicPrefix+"connected/"+bridgeKey,(connected?"2":"1").getBytes(),1,true);
 	}
 
 	public static void notifyAuthRequired()
 	{
-		try
-		{
-			instance.mqttc.publish(instance.topicPrefix+"status/authrequired","1".getBytes(),1,false);
-		}
-		catch(MqttException e)
-		{
-			/* Ignore */
-		}
+		instance.publishQueue.publish(instance.topicPrefix+"status/authrequired","1".getBytes(),1,false);
 	}
 
 }
@@ -11,8 +11,6 @@ import org.eclipse.paho.client.mqttv3.*;
 
 public class Main
 {
-	static final Timer t=new Timer(true);
-
 	private static String getVersion()
 	{
 		// First, try the manifest tag
@@ -58,5 +56,6 @@ public class Main
 		Logger.getLogger(Main.class.getName()).info("hue2mqtt V"+getVersion()+" (C) 2015-16 Oliver Wagner <owagner@tellerulam.com>");
 		MQTTHandler.init();
 		HueHandler.init();
+		Metrics.init();
 	}
 }
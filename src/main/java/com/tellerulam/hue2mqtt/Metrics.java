@@ -0,0 +1,277 @@
+/*
+ * Runtime metrics: counters, queue depths and latency histograms of the hot paths.
+ *
+ * Recording is lock-free. Every metrics.interval seconds, the histograms are evaluated
+ * (and reset), and everything is published retained to status/$metrics.
+ * The same values are available as JMX MBeans in the domain com.tellerulam.hue2mqtt.
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+import javax.management.*;
+
+import com.eclipsesource.json.*;
+
+public class Metrics implements MetricsMBean
+{
+	/* Processing of an inbound set message, up to handing it to the command queue */
+	static final LatencyHistogram processSet=new LatencyHistogram();
+	/* From a set message arriving via MQTT to the bridge confirming the resulting command */
+	static final LatencyHistogram setToBridge=new LatencyHistogram();
+	/* One run of reportLights over all lights of a bridge */
+	static final LatencyHistogram reportLights=new LatencyHistogram();
+	/* Serializing and queueing one status message */
+	static final LatencyHistogram publish=new LatencyHistogram();
+	/* From posting an event to the event loop until it is processed */
+	static final LatencyHistogram loopLag=new LatencyHistogram();
+
+	static final AtomicLong setsReceived=new AtomicLong();
+	static final AtomicLong setErrors=new AtomicLong();
+	static final AtomicLong bridgeCommandsOk=new AtomicLong();
+	static final AtomicLong bridgeCommandsFailed=new AtomicLong();
+	static final AtomicLong statusPublished=new AtomicLong();
+	static final AtomicLong statusUnchanged=new AtomicLong();
+	static final AtomicLong bridgeErrors=new AtomicLong();
+	static final AtomicLong bridgeConnectionsLost=new AtomicLong();
+	static final AtomicLong bridgeReconnects=new AtomicLong();
+	/* Resource changes received from bridge event streams */
+	static final AtomicLong bridgeEvents=new AtomicLong();
+	/* Events which had to wait for room in the event loop queue */
+	static final AtomicLong loopFull=new AtomicLong();
+
+	private static final Metrics instance=new Metrics();
+
+	private static final Map<String,LatencyHistogram> histograms=new LinkedHashMap<>();
+	static
+	{
+		histograms.put("processSet",processSet);
+		histograms.put("setToBridge",setToBridge);
+		histograms.put("reportLights",reportLights);
+		histograms.put("publish",publish);
+		histograms.put("loopLag",loopLag);
+	}
+
+	static void init()
+	{
+		try
+		{
+			MBeanServer mbs=ManagementFactory.getPlatformMBeanServer();
+			mbs.registerMBean(instance,new ObjectName("com.tellerulam.hue2mqtt:type=Metrics"));
+			for(Map.Entry<String,LatencyHistogram> me:histograms.entrySet())
+				mbs.registerMBean(me.getValue(),new ObjectName("com.tellerulam.hue2mqtt:type=Latency,name="+me.getKey()));
+		}
+		catch(JMException e)
+		{
+			L.log(Level.WARNING,"Unable to register metrics MBeans",e);
+		}
+
+		int interval=Integer.getInteger("hue2mqtt.metrics.interval",60).intValue();
+		if(interval<=0)
+			return;
+		Scheduler.scheduleAtFixedRate(Scheduler.Lane.PERIODIC,new Runnable(){
+			@Override
+			public void run()
+			{
+				MQTTHandler.publish("$metrics",true,report());
+			}
+		},interval*1000L,interval*1000L);
+	}
+
+	/*
+	 * Evaluate the histograms of the past interval, and generate a JSON report of all metrics
+	 */
+	static JsonObject report()
+	{
+		JsonObject jso=new JsonObject();
+		jso.add("ts",System.currentTimeMillis());
+		JsonObject counters=new JsonObject();
+		counters.add("sets_received",instance.getSetsReceived());
+		counters.add("set_errors",instance.getSetErrors());
+		counters.add("bridge_commands_ok",instance.getBridgeCommandsOk());
+		counters.add("bridge_commands_failed",instance.getBridgeCommandsFailed());
+		counters.add("status_published",instance.getStatusPublished());
+		counters.add("status_unchanged",instance.getStatusUnchanged());
+		counters.add("bridge_errors",instance.getBridgeErrors());
+		counters.add("bridge_connections_lost",instance.getBridgeConnectionsLost());
+		counters.add("bridge_reconnects",instance.getBridgeReconnects());
+		counters.add("bridge_events",instance.getBridgeEvents());
+		counters.add("loop_full",instance.getLoopFull());
+		counters.add("commands_merged",instance.getCommandsMerged());
+		counters.add("commands_dropped",instance.getCommandsDropped());
+		counters.add("commands_collapsed",instance.getCommandsCollapsed());
+		counters.add("commands_expired",instance.getCommandsExpired());
+		counters.add("publish_superseded",instance.getPublishSuperseded());
+		counters.add("publish_dropped",instance.getPublishDropped());
+		counters.add("publish_failed",instance.getPublishFailed());
+		jso.add("counters",counters);
+		JsonObject queues=new JsonObject();
+		queues.add("commands",instance.getCommandQueueDepth());
+		queues.add("publish",instance.getPublishQueueDepth());
+		queues.add("publish_inflight",instance.getPublishInflight());
+		queues.add("loop",instance.getLoopQueueDepth());
+		jso.add("queues",queues);
+		JsonObject polling=new JsonObject();
+		for(HueBridge hb:HueHandler.getBridges())
+			polling.add(hb.getKey(),hb.getPoller().toJson());
+		jso.add("polling",polling);
+		JsonObject latencies=new JsonObject();
+		for(Map.Entry<String,LatencyHistogram> me:histograms.entrySet())
+			latencies.add(me.getKey(),me.getValue().intervalSnapshot().toJson());
+		jso.add("latency",latencies);
+		return jso;
+	}
+
+	@Override
+	public long getSetsReceived()
+	{
+		return setsReceived.get();
+	}
+
+	@Override
+	public long getSetErrors()
+	{
+		return setErrors.get();
+	}
+
+	@Override
+	public long getBridgeCommandsOk()
+	{
+		return bridgeCommandsOk.get();
+	}
+
+	@Override
+	public long getBridgeCommandsFailed()
+	{
+		return bridgeCommandsFailed.get();
+	}
+
+	@Override
+	public long getStatusPublished()
+	{
+		return statusPublished.get();
+	}
+
+	@Override
+	public long getStatusUnchanged()
+	{
+		return statusUnchanged.get();
+	}
+
+	@Override
+	public long getBridgeErrors()
+	{
+		return bridgeErrors.get();
+	}
+
+	@Override
+	public long getBridgeConnectionsLost()
+	{
+		return bridgeConnectionsLost.get();
+	}
+
+	@Override
+	public long getBridgeReconnects()
+	{
+		return bridgeReconnects.get();
+	}
+
+	@Override
+	public long getBridgeEvents()
+	{
+		return bridgeEvents.get();
+	}
+
+	@Override
+	public long getLoopFull()
+	{
+		return loopFull.get();
+	}
+
+	@Override
+	public int getLoopQueueDepth()
+	{
+		return EventLoop.getQueueDepth();
+	}
+
+	@Override
+	public int getCommandQueueDepth()
+	{
+		int n=0;
+		for(HueBridge hb:HueHandler.getBridges())
+			n+=hb.getScheduler().getQueueDepth();
+		return n;
+	}
+
+	@Override
+	public long getCommandsMerged()
+	{
+		long n=0;
+		for(HueBridge hb:HueHandler.getBridges())
+			n+=hb.getScheduler().getMergedCount();
+		return n;
+	}
+
+	@Override
+	public long getCommandsDropped()
+	{
+		long n=0;
+		for(HueBridge hb:HueHandler.getBridges())
+			n+=hb.getScheduler().getDroppedCount();
+		return n;
+	}
+
+	@Override
+	public long getCommandsCollapsed()
+	{
+		long n=0;
+		for(HueBridge hb:HueHandler.getBridges())
+			n+=hb.getCoalescer().getCollapsedCount();
+		return n;
+	}
+
+	@Override
+	public long getCommandsExpired()
+	{
+		long n=0;
+		for(HueBridge hb:HueHandler.getBridges())
+			n+=hb.getScheduler().getExpiredCount();
+		return n;
+	}
+
+	@Override
+	public int getPublishQueueDepth()
+	{
+		return MQTTHandler.getPublishQueue().getQueueDepth();
+	}
+
+	@Override
+	public int getPublishInflight()
+	{
+		return MQTTHandler.getPublishQueue().getInflight();
+	}
+
+	@Override
+	public long getPublishSuperseded()
+	{
+		return MQTTHandler.getPublishQueue().getSupersededCount();
+	}
+
+	@Override
+	public long getPublishDropped()
+	{
+		return MQTTHandler.getPublishQueue().getDroppedCount();
+	}
+
+	@Override
+	public long getPublishFailed()
+	{
+		return MQTTHandler.getPublishQueue().getFailedCount();
+	}
+
+	private static final Logger L=Logger.getLogger(Metrics.class.getName());
+}
@@ -0,0 +1,30 @@
+package com.tellerulam.hue2mqtt;
+
+/*
+ * JMX view of the hue2mqtt counters and queue depths
+ */
+public interface MetricsMBean
+{
+	long getSetsReceived();
+	long getSetErrors();
+	long getBridgeCommandsOk();
+	long getBridgeCommandsFailed();
+	long getStatusPublished();
+	long getStatusUnchanged();
+	long getBridgeErrors();
+	long getBridgeConnectionsLost();
+	long getBridgeReconnects();
+	long getBridgeEvents();
+	long getLoopFull();
+	int getLoopQueueDepth();
+	int getCommandQueueDepth();
+	long getCommandsMerged();
+	long getCommandsDropped();
+	long getCommandsCollapsed();
+	long getCommandsExpired();
+	int getPublishQueueDepth();
+	int getPublishInflight();
+	long getPublishSuperseded();
+	long getPublishDropped();
+	long getPublishFailed();
+}
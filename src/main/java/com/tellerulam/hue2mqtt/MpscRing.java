@@ -0,0 +1,95 @@
+/*
+ * Bounded lock-free queue for multiple producers and a single consumer.
+ *
+ * A ring of slots, each with a sequence number telling whether it is free for the producer
+ * of a given position, or filled for the consumer. Producers claim a position by advancing
+ * the tail with compare-and-set, then fill the slot and publish it by advancing its sequence;
+ * the consumer owns the head and never contends with the producers.
+ * (D. Vyukov, "Bounded MPMC queue", restricted to a single consumer)
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.util.concurrent.atomic.*;
+
+public class MpscRing<E>
+{
+	private final int mask;
+	private final AtomicReferenceArray<E> slots;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail=new AtomicLong();
+	/* Only written by the consumer; atomic so that size() can be read from any thread */
+	private final AtomicLong head=new AtomicLong();
+
+	/*
+	 * The capacity is rounded up to a power of two
+	 */
+	MpscRing(int capacity)
+	{
+		int n=Integer.highestOneBit(Math.max(2,capacity)-1)<<1;
+		mask=n-1;
+		slots=new AtomicReferenceArray<>(n);
+		sequences=new AtomicLongArray(n);
+		for(int ix=0;ix<n;ix++)
+			sequences.set(ix,ix);
+	}
+
+	int capacity()
+	{
+		return mask+1;
+	}
+
+	/*
+	 * Add an element. Returns false if the ring is full. Safe to call from any thread
+	 */
+	boolean offer(E e)
+	{
+		for(;;)
+		{
+			long pos=tail.get();
+			int ix=(int)pos&mask;
+			long seq=sequences.get(ix);
+			if(seq==pos)
+			{
+				if(tail.compareAndSet(pos,pos+1))
+				{
+					slots.lazySet(ix,e);
+					// Volatile, so that a consumer about to park sees it
+					sequences.set(ix,pos+1);
+					return true;
+				}
+			}
+			else if(seq<pos)
+			{
+				// The slot still holds the element of the previous round
+				return false;
+			}
+			// else another producer claimed this position, retry with the new tail
+		}
+	}
+
+	/*
+	 * Remove the oldest element, or return null if the ring is empty. Consumer thread only
+	 */
+	E poll()
+	{
+		long pos=head.get();
+		int ix=(int)pos&mask;
+		if(sequences.get(ix)!=pos+1)
+			return null;
+		E e=slots.get(ix);
+		slots.lazySet(ix,null);
+		sequences.lazySet(ix,pos+mask+1);
+		head.lazySet(pos+1);
+		return e;
+	}
+
+	/*
+	 * Approximate number of elements, for monitoring
+	 */
+	int size()
+	{
+		long n=tail.get()-head.get();
+		return (int)Math.max(0,Math.min(n,mask+1));
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ * Outbound MQTT message queue.
+ *
+ * Publishing never blocks the caller (usually the event loop).
+ * Retained messages are queued per topic, and a newer message to a topic which still
+ * has an unsent message pending replaces it -- for status topics only the latest value
+ * is of interest. Non-retained messages are events like bulk results or button presses,
+ * each of which counts, so they are queued individually. A sender thread hands messages to the asynchronous client,
+ * keeping at most a fixed number of messages in flight. If the queue overflows,
+ * the oldest pending message is dropped.
+ *
+ * The queue is the handoff between the publishing threads, the sender thread and the
+ * client's delivery callbacks, and is guarded by the queue's monitor.
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+import org.eclipse.paho.client.mqttv3.*;
+
+public class PublishQueue
+{
+	private static class Outbound
+	{
+		final String topic;
+		final byte[] payload;
+		final int qos;
+		final boolean retain;
+		/* The topic for retained messages, which supersede each other, or the message itself */
+		final Object key;
+
+		Outbound(String topic,byte[] payload,int qos,boolean retain)
+		{
+			this.topic=topic;
+			this.payload=payload;
+			this.qos=qos;
+			this.retain=retain;
+			this.key=retain?topic:this;
+		}
+	}
+
+	private final IMqttAsyncClient mqttc;
+	private final int maxInflight;
+	private final int maxQueued;
+
+	private final LinkedHashMap<Object,Outbound> queue=new LinkedHashMap<>();
+	private int inflight;
+
+	private final AtomicLong sent=new AtomicLong();
+	private final AtomicLong superseded=new AtomicLong();
+	private final AtomicLong dropped=new AtomicLong();
+	private final AtomicLong failed=new AtomicLong();
+
+	public PublishQueue(IMqttAsyncClient mqttc)
+	{
+		this.mqttc=mqttc;
+		// Paho's own default in-flight window is 10
+		maxInflight=Integer.getInteger("hue2mqtt.mqtt.maxinflight",10).intValue();
+		maxQueued=Integer.getInteger("hue2mqtt.mqtt.maxqueued",1000).intValue();
+		Thread t=new Thread(new Runnable(){
+			@Override
+			public void run()
+			{
+				sendLoop();
+			}
+		},"hue2mqtt MQTT publisher");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public synchronized void publish(String topic,byte[] payload,int qos,boolean retain)
+	{
+		Outbound o=new Outbound(topic,payload,qos,retain);
+		if(queue.remove(o.key)!=null)
+			superseded.incrementAndGet();
+		else if(queue.size()>=maxQueued)
+		{
+			Iterator<Outbound> it=queue.values().iterator();
+			Outbound oldest=it.next();
+			it.remove();
+			dropped.incrementAndGet();
+			L.warning("Outbound queue full, dropping message to "+oldest.topic);
+		}
+		queue.put(o.key,o);
+		notifyAll();
+	}
+
+	/*
+	 * To be called when the client (re)connected, to resume sending
+	 */
+	public synchronized void wakeup()
+	{
+		notifyAll();
+	}
+
+	private synchronized void requeue(Outbound o)
+	{
+		// Only if it hasn't been superseded in the meantime
+		if(!queue.containsKey(o.key))
+			queue.put(o.key,o);
+	}
+
+	private synchronized void completed()
+	{
+		inflight--;
+		notifyAll();
+	}
+
+	private synchronized Outbound take() throws InterruptedException
+	{
+		while(queue.isEmpty() || inflight>=maxInflight || !mqttc.isConnected())
+		{
+			// We are not notified on connect/disconnect reliably, so poll the connection state
+			wait(1000);
+		}
+		Iterator<Outbound> it=queue.values().iterator();
+		Outbound o=it.next();
+		it.remove();
+		inflight++;
+		return o;
+	}
+
+	private final IMqttActionListener deliveryListener=new IMqttActionListener(){
+		@Override
+		public void onSuccess(IMqttToken token)
+		{
+			sent.incrementAndGet();
+			completed();
+		}
+
+		@Override
+		public void onFailure(IMqttToken token, Throwable t)
+		{
+			failed.incrementAndGet();
+			Outbound o=(Outbound)token.getUserContext();
+			L.log(Level.WARNING,"Error when publishing message to "+o.topic+", requeueing",t);
+			requeue(o);
+			completed();
+		}
+	};
+
+	private void sendLoop()
+	{
+		for(;;)
+		{
+			Outbound o;
+			try
+			{
+				o=take();
+			}
+			catch(InterruptedException e)
+			{
+				return;
+			}
+			try
+			{
+				mqttc.publish(o.topic,o.payload,o.qos,o.retain,o,deliveryListener);
+				if(L.isLoggable(Level.INFO))
+					L.info("Published "+(MQTTHandler.isBinary()?o.payload.length+" bytes":new String(o.payload,StandardCharsets.UTF_8))+" to "+o.topic+(o.retain?" (R)":""));
+			}
+			catch(MqttException e)
+			{
+				// Most likely we lost the connection. Try again later
+				L.log(Level.FINE,"Unable to publish message to "+o.topic+", requeueing",e);
+				completed();
+				requeue(o);
+				try
+				{
+					Thread.sleep(100);
+				}
+				catch(InterruptedException ie)
+				{
+					return;
+				}
+			}
+		}
+	}
+
+	public synchronized int getQueueDepth()
+	{
+		return queue.size();
+	}
+
+	public synchronized int getInflight()
+	{
+		return inflight;
+	}
+
+	public long getSentCount()
+	{
+		return sent.get();
+	}
+
+	public long getSupersededCount()
+	{
+		return superseded.get();
+	}
+
+	public long getDroppedCount()
+	{
+		return dropped.get();
+	}
+
+	public long getFailedCount()
+	{
+		return failed.get();
+	}
+
+	private static final Logger L=Logger.getLogger(PublishQueue.class.getName());
+}
@@ -0,0 +1,179 @@
+/*
+ * Maintains a name and identifier index over a set of bridge resources (lights, groups or scenes),
+ * so that set commands can be resolved without scanning the resource cache.
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+import com.philips.lighting.model.*;
+
+public class ResourceIndex<T extends PHBridgeResource>
+{
+	private final String type;
+
+	/*
+	 * Lookups and updates happen on the event loop, except for the restore from the
+	 * state file at startup, which runs while set commands may already arrive. We
+	 * therefore never modify a published map, but build a new one and swap the reference.
+	 */
+	private volatile Map<String,T> byName=Collections.emptyMap();
+	private volatile Map<String,T> byID=Collections.emptyMap();
+
+	public ResourceIndex(String type)
+	{
+		this.type=type;
+	}
+
+	/*
+	 * Order by numeric identifier if possible, so that the resource with the lowest
+	 * ID deterministically wins if several resources share the same name
+	 */
+	private static final Comparator<PHBridgeResource> idOrder=new Comparator<PHBridgeResource>(){
+		@Override
+		public int compare(PHBridgeResource r1, PHBridgeResource r2)
+		{
+			String id1=r1.getIdentifier(),id2=r2.getIdentifier();
+			if(id1.length()!=id2.length())
+				return id1.length()-id2.length();
+			return id1.compareTo(id2);
+		}
+	};
+
+	/*
+	 * The name each resource is indexed under. A resource object may be updated in place,
+	 * so its current name does not tell under which one it was indexed. Only used by the updater
+	 */
+	private final Map<String,String> indexedNames=new HashMap<>();
+
+	/*
+	 * Apply the current set of resources. Only the resources which were added, renamed,
+	 * removed or replaced by another object are applied to copies of the maps; if there
+	 * are none, which is the common case for cache updates and polls, nothing is rebuilt.
+	 * Returns whether resources were added, removed or renamed
+	 */
+	public boolean update(Collection<T> resources)
+	{
+		Map<String,T> oldByID=byID;
+		List<T> changed=new ArrayList<>();
+		int kept=0;
+		for(T r:resources)
+		{
+			String id=r.getIdentifier();
+			T old=oldByID.get(id);
+			if(old!=null)
+				kept++;
+			if(old!=r || !r.getName().equals(indexedNames.get(id)))
+				changed.add(r);
+		}
+		boolean removals=kept<oldByID.size();
+		if(changed.isEmpty() && !removals)
+			return false;
+		boolean renamed=removals;
+
+		Map<String,T> newByID=new HashMap<>(oldByID);
+		Map<String,T> newByName=new HashMap<>(byName);
+		/* Names which lost their resource, and may now go to another one with the same name */
+		Set<String> vacated=new HashSet<>();
+
+		if(removals)
+		{
+			Set<String> present=new HashSet<>();
+			for(T r:resources)
+				present.add(r.getIdentifier());
+			for(Iterator<Map.Entry<String,T>> it=newByID.entrySet().iterator();it.hasNext();)
+			{
+				Map.Entry<String,T> me=it.next();
+				if(present.contains(me.getKey()))
+					continue;
+				String name=indexedNames.remove(me.getKey());
+				L.info("Removed "+type+" "+me.getKey()+" ('"+name+"')");
+				it.remove();
+				if(newByName.get(name)==me.getValue())
+				{
+					newByName.remove(name);
+					vacated.add(name);
+				}
+			}
+		}
+
+		for(T r:changed)
+		{
+			String id=r.getIdentifier();
+			String name=r.getName();
+			T old=newByID.put(id,r);
+			String oldName=indexedNames.put(id,name);
+			if(old==null || !name.equals(oldName))
+				renamed=true;
+			if(old!=null)
+			{
+				if(name.equals(oldName))
+				{
+					// Same name, but a new object
+					if(newByName.get(name)==old)
+						newByName.put(name,r);
+					continue;
+				}
+				L.info("Renamed "+type+" "+id+" from '"+oldName+"' to '"+name+"'");
+				if(newByName.get(oldName)==old)
+				{
+					newByName.remove(oldName);
+					vacated.add(oldName);
+				}
+			}
+			T dupe=newByName.get(name);
+			if(dupe==null)
+			{
+				newByName.put(name,r);
+				continue;
+			}
+			T winner=idOrder.compare(r,dupe)<0?r:dupe;
+			newByName.put(name,winner);
+			L.warning("Duplicate "+type+" name '"+name+"' for IDs "+dupe.getIdentifier()+" and "+id+", using "+winner.getIdentifier());
+		}
+
+		// A vacated name goes to the remaining resource with the lowest ID of that name,
+		// which may be one that lost to the previous holder rather than a changed one
+		if(!vacated.isEmpty())
+		{
+			for(T r:newByID.values())
+			{
+				String name=indexedNames.get(r.getIdentifier());
+				if(!vacated.contains(name))
+					continue;
+				T cur=newByName.get(name);
+				if(cur==null || idOrder.compare(r,cur)<0)
+					newByName.put(name,r);
+			}
+		}
+
+		byID=newByID;
+		byName=newByName;
+		return renamed;
+	}
+
+	/*
+	 * Resolve a resource by name, falling back to its identifier
+	 */
+	public T find(String name)
+	{
+		T r=byName.get(name);
+		if(r==null)
+			r=byID.get(name);
+		return r;
+	}
+
+	public T findByID(String id)
+	{
+		return byID.get(id);
+	}
+
+	public int size()
+	{
+		return byID.size();
+	}
+
+	private static final Logger L=Logger.getLogger(ResourceIndex.class.getName());
+}
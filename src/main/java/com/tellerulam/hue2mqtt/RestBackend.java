@@ -0,0 +1,1206 @@
+/*
+ * Direct REST client for a bridge, used instead of the SDK with hue2mqtt.backend=rest.
+ *
+ * Only /lights, /groups and /scenes are polled, each with its own heartbeat driven by the
+ * AdaptivePoller, instead of the full configuration. Responses are parsed directly from the
+ * stream into the light state snapshots, reusing the snapshot objects and the ID and name
+ * strings of the previous poll, so an unchanged poll creates next to no garbage. The resource
+ * indexes are only updated if a poll found resources added, removed or renamed.
+ *
+ * Connections are kept alive by the JDK's HTTP client, as long as each response is read
+ * completely. Commands are sent synchronously from the command dispatcher thread, so they
+ * reach the bridge in order and are paced by its response time, too.
+ *
+ * Optionally, the bridge's event stream is used to receive light changes as they happen. While it
+ * is open, lights are only polled at a slow interval, to catch anything the events did not cover.
+ *
+ * The bridge address may include a port, e.g. to run against a local stand-in server.
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+import com.eclipsesource.json.*;
+import com.philips.lighting.hue.sdk.*;
+import com.philips.lighting.model.*;
+import com.philips.lighting.model.PHLight.PHLightAlertMode;
+import com.philips.lighting.model.PHLight.PHLightColorMode;
+import com.philips.lighting.model.PHLight.PHLightEffectMode;
+
+public class RestBackend implements AdaptivePoller.Heartbeats
+{
+	private static final boolean enabled="rest".equalsIgnoreCase(System.getProperty("hue2mqtt.backend"));
+	private static final int timeout=Integer.getInteger("hue2mqtt.rest.timeout",5000).intValue();
+
+	/* Receive changes from the event stream, and poll lights only for consistency while it is open */
+	private static final boolean events=Boolean.getBoolean("hue2mqtt.rest.events");
+	private static final long eventsPollInterval=Long.getLong("hue2mqtt.rest.events.poll",60000).longValue();
+	private static final boolean eventsTLS=Boolean.parseBoolean(System.getProperty("hue2mqtt.rest.events.tls","true"));
+
+	static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/*
+	 * A light as of the last poll and the events since. The state is updated in place, and replaced by a copy once it was published
+	 */
+	static class Light
+	{
+		String id,name,type;
+		LightStateSnapshot state=new LightStateSnapshot();
+	}
+
+	/*
+	 * Changes of one light from an event. Fields which were not part of the event are unset
+	 */
+	private static class Change
+	{
+		byte on,reachable;
+		int bri,ct;
+		boolean hasXY;
+		float x,y;
+
+		void clear()
+		{
+			on=reachable=-1;
+			bri=ct=LightStateSnapshot.NONE;
+			hasXY=false;
+		}
+
+		boolean isEmpty()
+		{
+			return on<0 && reachable<0 && bri==LightStateSnapshot.NONE && ct==LightStateSnapshot.NONE && !hasXY;
+		}
+
+		void applyTo(LightStateSnapshot snap)
+		{
+			if(on>=0)
+				snap.on=on==1;
+			if(reachable>=0)
+				snap.reachable=reachable;
+			if(bri!=LightStateSnapshot.NONE)
+				snap.bri=bri;
+			if(ct!=LightStateSnapshot.NONE)
+			{
+				snap.ct=ct;
+				snap.colormode=PHLightColorMode.COLORMODE_CT;
+			}
+			if(hasXY)
+			{
+				snap.hasXY=true;
+				snap.x=x;
+				snap.y=y;
+				snap.colormode=PHLightColorMode.COLORMODE_XY;
+			}
+		}
+	}
+
+	/* A group or scene as of the last poll */
+	private static class Member
+	{
+		String id,name;
+		List<String> lights=Collections.emptyList();
+	}
+
+	/*
+	 * Error reported by the bridge in an API response
+	 */
+	static class ApiException extends IOException
+	{
+		private static final long serialVersionUID=1L;
+
+		final int type;
+
+		ApiException(int type,String description)
+		{
+			super(description);
+			this.type=type;
+		}
+	}
+
+	private static final int ERROR_UNAUTHORIZED=1;
+	private static final int ERROR_LINK_BUTTON=101;
+
+	private abstract class Poll implements Runnable
+	{
+		final String path;
+		final JsonStreamParser parser=new JsonStreamParser();
+		ScheduledFuture<?> future;
+
+		Poll(String path)
+		{
+			this.path=path;
+		}
+
+		abstract void parse(JsonStreamParser p) throws IOException;
+
+		/*
+		 * Synchronized, as a run of a cancelled schedule may overlap with the first run of its replacement
+		 */
+		synchronized void poll() throws IOException
+		{
+			try(InputStream in=get(path,parser))
+			{
+				parse(parser);
+				drain(in);
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			if(!connected)
+				return;
+			try
+			{
+				poll();
+			}
+			catch(IOException e)
+			{
+				connectionLost(this,e);
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Poll "+path+" of "+hb;
+		}
+	}
+
+	/*
+	 * The results are handed to the event loop. The polls wait for it to finish, as the light states
+	 * are reused by the next poll
+	 */
+
+	private final Poll lightsPoll=new Poll("/lights"){
+		@Override
+		void parse(JsonStreamParser p) throws IOException
+		{
+			final List<PHLight> resources;
+			if(parseLights(p))
+			{
+				resources=new ArrayList<>(lights.size());
+				for(Light l:lights)
+				{
+					PHLight pl=new PHLight(l.name,l.id,null,null);
+					pl.setLightType(l.type);
+					resources.add(pl);
+				}
+			}
+			else
+				resources=null;
+			EventLoop.postAndWait(new Runnable(){
+				@Override
+				public void run()
+				{
+					if(resources!=null)
+						hb.updateLights(resources);
+					hb.reportLights(lights);
+				}
+			});
+		}
+	};
+
+	private final Poll groupsPoll=new Poll("/groups"){
+		@Override
+		void parse(JsonStreamParser p) throws IOException
+		{
+			if(!parseMembers(p,groups))
+				return;
+			final List<PHGroup> resources=new ArrayList<>(groups.size());
+			for(Member m:groups)
+			{
+				PHGroup g=new PHGroup(m.name,m.id);
+				g.setLightIdentifiers(m.lights);
+				resources.add(g);
+			}
+			EventLoop.postAndWait(new Runnable(){
+				@Override
+				public void run()
+				{
+					hb.updateGroups(resources);
+					hb.reportGroups(resources);
+				}
+			});
+		}
+	};
+
+	private final Poll scenesPoll=new Poll("/scenes"){
+		@Override
+		void parse(JsonStreamParser p) throws IOException
+		{
+			if(!parseMembers(p,scenes))
+				return;
+			final List<PHScene> resources=new ArrayList<>(scenes.size());
+			for(Member m:scenes)
+			{
+				PHScene s=new PHScene();
+				s.setSceneIdentifier(m.id);
+				s.setName(m.name);
+				s.setLightIdentifiers(m.lights);
+				resources.add(s);
+			}
+			EventLoop.postAndWait(new Runnable(){
+				@Override
+				public void run()
+				{
+					hb.updateScenes(resources);
+					hb.reportScenes(resources);
+				}
+			});
+		}
+	};
+
+	/*
+	 * Sensors, polled at a short fixed interval so that button presses are seen quickly. The states are
+	 * handed over as they are, so this does not wait for the loop
+	 */
+	private final Poll sensorsPoll=new Poll("/sensors"){
+		@Override
+		void parse(JsonStreamParser p) throws IOException
+		{
+			final List<SensorStatus.Sensor> sensors=parseSensors(p);
+			EventLoop.post(new Runnable(){
+				@Override
+				public void run()
+				{
+					hb.reportSensors(sensors);
+				}
+			});
+		}
+	};
+
+	private final HueBridge hb;
+	private final PHAccessPoint pap;
+
+	private final List<Light> lights=new ArrayList<>();
+	private final List<Member> groups=new ArrayList<>();
+	private final List<Member> scenes=new ArrayList<>();
+	/* Scratch list for the light IDs of a group or scene while parsing */
+	private final List<String> memberLights=new ArrayList<>();
+
+	/* Used for command responses, from the dispatcher thread only */
+	private final JsonStreamParser commandParser=new JsonStreamParser();
+
+	private volatile boolean connected;
+	private ScheduledFuture<?> pendingConnect;
+
+	private final EventStream eventStream;
+	/* Whether the event stream is open */
+	private volatile boolean pushed;
+	/* The lights poll interval requested by the poller */
+	private long lightsInterval=PHHueSDK.HB_INTERVAL;
+	/* Scratch state for the event stream thread */
+	private final JsonStreamParser eventParser=new JsonStreamParser();
+	private final Change change=new Change();
+	private final List<Light> changedLights=new ArrayList<>();
+	/* Whether the current event refers to a sensor */
+	private boolean sensorEvent;
+	private final Runnable reportChangedLights=new Runnable(){
+		@Override
+		public void run()
+		{
+			hb.reportLights(changedLights);
+		}
+	};
+
+	RestBackend(HueBridge hb)
+	{
+		this.hb=hb;
+		this.pap=hb.getAccessPoint();
+		eventStream=events?new EventStream(hb.getKey(),new EventStream.Handler(){
+			@Override
+			public void onOpen()
+			{
+				setPushed(true);
+			}
+
+			@Override
+			public void onEvent(InputStream data) throws IOException
+			{
+				eventParser.reset(data);
+				parseEvents(eventParser);
+			}
+
+			@Override
+			public void onClose()
+			{
+				setPushed(false);
+			}
+		},Math.max(timeout,120000)):null;
+	}
+
+	/*
+	 * Connect asynchronously. Does nothing if connected, or if a connect is already pending
+	 */
+	synchronized void connect()
+	{
+		if(connected || (pendingConnect!=null && !pendingConnect.isDone()))
+			return;
+		pendingConnect=Scheduler.schedule(Scheduler.Lane.POLL,new Runnable(){
+			@Override
+			public void run()
+			{
+				tryConnect();
+			}
+		},0);
+	}
+
+	private synchronized void scheduleConnect(long delay)
+	{
+		pendingConnect=Scheduler.schedule(Scheduler.Lane.POLL,new Runnable(){
+			@Override
+			public void run()
+			{
+				Metrics.bridgeReconnects.incrementAndGet();
+				tryConnect();
+			}
+		},delay);
+	}
+
+	private void tryConnect()
+	{
+		try
+		{
+			// The first polls fill the resource indexes and report the current state
+			lightsPoll.poll();
+			groupsPoll.poll();
+			scenesPoll.poll();
+		}
+		catch(ApiException e)
+		{
+			if(e.type==ERROR_UNAUTHORIZED)
+			{
+				authenticate();
+				return;
+			}
+			Metrics.bridgeErrors.incrementAndGet();
+			L.warning("Error connecting to "+hb+", RC "+e.type+": "+e.getMessage()+"; will reconnect in 10s");
+			scheduleConnect(10000);
+			return;
+		}
+		catch(IOException e)
+		{
+			Metrics.bridgeErrors.incrementAndGet();
+			L.warning("Error connecting to "+hb+": "+e+"; will reconnect in 10s");
+			scheduleConnect(10000);
+			return;
+		}
+		L.info("Successfully connected to Hue bridge "+hb.getKey()+" as "+pap.getUsername()+" (direct)");
+		connected=true;
+		EventLoop.post(new Runnable(){
+			@Override
+			public void run()
+			{
+				hb.onDirectConnected(RestBackend.this);
+				HueHandler.updateConnectionState();
+			}
+		});
+		if(eventStream!=null)
+			eventStream.start((eventsTLS?"https://":"http://")+pap.getIpAddress()+"/eventstream/clip/v2",Collections.singletonMap("hue-application-key",pap.getUsername()));
+	}
+
+	/*
+	 * Request a new whitelist username. This only succeeds within 30s after the link button was pressed,
+	 * so we keep trying
+	 */
+	private void authenticate()
+	{
+		try
+		{
+			JsonObject req=new JsonObject();
+			req.add("devicetype","hue2mqtt#hue2mqtt");
+			HttpURLConnection c=open("POST","http://"+pap.getIpAddress()+"/api",req.toString());
+			String username=null;
+			JsonStreamParser p=commandParser;
+			synchronized(p)
+			{
+				try(InputStream in=c.getInputStream())
+				{
+					p.reset(in);
+					p.beginArray();
+					while(p.hasNext())
+					{
+						p.beginObject();
+						while(p.hasNext())
+						{
+							p.nextString();
+							if(p.stringEquals("success"))
+							{
+								p.beginObject();
+								while(p.hasNext())
+								{
+									p.nextString();
+									if(p.stringEquals("username"))
+									{
+										p.nextString();
+										username=p.stringValue();
+									}
+									else
+										p.skipValue();
+								}
+							}
+							else if(p.stringEquals("error"))
+								readError(p);
+							else
+								p.skipValue();
+						}
+					}
+					drain(in);
+				}
+			}
+			if(username!=null)
+			{
+				pap.setUsername(username);
+				HueHandler.saveUsername(pap.getBridgeId(),username);
+				scheduleConnect(0);
+				return;
+			}
+		}
+		catch(ApiException e)
+		{
+			if(e.type!=ERROR_LINK_BUTTON)
+				L.warning("Error authenticating with "+hb+", RC "+e.type+": "+e.getMessage());
+		}
+		catch(IOException e)
+		{
+			L.warning("Error authenticating with "+hb+": "+e);
+		}
+		L.severe("IMPORTANT! AUTHENTICATION REQUIRED -- press the button on your Hue Bridge "+pap.getIpAddress()+" to authenticate hue2mqtt!");
+		MQTTHandler.notifyAuthRequired();
+		scheduleConnect(5000);
+	}
+
+	private void connectionLost(Poll poll,IOException e)
+	{
+		synchronized(this)
+		{
+			if(!connected)
+				return;
+			connected=false;
+			for(Poll p:new Poll[]{lightsPoll,groupsPoll,scenesPoll,sensorsPoll})
+			{
+				if(p.future!=null)
+					p.future.cancel(false);
+				p.future=null;
+			}
+		}
+		L.warning("Connection to bridge "+pap.getIpAddress()+" lost ("+poll+": "+e+"); will reconnect in 10s");
+		Metrics.bridgeConnectionsLost.incrementAndGet();
+		if(eventStream!=null)
+			eventStream.stop();
+		EventLoop.post(new Runnable(){
+			@Override
+			public void run()
+			{
+				hb.onConnectionLost();
+				HueHandler.updateConnectionState();
+			}
+		});
+		scheduleConnect(10000);
+	}
+
+	/*
+	 * Poll the lights once, synchronously. Used by the benchmarks
+	 */
+	void pollLights() throws IOException
+	{
+		lightsPoll.poll();
+	}
+
+	private synchronized void enable(Poll p,long interval)
+	{
+		if(!connected)
+			return;
+		if(p.future!=null)
+			p.future.cancel(false);
+		p.future=Scheduler.scheduleAtFixedRate(Scheduler.Lane.POLL,p,interval,interval);
+	}
+
+	@Override
+	public synchronized void enableLights(long interval)
+	{
+		lightsInterval=interval;
+		enable(lightsPoll,pushed?Math.max(interval,eventsPollInterval):interval);
+	}
+
+	@Override
+	public void enableGroups(long interval)
+	{
+		enable(groupsPoll,interval);
+	}
+
+	@Override
+	public void enableScenes(long interval)
+	{
+		enable(scenesPoll,interval);
+	}
+
+	@Override
+	public void enableSensors(long interval)
+	{
+		enable(sensorsPoll,interval);
+	}
+
+	/*
+	 * HTTP
+	 */
+
+	private String baseURL()
+	{
+		return "http://"+pap.getIpAddress()+"/api/"+pap.getUsername();
+	}
+
+	private static HttpURLConnection open(String method,String url,String body) throws IOException
+	{
+		HttpURLConnection c=(HttpURLConnection)new URL(url).openConnection();
+		c.setConnectTimeout(timeout);
+		c.setReadTimeout(timeout);
+		c.setUseCaches(false);
+		c.setRequestMethod(method);
+		if(body!=null)
+		{
+			byte data[]=body.getBytes(StandardCharsets.UTF_8);
+			c.setDoOutput(true);
+			c.setFixedLengthStreamingMode(data.length);
+			c.setRequestProperty("Content-Type","application/json");
+			try(OutputStream out=c.getOutputStream())
+			{
+				out.write(data);
+			}
+		}
+		int rc=c.getResponseCode();
+		if(rc!=HttpURLConnection.HTTP_OK)
+		{
+			// Read the error body anyway, so the connection can be reused
+			InputStream es=c.getErrorStream();
+			if(es!=null)
+			{
+				drain(es);
+				es.close();
+			}
+			throw new IOException("HTTP "+rc+" from "+method+" "+url);
+		}
+		return c;
+	}
+
+	/*
+	 * Skip the rest of a response, so the connection goes back to the keep-alive cache
+	 */
+	private static void drain(InputStream in) throws IOException
+	{
+		byte buf[]=new byte[256];
+		while(in.read(buf)>=0)
+		{
+			/* Discard */
+		}
+	}
+
+	/*
+	 * GET a resource and attach the parser to the response stream, which the caller must close
+	 */
+	private InputStream get(String path,JsonStreamParser p) throws IOException
+	{
+		InputStream in=open("GET",baseURL()+path,null).getInputStream();
+		p.reset(in);
+		// Errors are reported as an array of error objects
+		if(p.peek()!=JsonStreamParser.Token.BEGIN_ARRAY)
+			return in;
+		try
+		{
+			p.beginArray();
+			while(p.hasNext())
+			{
+				p.beginObject();
+				while(p.hasNext())
+				{
+					p.nextString();
+					if(p.stringEquals("error"))
+						readError(p);
+					else
+						p.skipValue();
+				}
+			}
+			throw new IOException("Unexpected response to GET "+path);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static void readError(JsonStreamParser p) throws IOException
+	{
+		int type=0;
+		String description="";
+		p.beginObject();
+		while(p.hasNext())
+		{
+			p.nextString();
+			if(p.stringEquals("type"))
+				type=p.nextInt();
+			else if(p.stringEquals("description"))
+			{
+				p.nextString();
+				description=p.stringValue();
+			}
+			else
+				p.skipValue();
+		}
+		throw new ApiException(type,description);
+	}
+
+	/*
+	 * Parsing
+	 */
+
+	/*
+	 * Parse /lights into the light list. Returns whether lights were added, removed or renamed
+	 */
+	boolean parseLights(JsonStreamParser p) throws IOException
+	{
+		boolean changed=false;
+		int n=0;
+		p.beginObject();
+		while(p.hasNext())
+		{
+			Light l;
+			if(n<lights.size())
+				l=lights.get(n);
+			else
+			{
+				lights.add(l=new Light());
+				changed=true;
+			}
+			n++;
+			p.nextString();
+			String id=p.stringValue(l.id);
+			changed|=id!=l.id;
+			l.id=id;
+			p.beginObject();
+			while(p.hasNext())
+			{
+				p.nextString();
+				if(p.stringEquals("name"))
+				{
+					p.nextString();
+					String name=p.stringValue(l.name);
+					changed|=name!=l.name;
+					l.name=name;
+				}
+				else if(p.stringEquals("type"))
+				{
+					p.nextString();
+					String type=p.stringValue(l.type);
+					changed|=type!=l.type;
+					l.type=type;
+				}
+				else if(p.stringEquals("state"))
+					parseState(p,l.state);
+				else
+					p.skipValue();
+			}
+		}
+		if(n<lights.size())
+		{
+			lights.subList(n,lights.size()).clear();
+			changed=true;
+		}
+		return changed;
+	}
+
+	private static void parseState(JsonStreamParser p,LightStateSnapshot snap) throws IOException
+	{
+		snap.clear();
+		p.beginObject();
+		while(p.hasNext())
+		{
+			p.nextString();
+			if(p.peek()==JsonStreamParser.Token.NULL)
+				p.skipValue();
+			else if(p.stringEquals("on"))
+				snap.on=p.nextBoolean();
+			else if(p.stringEquals("bri"))
+				snap.bri=p.nextInt();
+			else if(p.stringEquals("hue"))
+				snap.hue=p.nextInt();
+			else if(p.stringEquals("sat"))
+				snap.sat=p.nextInt();
+			else if(p.stringEquals("ct"))
+				snap.ct=p.nextInt();
+			else if(p.stringEquals("xy"))
+			{
+				p.beginArray();
+				snap.x=(float)p.nextNumber();
+				snap.y=(float)p.nextNumber();
+				while(p.hasNext())
+					p.skipValue();
+				snap.hasXY=true;
+			}
+			else if(p.stringEquals("alert"))
+			{
+				p.nextString();
+				snap.alert=p.stringEquals("select")?PHLightAlertMode.ALERT_SELECT:p.stringEquals("lselect")?PHLightAlertMode.ALERT_LSELECT:PHLightAlertMode.ALERT_NONE;
+			}
+			else if(p.stringEquals("effect"))
+			{
+				p.nextString();
+				snap.effect=p.stringEquals("colorloop")?PHLightEffectMode.EFFECT_COLORLOOP:PHLightEffectMode.EFFECT_NONE;
+			}
+			else if(p.stringEquals("colormode"))
+			{
+				p.nextString();
+				snap.colormode=p.stringEquals("hs")?PHLightColorMode.COLORMODE_HUE_SATURATION:p.stringEquals("xy")?PHLightColorMode.COLORMODE_XY:p.stringEquals("ct")?PHLightColorMode.COLORMODE_CT:PHLightColorMode.COLORMODE_NONE;
+			}
+			else if(p.stringEquals("reachable"))
+				snap.reachable=(byte)(p.nextBoolean()?1:0);
+			else
+				p.skipValue();
+		}
+	}
+
+	/*
+	 * Parse /sensors. Their states are kept as they are, as they differ by sensor type
+	 */
+	private List<SensorStatus.Sensor> parseSensors(JsonStreamParser p) throws IOException
+	{
+		List<SensorStatus.Sensor> sensors=new ArrayList<>();
+		p.beginObject();
+		while(p.hasNext())
+		{
+			p.nextString();
+			SensorStatus.Sensor s=new SensorStatus.Sensor(p.stringValue());
+			p.beginObject();
+			while(p.hasNext())
+			{
+				p.nextString();
+				if(skipNull(p))
+					continue;
+				if(p.stringEquals("name"))
+				{
+					p.nextString();
+					s.name=p.stringValue();
+				}
+				else if(p.stringEquals("type"))
+				{
+					p.nextString();
+					s.type=p.stringValue();
+				}
+				else if(p.stringEquals("state"))
+				{
+					JsonValue state=p.nextValue();
+					if(state.isObject())
+						s.state=state.asObject();
+				}
+				else
+					p.skipValue();
+			}
+			sensors.add(s);
+		}
+		return sensors;
+	}
+
+	/*
+	 * Parse /groups or /scenes into the given list. Returns whether anything changed
+	 */
+	private boolean parseMembers(JsonStreamParser p,List<Member> members) throws IOException
+	{
+		boolean changed=false;
+		int n=0;
+		p.beginObject();
+		while(p.hasNext())
+		{
+			Member m;
+			if(n<members.size())
+				m=members.get(n);
+			else
+			{
+				members.add(m=new Member());
+				changed=true;
+			}
+			n++;
+			p.nextString();
+			String id=p.stringValue(m.id);
+			changed|=id!=m.id;
+			m.id=id;
+			p.beginObject();
+			while(p.hasNext())
+			{
+				p.nextString();
+				if(p.stringEquals("name"))
+				{
+					p.nextString();
+					String name=p.stringValue(m.name);
+					changed|=name!=m.name;
+					m.name=name;
+				}
+				else if(p.stringEquals("lights"))
+				{
+					memberLights.clear();
+					p.beginArray();
+					for(int ix=0;p.hasNext();ix++)
+					{
+						p.nextString();
+						memberLights.add(p.stringValue(ix<m.lights.size()?m.lights.get(ix):null));
+					}
+					if(!memberLights.equals(m.lights))
+					{
+						m.lights=new ArrayList<>(memberLights);
+						changed=true;
+					}
+				}
+				else
+					p.skipValue();
+			}
+		}
+		if(n<members.size())
+		{
+			members.subList(n,members.size()).clear();
+			changed=true;
+		}
+		return changed;
+	}
+
+	/*
+	 * Events
+	 */
+
+	/*
+	 * The event stream was opened or closed. Either way, changes may have been missed, so the lights are polled right away
+	 */
+	private void setPushed(boolean open)
+	{
+		synchronized(this)
+		{
+			pushed=open;
+			enableLights(lightsInterval);
+		}
+		if(connected)
+			Scheduler.schedule(Scheduler.Lane.POLL,lightsPoll,0);
+	}
+
+	/*
+	 * Parse the data of one event, an array of event containers with the changed resources,
+	 * and report the changed lights
+	 */
+	void parseEvents(JsonStreamParser p) throws IOException
+	{
+		boolean resourcesChanged=false;
+		sensorEvent=false;
+		// Serialized with the lights poll, which updates the same light states
+		synchronized(lightsPoll)
+		{
+			changedLights.clear();
+			p.beginArray();
+			while(p.hasNext())
+			{
+				p.beginObject();
+				while(p.hasNext())
+				{
+					p.nextString();
+					if(p.stringEquals("type"))
+					{
+						p.nextString();
+						// Resources were added or deleted
+						if(!p.stringEquals("update"))
+							resourcesChanged=true;
+					}
+					else if(p.stringEquals("data"))
+					{
+						p.beginArray();
+						while(p.hasNext())
+						{
+							if(!parseEventResource(p))
+								resourcesChanged=true;
+						}
+					}
+					else
+						p.skipValue();
+				}
+			}
+			if(!changedLights.isEmpty())
+				EventLoop.postAndWait(reportChangedLights);
+		}
+		if(resourcesChanged && connected)
+		{
+			Scheduler.schedule(Scheduler.Lane.POLL,lightsPoll,0);
+			Scheduler.schedule(Scheduler.Lane.POLL,groupsPoll,0);
+		}
+		// Button presses and motion are announced by the stream, but the v1 state is what we publish
+		if(sensorEvent && connected && sensorsPoll.future!=null)
+			Scheduler.schedule(Scheduler.Lane.POLL,sensorsPoll,0);
+	}
+
+	/*
+	 * Parse one changed resource, and apply it to the light it refers to, if any.
+	 * Returns false if it refers to a light we do not know yet
+	 */
+	private boolean parseEventResource(JsonStreamParser p) throws IOException
+	{
+		Light light=null;
+		boolean known=true;
+		// The resource ID may come after the changes
+		change.clear();
+		p.beginObject();
+		while(p.hasNext())
+		{
+			p.nextString();
+			if(skipNull(p))
+				continue;
+			if(p.stringEquals("id_v1"))
+			{
+				p.nextString();
+				if(p.stringStartsWith("/lights/"))
+				{
+					light=findLight(p,8);
+					known=light!=null;
+				}
+				else if(p.stringStartsWith("/sensors/"))
+					sensorEvent=true;
+			}
+			else if(p.stringEquals("on"))
+			{
+				p.beginObject();
+				while(p.hasNext())
+				{
+					p.nextString();
+					if(skipNull(p))
+						continue;
+					if(p.stringEquals("on"))
+						change.on=(byte)(p.nextBoolean()?1:0);
+					else
+						p.skipValue();
+				}
+			}
+			else if(p.stringEquals("dimming"))
+			{
+				p.beginObject();
+				while(p.hasNext())
+				{
+					p.nextString();
+					if(skipNull(p))
+						continue;
+					// Percent, where the state has 1 to 254
+					if(p.stringEquals("brightness"))
+						change.bri=(int)Math.max(1,Math.min(254,Math.round(p.nextNumber()*2.54)));
+					else
+						p.skipValue();
+				}
+			}
+			else if(p.stringEquals("color_temperature"))
+			{
+				p.beginObject();
+				while(p.hasNext())
+				{
+					p.nextString();
+					// Null while the light is not in CT mode
+					if(skipNull(p))
+						continue;
+					if(p.stringEquals("mirek"))
+						change.ct=p.nextInt();
+					else
+						p.skipValue();
+				}
+			}
+			else if(p.stringEquals("color"))
+			{
+				p.beginObject();
+				while(p.hasNext())
+				{
+					p.nextString();
+					if(skipNull(p))
+						continue;
+					if(p.stringEquals("xy"))
+					{
+						p.beginObject();
+						while(p.hasNext())
+						{
+							p.nextString();
+							if(skipNull(p))
+								continue;
+							if(p.stringEquals("x"))
+								change.x=(float)p.nextNumber();
+							else if(p.stringEquals("y"))
+								change.y=(float)p.nextNumber();
+							else
+								p.skipValue();
+						}
+						change.hasXY=true;
+					}
+					else
+						p.skipValue();
+				}
+			}
+			else if(p.stringEquals("status") && p.peek()==JsonStreamParser.Token.STRING)
+			{
+				// Zigbee connectivity of the light
+				p.nextString();
+				change.reachable=(byte)(p.stringEquals("connected")?1:0);
+			}
+			else
+				p.skipValue();
+		}
+		if(light!=null && !change.isEmpty())
+		{
+			Metrics.bridgeEvents.incrementAndGet();
+			change.applyTo(light.state);
+			if(!changedLights.contains(light))
+				changedLights.add(light);
+		}
+		return known;
+	}
+
+	private static boolean skipNull(JsonStreamParser p) throws IOException
+	{
+		if(p.peek()!=JsonStreamParser.Token.NULL)
+			return false;
+		p.skipValue();
+		return true;
+	}
+
+	private Light findLight(JsonStreamParser p,int offset)
+	{
+		for(Light l:lights)
+		{
+			if(p.stringEquals(offset,l.id))
+				return l;
+		}
+		return null;
+	}
+
+	/*
+	 * Commands
+	 */
+
+	/*
+	 * Send a command and wait for the result. Called from the dispatcher thread
+	 */
+	void send(PHBridgeResource res,PHLightState ls,long arrived)
+	{
+		String path,body;
+		if(res instanceof PHLight)
+		{
+			path="/lights/"+res.getIdentifier()+"/state";
+			body=toJson(ls).toString();
+		}
+		else if(res instanceof SceneResource)
+		{
+			// Recalling a scene is a single group call, regardless of the number of lights
+			path="/groups/0/action";
+			body=new JsonObject().add("scene",res.getIdentifier()).toString();
+		}
+		else if(res==HueBridge.DEFAULT_GROUP_RESOURCE)
+		{
+			path="/groups/0/action";
+			body=toJson(ls).toString();
+		}
+		else
+		{
+			path="/groups/"+res.getIdentifier()+"/action";
+			body=toJson(ls).toString();
+		}
+		try
+		{
+			HttpURLConnection c=open("PUT",baseURL()+path,body);
+			try(InputStream in=c.getInputStream())
+			{
+				checkResult(in);
+				drain(in);
+			}
+			Metrics.setToBridge.recordSince(arrived);
+			Metrics.bridgeCommandsOk.incrementAndGet();
+			L.fine("Updating state ok for "+res);
+			hb.reportOptimistic(res,ls);
+		}
+		catch(ApiException e)
+		{
+			Metrics.bridgeCommandsFailed.incrementAndGet();
+			L.info("Updating state FAILED for "+res+" RC "+e.type+": "+e.getMessage());
+		}
+		catch(IOException e)
+		{
+			Metrics.bridgeCommandsFailed.incrementAndGet();
+			L.info("Updating state FAILED for "+res+": "+e);
+		}
+	}
+
+	/*
+	 * Throw the first error in a command response
+	 */
+	private void checkResult(InputStream in) throws IOException
+	{
+		JsonStreamParser p=commandParser;
+		synchronized(p)
+		{
+			p.reset(in);
+			p.beginArray();
+			while(p.hasNext())
+			{
+				p.beginObject();
+				while(p.hasNext())
+				{
+					p.nextString();
+					if(p.stringEquals("error"))
+						readError(p);
+					else
+						p.skipValue();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Generate the request body for a light state command, in the form of the Hue API.
+	 * x and y are only sent together, see HueBridge.completeXY
+	 */
+	static JsonObject toJson(PHLightState ls)
+	{
+		JsonObject jso=new JsonObject();
+		if(ls.isOn()!=null)
+			jso.add("on",ls.isOn().booleanValue());
+		addInt(jso,"bri",ls.getBrightness());
+		addInt(jso,"hue",ls.getHue());
+		addInt(jso,"sat",ls.getSaturation());
+		addInt(jso,"ct",ls.getCt());
+		addInt(jso,"transitiontime",ls.getTransitionTime());
+		if(ls.getX()!=null && ls.getY()!=null)
+			jso.add("xy",new JsonArray().add(ls.getX().floatValue()).add(ls.getY().floatValue()));
+		addInt(jso,"bri_inc",ls.getIncrementBri());
+		addInt(jso,"hue_inc",ls.getIncrementHue());
+		addInt(jso,"sat_inc",ls.getIncrementSat());
+		addInt(jso,"ct_inc",ls.getIncrementCt());
+		if(ls.getIncrementX()!=null || ls.getIncrementY()!=null)
+		{
+			float dx=ls.getIncrementX()!=null?ls.getIncrementX().floatValue():0;
+			float dy=ls.getIncrementY()!=null?ls.getIncrementY().floatValue():0;
+			jso.add("xy_inc",new JsonArray().add(dx).add(dy));
+		}
+		if(ls.getAlertMode()!=null && ls.getAlertMode()!=PHLightAlertMode.ALERT_UNKNOWN)
+			jso.add("alert",LightStateSnapshot.reworkName(ls.getAlertMode()));
+		if(ls.getEffectMode()!=null && ls.getEffectMode()!=PHLightEffectMode.EFFECT_UNKNOWN)
+			jso.add("effect",LightStateSnapshot.reworkName(ls.getEffectMode()));
+		return jso;
+	}
+
+	private static void addInt(JsonObject jso,String name,Integer val)
+	{
+		if(val!=null)
+			jso.add(name,val.intValue());
+	}
+
+	@Override
+	public String toString()
+	{
+		return hb.toString()+" (direct)";
+	}
+
+	private static final Logger L=Logger.getLogger(RestBackend.class.getName());
+}
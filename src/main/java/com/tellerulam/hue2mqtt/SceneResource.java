@@ -0,0 +1,44 @@
+/*
+ * A scene as a bridge resource, so that scenes can be indexed and queued like lights and groups
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import com.eclipsesource.json.*;
+import com.philips.lighting.model.*;
+
+public class SceneResource extends PHBridgeResource
+{
+	private final PHScene scene;
+
+	SceneResource(PHScene scene)
+	{
+		super(scene.getName(),scene.getSceneIdentifier());
+		this.scene=scene;
+	}
+
+	PHScene getScene()
+	{
+		return scene;
+	}
+
+	JsonObject toJson()
+	{
+		JsonObject jso=new JsonObject();
+		jso.add("name",scene.getName());
+		JsonArray lights=new JsonArray();
+		if(scene.getLightIdentifiers()!=null)
+		{
+			for(String id:scene.getLightIdentifiers())
+				lights.add(id);
+		}
+		jso.add("lights",lights);
+		return jso;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "scene "+getIdentifier()+" ("+getName()+")";
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Scheduled task execution, in separate lanes so that a blocking task in one lane
+ * (e.g. a synchronous connect that takes seconds) can not delay tasks in another.
+ *
+ * Exceptions thrown by a task are logged and do not affect other tasks, or further
+ * runs of a periodic task.
+ *
+ * Tasks in the LOOP lane are timer ticks of the event loop: the timer thread only posts
+ * them, and they run on the loop thread like all other events.
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+public class Scheduler
+{
+	public enum Lane
+	{
+		/* Connects and reconnects, which may block on the network */
+		IO(2),
+		/* Polls of bridges in direct mode, which block on the network */
+		POLL(2),
+		/* Short periodic and delayed housekeeping work */
+		PERIODIC(1),
+		/* Ticks which touch state owned by the event loop, run on the loop */
+		LOOP(1);
+
+		private final ScheduledThreadPoolExecutor executor;
+
+		private Lane(int threads)
+		{
+			final String name="hue2mqtt "+name().toLowerCase()+" ";
+			final AtomicInteger count=new AtomicInteger();
+			executor=new ScheduledThreadPoolExecutor(threads,new ThreadFactory(){
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t=new Thread(r,name+count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			// Don't keep cancelled reconnects around until their delay expires
+			executor.setRemoveOnCancelPolicy(true);
+		}
+	}
+
+	private static Runnable guarded(Lane lane,final Runnable task)
+	{
+		if(lane==Lane.LOOP)
+		{
+			// The loop guards against exceptions itself
+			return new Runnable(){
+				@Override
+				public void run()
+				{
+					EventLoop.post(task);
+				}
+			};
+		}
+		return new Runnable(){
+			@Override
+			public void run()
+			{
+				try
+				{
+					task.run();
+				}
+				catch(Throwable t)
+				{
+					L.log(Level.WARNING,"Uncaught exception in scheduled task "+task,t);
+				}
+			}
+		};
+	}
+
+	public static ScheduledFuture<?> schedule(Lane lane,Runnable task,long delayMillis)
+	{
+		return lane.executor.schedule(guarded(lane,task),delayMillis,TimeUnit.MILLISECONDS);
+	}
+
+	public static ScheduledFuture<?> scheduleAtFixedRate(Lane lane,Runnable task,long initialDelayMillis,long periodMillis)
+	{
+		return lane.executor.scheduleAtFixedRate(guarded(lane,task),initialDelayMillis,periodMillis,TimeUnit.MILLISECONDS);
+	}
+
+	private static final Logger L=Logger.getLogger(Scheduler.class.getName());
+}
@@ -0,0 +1,165 @@
+/*
+ * Status of the sensors of a bridge: switches, presence, temperature, light level and so on.
+ *
+ * Sensors are published to status/sensors/<name> when they changed. The bridge sets the
+ * lastupdated timestamp of a sensor's state whenever the sensor reports, even with the same
+ * value -- a button pressed twice still is two events. The timestamp only has a resolution of
+ * a second, though, so a different button pressed within the same second only shows in the
+ * state. A sensor has changed if either does, which is what comparing the complete state,
+ * timestamp included, tells.
+ *
+ * Switch states are button events, which are published not retained, and not at all on
+ * the first poll, where they are history. The publish queue never supersedes non-retained
+ * messages, so repeated presses arrive as separate events even while MQTT lags behind.
+ * All other states are published retained.
+ *
+ * Only used on the event loop.
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.text.*;
+import java.util.*;
+
+import com.eclipsesource.json.*;
+import com.philips.lighting.model.sensor.*;
+
+public class SensorStatus
+{
+	static class Sensor
+	{
+		final String id;
+		String name,type;
+		JsonObject state;
+
+		Sensor(String id)
+		{
+			this.id=id;
+		}
+	}
+
+	private static class Reported
+	{
+		String name;
+		String state;
+	}
+
+	/* By sensor ID */
+	private final Map<String,Reported> reported=new HashMap<>();
+
+	/* The state members which make up the "val" of a sensor, in order of preference */
+	private static final String VALUES[]={"buttonevent","presence","temperature","humidity","lightlevel","open","daylight","flag","status"};
+
+	/*
+	 * Publish the changed sensors among the given ones. Sensors which are no longer present are forgotten
+	 */
+	void report(String topicPrefix,Collection<Sensor> sensors)
+	{
+		Set<String> present=new HashSet<>();
+		for(Sensor s:sensors)
+		{
+			present.add(s.id);
+			if(s.name==null || s.state==null)
+				continue;
+			report(topicPrefix,s);
+		}
+		reported.keySet().retainAll(present);
+	}
+
+	private void report(String topicPrefix,Sensor s)
+	{
+		String state=s.state.toString();
+		Reported r=reported.get(s.id);
+		boolean first=r==null;
+		if(first)
+			reported.put(s.id,r=new Reported());
+		else if(s.name.equals(r.name) && state.equals(r.state))
+		{
+			Metrics.statusUnchanged.incrementAndGet();
+			return;
+		}
+		r.name=s.name;
+		r.state=state;
+		boolean event=s.state.get("buttonevent")!=null;
+		if(event && first)
+			return;
+		JsonObject msg=new JsonObject();
+		for(String v:VALUES)
+		{
+			JsonValue val=s.state.get(v);
+			if(val!=null && !val.isNull())
+			{
+				msg.add("val",val);
+				break;
+			}
+		}
+		if(s.type!=null)
+			msg.add("type",s.type);
+		msg.add("hue_state",s.state);
+		MQTTHandler.publish(topicPrefix+"sensors/"+s.name,!event,msg);
+	}
+
+	/* The bridge's format of lastupdated, in UTC */
+	private final SimpleDateFormat lastUpdatedFormat=new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+
+	SensorStatus()
+	{
+		lastUpdatedFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	/*
+	 * Convert the sensors from the SDK's cache
+	 */
+	List<Sensor> fromSDK(Collection<PHSensor> sensors)
+	{
+		List<Sensor> l=new ArrayList<>(sensors.size());
+		for(PHSensor ps:sensors)
+		{
+			Sensor s=new Sensor(ps.getIdentifier());
+			s.name=ps.getName();
+			s.type=ps.getTypeAsString();
+			s.state=stateFromSDK(ps.getBaseState());
+			l.add(s);
+		}
+		return l;
+	}
+
+	private JsonObject stateFromSDK(PHSensorState ss)
+	{
+		JsonObject state=new JsonObject();
+		if(ss==null)
+			return state;
+		if(ss instanceof PHSwitchState)
+			add(state,"buttonevent",((PHSwitchState)ss).getButtonEvent());
+		else if(ss instanceof PHPresenceSensorState)
+			add(state,"presence",((PHPresenceSensorState)ss).getPresence());
+		else if(ss instanceof PHTemperatureSensorState)
+			add(state,"temperature",((PHTemperatureSensorState)ss).getTemperature());
+		else if(ss instanceof PHHumiditySensorState)
+			add(state,"humidity",((PHHumiditySensorState)ss).getHumidity());
+		else if(ss instanceof PHOpenCloseSensorState)
+			add(state,"open",((PHOpenCloseSensorState)ss).getOpen());
+		else if(ss instanceof PHDaylightSensorState)
+			add(state,"daylight",((PHDaylightSensorState)ss).getDaylight());
+		else if(ss instanceof PHGenericFlagSensorState)
+			add(state,"flag",((PHGenericFlagSensorState)ss).getFlag());
+		else if(ss instanceof PHGenericStatusSensorState)
+			add(state,"status",((PHGenericStatusSensorState)ss).getStatus());
+		Date lu=ss.getLastUpdated();
+		if(lu!=null)
+			state.add("lastupdated",lastUpdatedFormat.format(lu));
+		return state;
+	}
+
+	private static void add(JsonObject state,String name,Integer val)
+	{
+		if(val!=null)
+			state.add(name,val.intValue());
+	}
+
+	private static void add(JsonObject state,String name,Boolean val)
+	{
+		if(val!=null)
+			state.add(name,val.booleanValue());
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Decoded set topic:
+ *
+ *   <prefix>set/[<bridge>/]<type>/<name>[/<datapoint>]
+ *
+ * Topics are parsed in a single pass. As the same topics are used over and over again,
+ * the decoded descriptors are cached by topic string, so a repeated topic costs a single
+ * map lookup and no allocations.
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.util.*;
+
+public class SetTopic
+{
+	/* Bridge ID if topics are namespaced, null otherwise */
+	final String bridgeKey;
+	/* <type>/<name> */
+	final String resource;
+	/* null if the whole state is set */
+	final Datapoint datapoint;
+	/* Key for per-resource caches, e.g. the transitiontime */
+	final String cacheKey;
+
+	private SetTopic(String bridgeKey,String resource,Datapoint datapoint)
+	{
+		this.bridgeKey=bridgeKey;
+		this.resource=resource;
+		this.datapoint=datapoint;
+		this.cacheKey=bridgeKey!=null?bridgeKey+"/"+resource:resource;
+	}
+
+	static class Parser
+	{
+		private static final int MAX_CACHED=1000;
+
+		private final String setPrefix;
+		private final boolean namespaced;
+		/* Only accessed from the event loop */
+		private final Map<String,SetTopic> cache=new HashMap<>();
+
+		Parser(String topicPrefix,boolean namespaced)
+		{
+			this.setPrefix=topicPrefix+"set/";
+			this.namespaced=namespaced;
+		}
+
+		/*
+		 * Returns null if this is not a well-formed set topic
+		 */
+		SetTopic parse(String topic)
+		{
+			SetTopic st=cache.get(topic);
+			if(st!=null)
+				return st;
+			st=decode(topic);
+			if(st!=null)
+			{
+				if(cache.size()>=MAX_CACHED)
+					cache.clear();
+				cache.put(topic,st);
+			}
+			return st;
+		}
+
+		private SetTopic decode(String topic)
+		{
+			if(!topic.startsWith(setPrefix))
+				return null;
+			int len=topic.length();
+			int start=setPrefix.length();
+			String bridgeKey=null;
+			if(namespaced)
+			{
+				int slash=topic.indexOf('/',start);
+				if(slash<=start)
+					return null;
+				bridgeKey=topic.substring(start,slash);
+				start=slash+1;
+			}
+			// <type>/<name>
+			int typeEnd=topic.indexOf('/',start);
+			if(typeEnd<=start || typeEnd==len-1)
+				return null;
+			int nameEnd=topic.indexOf('/',typeEnd+1);
+			if(nameEnd<0)
+				return new SetTopic(bridgeKey,topic.substring(start),null);
+			if(nameEnd==typeEnd+1)
+				return null;
+			// /<datapoint>, which must be the last level
+			Datapoint dp=Datapoint.forName(topic,nameEnd+1,len);
+			if(dp==null)
+				return null;
+			return new SetTopic(bridgeKey,topic.substring(start,nameEnd),dp);
+		}
+	}
+}
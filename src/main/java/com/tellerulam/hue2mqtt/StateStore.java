@@ -0,0 +1,366 @@
+/*
+ * Persistent state for warm restarts.
+ *
+ * Holds the known bridges, the last published state of each light, the name/ID maps
+ * of lights, groups and scenes and the lights of each group. On startup, bridges are connected right away and set
+ * commands are resolved and queued before the bridge cache is loaded, and lights whose
+ * state did not change during the restart are not published again.
+ *
+ * The file is an append-only journal of records, written incrementally (only records
+ * whose value changed are appended) and flushed periodically. It is compacted on startup,
+ * and whenever it grew much larger than the state it holds. A truncated last record,
+ * e.g. after a crash, is ignored.
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.*;
+
+public class StateStore
+{
+	private static final int MAGIC=0x48324d01;
+
+	private static final byte REC_BRIDGE=1;
+	private static final byte REC_LIGHT=2;
+	private static final byte REC_RESOURCE=3;
+	private static final byte REC_REMOVED=4;
+
+	static class BridgeState
+	{
+		String ip;
+		/* Last published state by status topic */
+		final Map<String,LightStateSnapshot> lights=new HashMap<>();
+		/* ID to name, by resource type */
+		final Map<String,Map<String,String>> resources=new HashMap<>();
+
+		Map<String,String> resources(String type)
+		{
+			Map<String,String> m=resources.get(type);
+			if(m==null)
+				resources.put(type,m=new HashMap<>());
+			return m;
+		}
+	}
+
+	private static StateStore instance;
+
+	private final File file;
+	private final Map<String,BridgeState> bridges=new LinkedHashMap<>();
+	private DataOutputStream out;
+	private int journalRecords;
+	private boolean dirty;
+
+	private StateStore(File file)
+	{
+		this.file=file;
+	}
+
+	/*
+	 * Load the state file configured with hue2mqtt.state.file, if any
+	 */
+	static void init()
+	{
+		String fn=System.getProperty("hue2mqtt.state.file");
+		if(fn==null)
+			return;
+		StateStore s=new StateStore(new File(fn));
+		try
+		{
+			s.load();
+			s.compact();
+		}
+		catch(IOException e)
+		{
+			L.log(Level.WARNING,"Unable to use state file "+fn+", not persisting state",e);
+			return;
+		}
+		instance=s;
+		Scheduler.scheduleAtFixedRate(Scheduler.Lane.PERIODIC,new Runnable(){
+			@Override
+			public void run()
+			{
+				instance.flush();
+			}
+		},1000,1000);
+		Runtime.getRuntime().addShutdownHook(new Thread(){
+			@Override
+			public void run()
+			{
+				instance.flush();
+			}
+		});
+	}
+
+	static boolean isEnabled()
+	{
+		return instance!=null;
+	}
+
+	/*
+	 * The bridges known from the previous run, by key
+	 */
+	static Map<String,BridgeState> getBridges()
+	{
+		if(instance==null)
+			return Collections.emptyMap();
+		synchronized(instance)
+		{
+			return new LinkedHashMap<>(instance.bridges);
+		}
+	}
+
+	static void recordBridge(String key,String ip)
+	{
+		if(instance!=null)
+			instance.putBridge(key,ip);
+	}
+
+	static void recordLight(String key,String topic,LightStateSnapshot snap)
+	{
+		if(instance!=null)
+			instance.putLight(key,topic,snap);
+	}
+
+	static void recordResources(String key,String type,Map<String,String> idToName)
+	{
+		if(instance!=null)
+			instance.putResources(key,type,idToName);
+	}
+
+	private BridgeState bridge(String key)
+	{
+		BridgeState bs=bridges.get(key);
+		if(bs==null)
+			bridges.put(key,bs=new BridgeState());
+		return bs;
+	}
+
+	private synchronized void putBridge(String key,String ip)
+	{
+		BridgeState bs=bridge(key);
+		if(ip.equals(bs.ip))
+			return;
+		bs.ip=ip;
+		try
+		{
+			writeBridge(out,key,ip);
+			appended();
+		}
+		catch(IOException e)
+		{
+			writeFailed(e);
+		}
+	}
+
+	private synchronized void putLight(String key,String topic,LightStateSnapshot snap)
+	{
+		bridge(key).lights.put(topic,snap);
+		try
+		{
+			writeLight(out,key,topic,snap);
+			appended();
+		}
+		catch(IOException e)
+		{
+			writeFailed(e);
+		}
+	}
+
+	private synchronized void putResources(String key,String type,Map<String,String> idToName)
+	{
+		Map<String,String> m=bridge(key).resources(type);
+		try
+		{
+			for(Iterator<Map.Entry<String,String>> it=m.entrySet().iterator();it.hasNext();)
+			{
+				String id=it.next().getKey();
+				if(!idToName.containsKey(id))
+				{
+					it.remove();
+					out.writeByte(REC_REMOVED);
+					out.writeUTF(key);
+					out.writeUTF(type);
+					out.writeUTF(id);
+					appended();
+				}
+			}
+			for(Map.Entry<String,String> me:idToName.entrySet())
+			{
+				if(me.getValue().equals(m.get(me.getKey())))
+					continue;
+				m.put(me.getKey(),me.getValue());
+				writeResource(out,key,type,me.getKey(),me.getValue());
+				appended();
+			}
+		}
+		catch(IOException e)
+		{
+			writeFailed(e);
+		}
+	}
+
+	private void appended() throws IOException
+	{
+		dirty=true;
+		if(++journalRecords>1000 && journalRecords>4*liveRecords())
+			compact();
+	}
+
+	private void writeFailed(IOException e)
+	{
+		L.log(Level.WARNING,"Error writing state file "+file,e);
+	}
+
+	private synchronized void flush()
+	{
+		if(!dirty)
+			return;
+		dirty=false;
+		try
+		{
+			out.flush();
+		}
+		catch(IOException e)
+		{
+			writeFailed(e);
+		}
+	}
+
+	private int liveRecords()
+	{
+		int n=0;
+		for(BridgeState bs:bridges.values())
+		{
+			n+=1+bs.lights.size();
+			for(Map<String,String> m:bs.resources.values())
+				n+=m.size();
+		}
+		return n;
+	}
+
+	private static void writeBridge(DataOutputStream o,String key,String ip) throws IOException
+	{
+		o.writeByte(REC_BRIDGE);
+		o.writeUTF(key);
+		o.writeUTF(ip);
+	}
+
+	private static void writeLight(DataOutputStream o,String key,String topic,LightStateSnapshot snap) throws IOException
+	{
+		o.writeByte(REC_LIGHT);
+		o.writeUTF(key);
+		o.writeUTF(topic);
+		snap.write(o);
+	}
+
+	private static void writeResource(DataOutputStream o,String key,String type,String id,String name) throws IOException
+	{
+		o.writeByte(REC_RESOURCE);
+		o.writeUTF(key);
+		o.writeUTF(type);
+		o.writeUTF(id);
+		o.writeUTF(name);
+	}
+
+	private void load() throws IOException
+	{
+		if(!file.exists())
+			return;
+		try(DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+		{
+			if(in.readInt()!=MAGIC)
+			{
+				L.warning("State file "+file+" has an unknown format, ignoring it");
+				return;
+			}
+			for(;;)
+			{
+				int type=in.read();
+				if(type<0)
+					break;
+				String key=in.readUTF();
+				switch(type)
+				{
+					case REC_BRIDGE:
+						bridge(key).ip=in.readUTF();
+						break;
+					case REC_LIGHT:
+					{
+						String topic=in.readUTF();
+						LightStateSnapshot snap=new LightStateSnapshot();
+						snap.read(in);
+						bridge(key).lights.put(topic,snap);
+						break;
+					}
+					case REC_RESOURCE:
+					{
+						String rtype=in.readUTF();
+						String id=in.readUTF();
+						bridge(key).resources(rtype).put(id,in.readUTF());
+						break;
+					}
+					case REC_REMOVED:
+					{
+						String rtype=in.readUTF();
+						bridge(key).resources(rtype).remove(in.readUTF());
+						break;
+					}
+					default:
+						throw new IOException("Unknown record type "+type);
+				}
+			}
+		}
+		catch(EOFException e)
+		{
+			L.info("State file "+file+" was truncated, ignoring the last record");
+		}
+		// Bridges we never learned the address of are useless
+		for(Iterator<BridgeState> it=bridges.values().iterator();it.hasNext();)
+		{
+			if(it.next().ip==null)
+				it.remove();
+		}
+		L.info("Loaded state of "+bridges.size()+" bridges from "+file);
+	}
+
+	/*
+	 * Write the current state to a new journal, and replace the old one with it
+	 */
+	private void compact() throws IOException
+	{
+		if(out!=null)
+			out.close();
+		File tmp=new File(file.getPath()+".tmp");
+		try(DataOutputStream o=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))))
+		{
+			o.writeInt(MAGIC);
+			for(Map.Entry<String,BridgeState> me:bridges.entrySet())
+			{
+				String key=me.getKey();
+				BridgeState bs=me.getValue();
+				if(bs.ip!=null)
+					writeBridge(o,key,bs.ip);
+				for(Map.Entry<String,Map<String,String>> rme:bs.resources.entrySet())
+				{
+					for(Map.Entry<String,String> r:rme.getValue().entrySet())
+						writeResource(o,key,rme.getKey(),r.getKey(),r.getValue());
+				}
+				for(Map.Entry<String,LightStateSnapshot> lme:bs.lights.entrySet())
+					writeLight(o,key,lme.getKey(),lme.getValue());
+			}
+		}
+		if(!tmp.renameTo(file))
+		{
+			// Not atomic on all platforms if the target exists
+			file.delete();
+			if(!tmp.renameTo(file))
+				throw new IOException("Unable to rename "+tmp+" to "+file);
+		}
+		out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file,true)));
+		journalRecords=liveRecords();
+	}
+
+	private static final Logger L=Logger.getLogger(StateStore.class.getName());
+}
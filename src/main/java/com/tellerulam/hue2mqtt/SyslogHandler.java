@@ -2,11 +2,20 @@ package com.tellerulam.hue2mqtt;
 
 import java.io.*;
 import java.net.*;
-import java.nio.charset.*;
 import java.util.*;
-import java.util.Formatter;
 import java.util.logging.*;
 
+/*
+ * Asynchronous syslog (UDP) handler.
+ *
+ * publish() only copies the record into a bounded ring buffer; formatting and sending
+ * happens on a background thread, using a cached timestamp and reused buffers.
+ * If the ring buffer is full, records are dropped and counted, and a note about the
+ * dropped records is sent once there is room again.
+ *
+ * Optionally, multiple lines can be batched into one datagram, separated by newlines,
+ * to reduce the number of syscalls. Not all syslog daemons accept this, so it is off by default.
+ */
 @SuppressWarnings("boxing")
 public class SyslogHandler extends Handler
 {
@@ -18,19 +27,47 @@ public class SyslogHandler extends Handler
 		}
 	}
 
+	private static final int MAX_LINE=1023;
+
 	private final DatagramSocket ds;
 	private String hostname;
 	private String pidSuffix;
 
+	private final boolean batch;
+	private final int maxDatagram;
+
+	/* Ring buffer of pending records. Slots are preallocated and reused */
+	private static class Slot
+	{
+		long millis;
+		int pri;
+		String msg;
+	}
+	private final Slot ring[];
+	private int head,count;
+	private long dropped;
+	private boolean closed;
+
+	private final Thread sender;
+
+	private String getProperty(String name,String def)
+	{
+		String v=LogManager.getLogManager().getProperty(getClass().getName()+"."+name);
+		return v!=null?v:def;
+	}
+
 	public SyslogHandler() throws SocketException, UnknownHostException
 	{
 		ds=new DatagramSocket();
-		String syslogHost=LogManager.getLogManager().getProperty(getClass().getName()+".host");
-		String syslogPort=LogManager.getLogManager().getProperty(getClass().getName()+".port");
 		ds.connect(new InetSocketAddress(
-			syslogHost!=null?syslogHost:"localhost",
-			syslogPort!=null?Integer.parseInt(syslogPort):514
+			getProperty("host","localhost"),
+			Integer.parseInt(getProperty("port","514"))
 		));
+		batch=Boolean.parseBoolean(getProperty("batch","false"));
+		maxDatagram=Integer.parseInt(getProperty("maxdatagram","1400"));
+		ring=new Slot[Integer.parseInt(getProperty("buffersize","1024"))];
+		for(int ix=0;ix<ring.length;ix++)
+			ring[ix]=new Slot();
 		try
 		{
 			hostname = InetAddress.getLocalHost().getHostName();
@@ -50,19 +87,56 @@ public class SyslogHandler extends Handler
 		{
 			pidSuffix="";
 		}
+		sender=new Thread(new Runnable(){
+			@Override
+			public void run()
+			{
+				sendLoop();
+			}
+		},"hue2mqtt syslog sender");
+		sender.setDaemon(true);
+		sender.start();
 	}
 
 	@Override
 	public void close() throws SecurityException
 	{
+		synchronized(this)
+		{
+			closed=true;
+			notifyAll();
+		}
+		try
+		{
+			sender.join(1000);
+		}
+		catch(InterruptedException e)
+		{
+			/* Ignore */
+		}
 		if(ds!=null)
 			ds.close();
 	}
 
 	@Override
-	public void flush()
+	public synchronized void flush()
 	{
-		/* Nothing to do, we sent immediately */
+		/* Wait until the sender has caught up, but not forever */
+		long until=System.currentTimeMillis()+1000;
+		while(count>0 && !closed)
+		{
+			long w=until-System.currentTimeMillis();
+			if(w<=0)
+				break;
+			try
+			{
+				wait(w);
+			}
+			catch(InterruptedException e)
+			{
+				break;
+			}
+		}
 	}
 
 	private final Map<Level,Integer> levels=new HashMap<>();
@@ -76,71 +150,230 @@ public class SyslogHandler extends Handler
 		levels.put(Level.FINEST,7);
 	}
 
-	private void sendSyslogMessage(StringBuilder msg)
+	@Override
+	public void publish(LogRecord r)
 	{
 		if(ds==null)
+			return; // We are disabled
+
+		Integer pri=levels.get(r.getLevel());
+		String msg=r.getMessage();
+		if(msg==null)
+			return;
+		synchronized(this)
+		{
+			if(closed)
+				return;
+			if(count==ring.length)
+			{
+				dropped++;
+				return;
+			}
+			Slot s=ring[(head+count)%ring.length];
+			s.millis=r.getMillis();
+			s.pri=pri!=null?pri.intValue():5;
+			s.msg=msg;
+			if(count++==0)
+				notifyAll();
+		}
+	}
+
+	/*
+	 * Everything below runs on the sender thread only
+	 */
+
+	private static final String MONTHS[]={"Jan","Feb","Mar","Apr","May","Jun","Jul","Aug","Sep","Oct","Nov","Dec"};
+	private final Calendar cal=Calendar.getInstance();
+	private long cachedSecond=-1;
+	/* "Mmm dd hh:mm:ss" */
+	private final byte timestamp[]=new byte[15];
+
+	private void updateTimestamp(long millis)
+	{
+		long second=millis/1000;
+		if(second==cachedSecond)
 			return;
+		cachedSecond=second;
+		cal.setTimeInMillis(millis);
+		String month=MONTHS[cal.get(Calendar.MONTH)];
+		int day=cal.get(Calendar.DAY_OF_MONTH);
+		timestamp[0]=(byte)month.charAt(0);
+		timestamp[1]=(byte)month.charAt(1);
+		timestamp[2]=(byte)month.charAt(2);
+		timestamp[3]=' ';
+		timestamp[4]=(byte)(day<10?' ':'0'+day/10);
+		timestamp[5]=(byte)('0'+day%10);
+		timestamp[6]=' ';
+		putTwoDigits(timestamp,7,cal.get(Calendar.HOUR_OF_DAY));
+		timestamp[9]=':';
+		putTwoDigits(timestamp,10,cal.get(Calendar.MINUTE));
+		timestamp[12]=':';
+		putTwoDigits(timestamp,13,cal.get(Calendar.SECOND));
+	}
 
-		byte msgData[]=msg.toString().getBytes(StandardCharsets.US_ASCII);
+	private static void putTwoDigits(byte b[],int offset,int val)
+	{
+		b[offset]=(byte)('0'+val/10);
+		b[offset+1]=(byte)('0'+val%10);
+	}
+
+	private final byte datagram[]=new byte[65507];
+	private int datagramLength;
+	private final DatagramPacket packet=new DatagramPacket(datagram,0);
+
+	private void sendDatagram()
+	{
+		if(datagramLength==0)
+			return;
+		packet.setData(datagram,0,datagramLength);
 		try
 		{
-			ds.send(new DatagramPacket(msgData,msgData.length));
+			ds.send(packet);
 		}
 		catch(IOException e)
 		{
 			/* Ignore */
 		}
+		datagramLength=0;
 	}
 
-	@Override
-	public void publish(LogRecord r)
+	private int appendAscii(int pos,String s)
 	{
-		if(ds==null)
-			return; // We are disabled
+		for(int ix=0;ix<s.length();ix++)
+			datagram[pos++]=(byte)s.charAt(ix);
+		return pos;
+	}
+
+	private int appendInt(int pos,int val)
+	{
+		if(val>=100)
+			datagram[pos++]=(byte)('0'+val/100);
+		if(val>=10)
+			datagram[pos++]=(byte)('0'+val/10%10);
+		datagram[pos++]=(byte)('0'+val%10);
+		return pos;
+	}
 
+	/*
+	 * Write the "<pri> timestamp host hue2mqtt[pid]: " prefix at the given position
+	 */
+	private int appendPrefix(int pos,int pri,long millis)
+	{
 		int facility=23; // Local 23
-		// Convert priority
-		int pri=levels.get(r.getLevel()).intValue();
-
-		Calendar cal=Calendar.getInstance();
-		cal.setTimeInMillis(r.getMillis());
-
-		StringBuilder m=new StringBuilder();
-		m.append('<');
-		m.append(facility*8+pri);
-		m.append("> ");
-		Formatter dateFormatter=new Formatter(m,Locale.US);
-		dateFormatter.format("%1$tb %2$2d %1$TT",cal,cal.get(Calendar.DAY_OF_MONTH));
-		dateFormatter.close();
-		m.append(" ");
-		m.append(hostname);
-		m.append(" hue2mqtt");
-		m.append(pidSuffix);
-		m.append(": ");
-		int prefixLength=m.length();
-		for(char ch:r.getMessage().toCharArray())
+		datagram[pos++]='<';
+		pos=appendInt(pos,facility*8+pri);
+		datagram[pos++]='>';
+		datagram[pos++]=' ';
+		updateTimestamp(millis);
+		System.arraycopy(timestamp,0,datagram,pos,timestamp.length);
+		pos+=timestamp.length;
+		datagram[pos++]=' ';
+		pos=appendAscii(pos,hostname);
+		pos=appendAscii(pos,prefixTag);
+		return pos;
+	}
+
+	private String prefixTag;
+
+	private void sendLine(int pri,long millis,String msg,int from,int to)
+	{
+		// Worst case size of this line, to decide whether it still fits into the current batch
+		int estimate=64+hostname.length()+Math.min(to-from,MAX_LINE);
+		if(datagramLength>0 && (!batch || datagramLength+1+estimate>maxDatagram))
+			sendDatagram();
+		int pos=datagramLength;
+		if(pos>0)
+			datagram[pos++]='\n';
+		int lineStart=pos;
+		pos=appendPrefix(pos,pri,millis);
+		for(int ix=from;ix<to;ix++)
 		{
+			char ch=msg.charAt(ix);
 			if(ch=='\r')
 				continue;
-			if(ch=='\n')
+			if(pos-lineStart==MAX_LINE-3)
 			{
-				sendSyslogMessage(m);
-				m.setLength(prefixLength);
-				continue;
+				datagram[pos++]='.';
+				datagram[pos++]='.';
+				datagram[pos++]='.';
+				break;
 			}
-			if(m.length()==1020)
+			datagram[pos++]=(byte)(ch>=126?'_':ch);
+		}
+		datagramLength=pos;
+	}
+
+	private void sendRecord(int pri,long millis,String msg)
+	{
+		int start=0;
+		for(;;)
+		{
+			int nl=msg.indexOf('\n',start);
+			int end=nl>=0?nl:msg.length();
+			if(end>start)
+				sendLine(pri,millis,msg,start,end);
+			if(nl<0)
+				break;
+			start=nl+1;
+		}
+	}
+
+	private void sendLoop()
+	{
+		prefixTag=" hue2mqtt"+pidSuffix+": ";
+		for(;;)
+		{
+			int pri;
+			long millis;
+			String msg;
+			long droppedNow;
+			synchronized(this)
 			{
-				m.append("...");
+				if(count==0)
+				{
+					if(datagramLength==0)
+					{
+						if(closed)
+							return;
+						notifyAll();
+						try
+						{
+							wait();
+						}
+						catch(InterruptedException e)
+						{
+							return;
+						}
+						continue;
+					}
+					msg=null;
+					pri=0;
+					millis=0;
+					droppedNow=0;
+				}
+				else
+				{
+					Slot s=ring[head];
+					pri=s.pri;
+					millis=s.millis;
+					msg=s.msg;
+					s.msg=null;
+					head=(head+1)%ring.length;
+					count--;
+					droppedNow=dropped;
+					dropped=0;
+				}
 			}
-			if(m.length()==1023)
+			if(msg==null)
+			{
+				// Nothing more to do for now, so send what we have batched
+				sendDatagram();
 				continue;
-			if(ch>=126)
-				m.append('_');
-			else
-				m.append(ch);
+			}
+			if(droppedNow>0)
+				sendRecord(4,System.currentTimeMillis(),"Syslog buffer overflow, dropped "+droppedNow+" log records");
+			sendRecord(pri,millis,msg);
 		}
-		if(m.length()!=prefixLength)
-			sendSyslogMessage(m);
 	}
 
 }
@@ -0,0 +1,111 @@
+/*
+ * Server-sent events: parsing, and resuming the stream with the last event ID after it ended
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import com.sun.net.httpserver.*;
+
+public class EventStreamTest
+{
+	private HttpServer server;
+	/* The Last-Event-ID header of each request, "none" if there was none */
+	private final BlockingQueue<String> lastEventIDs=new LinkedBlockingQueue<>();
+	private final BlockingQueue<String> events=new LinkedBlockingQueue<>();
+	private final List<String> streams=new ArrayList<>();
+	private EventStream es;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		server=HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(),0),0);
+		server.createContext("/events",new HttpHandler(){
+			@Override
+			public void handle(HttpExchange ex) throws IOException
+			{
+				String id=ex.getRequestHeaders().getFirst("Last-Event-ID");
+				lastEventIDs.add(id!=null?id:"none");
+				String stream;
+				synchronized(streams)
+				{
+					stream=streams.isEmpty()?"":streams.remove(0);
+				}
+				ex.getResponseHeaders().set("Content-Type","text/event-stream");
+				ex.sendResponseHeaders(200,0);
+				// Ends the stream after the events
+				try(OutputStream out=ex.getResponseBody())
+				{
+					out.write(stream.getBytes(StandardCharsets.UTF_8));
+				}
+			}
+		});
+		server.start();
+		es=new EventStream("test",new EventStream.Handler(){
+			@Override
+			public void onOpen()
+			{
+				/* Not needed */
+			}
+
+			@Override
+			public void onEvent(InputStream data) throws IOException
+			{
+				ByteArrayOutputStream bo=new ByteArrayOutputStream();
+				int c;
+				while((c=data.read())>=0)
+					bo.write(c);
+				events.add(bo.toString("UTF-8"));
+			}
+
+			@Override
+			public void onClose()
+			{
+				/* Not needed */
+			}
+		},5000);
+	}
+
+	@After
+	public void tearDown()
+	{
+		es.stop();
+		server.stop(0);
+	}
+
+	private void start()
+	{
+		es.start("http://127.0.0.1:"+server.getAddress().getPort()+"/events",Collections.singletonMap("hue-application-key","test"));
+	}
+
+	@Test
+	public void parsesEvents() throws Exception
+	{
+		streams.add(": hi\n\nid: 1:0\ndata: [1,\r\ndata: 2]\n\nevent: ignored\ndata: 3\n\n");
+		start();
+		assertEquals("[1,\n2]",events.poll(5,TimeUnit.SECONDS));
+		assertEquals("3",events.poll(5,TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void resumesWithLastEventID() throws Exception
+	{
+		streams.add("id: 1700000000:0\ndata: first\n\n");
+		streams.add("data: second\n\n");
+		start();
+		assertEquals("first",events.poll(5,TimeUnit.SECONDS));
+		// Reopened after a delay of 1s
+		assertEquals("second",events.poll(5,TimeUnit.SECONDS));
+		assertEquals("none",lastEventIDs.poll());
+		assertEquals("1700000000:0",lastEventIDs.poll());
+	}
+}
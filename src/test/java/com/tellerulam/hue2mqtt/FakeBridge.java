@@ -0,0 +1,103 @@
+/*
+ * Stand-in for the v1 API of a bridge. Serves fixed resources and records the commands it receives
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.sun.net.httpserver.*;
+
+class FakeBridge
+{
+	static final String USERNAME="test";
+
+	static class Command
+	{
+		final String path;
+		final String body;
+
+		Command(String path,String body)
+		{
+			this.path=path;
+			this.body=body;
+		}
+	}
+
+	private final HttpServer server;
+	private final Map<String,String> resources=new ConcurrentHashMap<>();
+	/* The reply to commands, or null to report success */
+	private volatile String commandResponse;
+	final BlockingQueue<Command> commands=new LinkedBlockingQueue<>();
+
+	FakeBridge() throws IOException
+	{
+		server=HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(),0),0);
+		server.createContext("/api/"+USERNAME,new HttpHandler(){
+			@Override
+			public void handle(HttpExchange ex) throws IOException
+			{
+				handleAPI(ex);
+			}
+		});
+		server.start();
+	}
+
+	String getAddress()
+	{
+		return "127.0.0.1:"+server.getAddress().getPort();
+	}
+
+	void setResource(String path,String json)
+	{
+		resources.put(path,json);
+	}
+
+	void setCommandResponse(String json)
+	{
+		commandResponse=json;
+	}
+
+	void stop()
+	{
+		server.stop(0);
+	}
+
+	private void handleAPI(HttpExchange ex) throws IOException
+	{
+		String path=ex.getRequestURI().getPath().substring(USERNAME.length()+5);
+		String response;
+		if("GET".equals(ex.getRequestMethod()))
+		{
+			response=resources.get(path);
+			if(response==null)
+				response="[{\"error\":{\"type\":3,\"address\":\""+path+"\",\"description\":\"resource, "+path+", not available\"}}]";
+		}
+		else
+		{
+			ByteArrayOutputStream body=new ByteArrayOutputStream();
+			try(InputStream in=ex.getRequestBody())
+			{
+				byte b[]=new byte[1024];
+				int n;
+				while((n=in.read(b))>0)
+					body.write(b,0,n);
+			}
+			commands.add(new Command(path,body.toString("UTF-8")));
+			response=commandResponse;
+			if(response==null)
+				response="[{\"success\":{\""+path+"\":true}}]";
+		}
+		byte b[]=response.getBytes(StandardCharsets.UTF_8);
+		ex.getResponseHeaders().set("Content-Type","application/json");
+		ex.sendResponseHeaders(200,b.length);
+		try(OutputStream out=ex.getResponseBody())
+		{
+			out.write(b);
+		}
+	}
+}
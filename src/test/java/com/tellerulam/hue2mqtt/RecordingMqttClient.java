@@ -0,0 +1,70 @@
+/*
+ * An always connected MQTT client which completes every publish immediately and keeps the last
+ * message published to each topic
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import java.lang.reflect.*;
+import java.nio.charset.*;
+import java.util.*;
+
+import org.eclipse.paho.client.mqttv3.*;
+
+class RecordingMqttClient
+{
+	private final Map<String,String> published=new HashMap<>();
+
+	final IMqttAsyncClient client=(IMqttAsyncClient)Proxy.newProxyInstance(RecordingMqttClient.class.getClassLoader(),new Class<?>[]{IMqttAsyncClient.class},new InvocationHandler(){
+		@Override
+		public Object invoke(Object proxy,Method m,Object[] args)
+		{
+			switch(m.getName())
+			{
+				case "isConnected":
+					return Boolean.TRUE;
+				case "publish":
+					if(args.length==6)
+					{
+						record((String)args[0],(byte[])args[1]);
+						((IMqttActionListener)args[5]).onSuccess(null);
+					}
+					return null;
+				default:
+					return m.getReturnType()==boolean.class?Boolean.FALSE:null;
+			}
+		}
+	});
+
+	private synchronized void record(String topic,byte[] payload)
+	{
+		published.put(topic,new String(payload,StandardCharsets.UTF_8));
+		notifyAll();
+	}
+
+	synchronized void clear()
+	{
+		published.clear();
+	}
+
+	synchronized String get(String topic)
+	{
+		return published.get(topic);
+	}
+
+	/*
+	 * Wait for a message to the topic. Returns null if none was published within 5s
+	 */
+	synchronized String await(String topic) throws InterruptedException
+	{
+		long end=System.currentTimeMillis()+5000;
+		for(;;)
+		{
+			String msg=published.get(topic);
+			long left=end-System.currentTimeMillis();
+			if(msg!=null || left<=0)
+				return msg;
+			wait(left);
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Direct mode against a stand-in bridge: polling, commands, and events of the v2 event stream
+ */
+
+package com.tellerulam.hue2mqtt;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import com.eclipsesource.json.*;
+import com.philips.lighting.hue.sdk.*;
+import com.philips.lighting.model.*;
+
+public class RestBackendTest
+{
+	private static final String LIGHTS="{"
+		+"\"1\":{\"state\":{\"on\":true,\"bri\":200,\"ct\":300,\"xy\":[0.4,0.35],\"alert\":\"none\",\"colormode\":\"ct\",\"reachable\":true},\"type\":\"Extended color light\",\"name\":\"Kitchen\"},"
+		+"\"2\":{\"state\":{\"on\":false,\"bri\":1,\"alert\":\"none\",\"reachable\":true},\"type\":\"Dimmable light\",\"name\":\"Hall\"},"
+		+"\"20\":{\"state\":{\"on\":false,\"bri\":1,\"alert\":\"none\",\"reachable\":false},\"type\":\"Dimmable light\",\"name\":\"Porch\"}}";
+
+	private static RecordingMqttClient mqtt;
+
+	private FakeBridge bridge;
+	private HueBridge hb;
+	private RestBackend rest;
+
+	@BeforeClass
+	public static void initMQTT()
+	{
+		mqtt=new RecordingMqttClient();
+		MQTTHandler.initUnconnected(mqtt.client);
+	}
+
+	@Before
+	public void setUp() throws IOException
+	{
+		bridge=new FakeBridge();
+		bridge.setResource("/lights",LIGHTS);
+		PHAccessPoint pap=new PHAccessPoint();
+		pap.setIpAddress(bridge.getAddress());
+		pap.setBridgeId("fakebridge");
+		pap.setUsername(FakeBridge.USERNAME);
+		hb=new HueBridge(null,pap,false);
+		rest=new RestBackend(hb);
+		mqtt.clear();
+	}
+
+	@After
+	public void tearDown()
+	{
+		bridge.stop();
+	}
+
+	private static JsonObject status(String light) throws InterruptedException
+	{
+		String msg=mqtt.await("hue/status/lights/"+light);
+		assertNotNull("No status for "+light,msg);
+		return Json.parse(msg).asObject();
+	}
+
+	/*
+	 * Poll and wait until the initial status of all lights is published
+	 */
+	private void pollAndSettle() throws Exception
+	{
+		rest.pollLights();
+		status("Kitchen");
+		status("Hall");
+		status("Porch");
+		mqtt.clear();
+	}
+
+	private void event(String json) throws IOException
+	{
+		JsonStreamParser p=new JsonStreamParser();
+		p.reset(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+		rest.parseEvents(p);
+	}
+
+	@Test
+	public void pollIndexesAndReportsLights() throws Exception
+	{
+		rest.pollLights();
+		assertEquals("1",hb.findResourceByName("lights/Kitchen").getIdentifier());
+		assertEquals("20",hb.findResourceByName("lights/Porch").getIdentifier());
+		assertNull(hb.findResourceByName("lights/Garden"));
+
+		JsonObject kitchen=status("Kitchen");
+		assertEquals(200,kitchen.get("val").asInt());
+		JsonObject state=kitchen.get("hue_state").asObject();
+		assertTrue(state.get("on").asBoolean());
+		assertEquals(300,state.get("ct").asInt());
+		assertEquals("ct",state.get("colormode").asString());
+		assertEquals(0.35f,state.get("xy").asArray().get(1).asFloat(),1e-6);
+		// Lights which are off report 0
+		assertEquals(0,status("Hall").get("val").asInt());
+		assertFalse(status("Porch").get("hue_state").asObject().get("reachable").asBoolean());
+	}
+
+	@Test
+	public void unchangedPollPublishesNothing() throws Exception
+	{
+		pollAndSettle();
+		rest.pollLights();
+		// Publishes are sent in order, so once this arrives the poll had nothing to publish
+		event("[{\"data\":[{\"id_v1\":\"/lights/2\",\"on\":{\"on\":true},\"type\":\"light\"}],\"type\":\"update\"}]");
+		status("Hall");
+		assertNull(mqtt.get("hue/status/lights/Kitchen"));
+		assertNull(mqtt.get("hue/status/lights/Porch"));
+	}
+
+	@Test
+	public void commandSuccess() throws Exception
+	{
+		rest.pollLights();
+		long ok=Metrics.bridgeCommandsOk.get();
+		PHLightState ls=new PHLightState();
+		ls.setOn(Boolean.TRUE);
+		ls.setBrightness(Integer.valueOf(100));
+		rest.send(hb.findResourceByName("lights/Kitchen"),ls,System.nanoTime());
+		FakeBridge.Command c=bridge.commands.poll(5,TimeUnit.SECONDS);
+		assertEquals("/lights/1/state",c.path);
+		assertEquals(Json.parse("{\"on\":true,\"bri\":100}"),Json.parse(c.body));
+		assertEquals(ok+1,Metrics.bridgeCommandsOk.get());
+	}
+
+	@Test
+	public void commandToAllLights() throws Exception
+	{
+		PHLightState ls=new PHLightState();
+		ls.setOn(Boolean.FALSE);
+		rest.send(HueBridge.DEFAULT_GROUP_RESOURCE,ls,System.nanoTime());
+		FakeBridge.Command c=bridge.commands.poll(5,TimeUnit.SECONDS);
+		assertEquals("/groups/0/action",c.path);
+		assertEquals(Json.parse("{\"on\":false}"),Json.parse(c.body));
+	}
+
+	@Test
+	public void commandError() throws Exception
+	{
+		rest.pollLights();
+		bridge.setCommandResponse("[{\"error\":{\"type\":201,\"address\":\"/lights/1/state/bri\",\"description\":\"parameter, bri, is not modifiable. Device is set to off.\"}}]");
+		long ok=Metrics.bridgeCommandsOk.get();
+		long failed=Metrics.bridgeCommandsFailed.get();
+		PHLightState ls=new PHLightState();
+		ls.setBrightness(Integer.valueOf(100));
+		rest.send(hb.findResourceByName("lights/Kitchen"),ls,System.nanoTime());
+		assertNotNull(bridge.commands.poll(5,TimeUnit.SECONDS));
+		assertEquals(failed+1,Metrics.bridgeCommandsFailed.get());
+		assertEquals(ok,Metrics.bridgeCommandsOk.get());
+	}
+
+	@Test
+	public void eventUpdatesItsV1Light() throws Exception
+	{
+		pollAndSettle();
+		event("[{\"creationtime\":\"2023-01-01T12:00:00Z\",\"data\":[{\"id\":\"5f8c8b1e-0000-4000-8000-000000000002\",\"id_v1\":\"/lights/2\","
+			+"\"on\":{\"on\":true},\"dimming\":{\"brightness\":50.0},\"owner\":{\"rid\":\"5f8c8b1e-0000-4000-8000-0000000000a2\",\"rtype\":\"device\"},\"type\":\"light\"}],"
+			+"\"id\":\"7e3b5c1a-0000-4000-8000-000000000001\",\"type\":\"update\"}]");
+		JsonObject hall=status("Hall");
+		assertEquals(127,hall.get("val").asInt());
+		assertTrue(hall.get("hue_state").asObject().get("on").asBoolean());
+		// The light with the ID which only starts the same is not affected
+		assertNull(mqtt.get("hue/status/lights/Porch"));
+		assertNull(mqtt.get("hue/status/lights/Kitchen"));
+	}
+
+	@Test
+	public void eventWithIDAfterTheChanges() throws Exception
+	{
+		pollAndSettle();
+		event("[{\"data\":[{\"color\":{\"xy\":{\"x\":0.2,\"y\":0.3}},\"color_temperature\":{\"mirek\":null},\"status\":\"connected\",\"id_v1\":\"/lights/20\",\"type\":\"light\"}],\"type\":\"update\"}]");
+		JsonObject state=status("Porch").get("hue_state").asObject();
+		assertTrue(state.get("reachable").asBoolean());
+		assertEquals("xy",state.get("colormode").asString());
+		assertEquals(0.2f,state.get("xy").asArray().get(0).asFloat(),1e-6);
+		assertNull(mqtt.get("hue/status/lights/Hall"));
+	}
+}